@@ -0,0 +1,188 @@
+/*******************************************************************************
+ *
+ * Copyright (c) 2012 Oracle Corporation.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *
+ *
+ *******************************************************************************/
+
+package hudson.remoting;
+
+import hudson.remoting.ProxyOutputStream.MultiAck;
+
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Accumulates the acks that the pipe writer owes to the senders of {@link ProxyOutputStream.Chunk}s,
+ * and sends them as one {@link MultiAck} instead of one command per chunk.
+ *
+ * <p>
+ * Pending acks are sent when any of the following happens, whichever comes first:
+ * <ul>
+ * <li>The pipe writer has written all the chunks it was given. Holding acks back any longer
+ *     could leave a sender waiting for its window to reopen, while we have nothing else to do.
+ * <li>More than {@link #THRESHOLD} bytes are waiting to be acknowledged.
+ * <li>The oldest pending ack is {@link #DELAY} milliseconds old.
+ * </ul>
+ *
+ * <p>
+ * Sending can block, for example while the channel has a backlog of frames to write, so the shared
+ * {@link #TIMER} never sends by itself. It hands the flush off to the {@linkplain Channel#pipeWriter pipe writer}
+ * of the channel, which is a thread of its own, as the peers that understand {@link MultiAck}
+ * {@linkplain Capability#supportsPipeThrottling() support throttling} as well.
+ *
+ * <p>
+ * Only used when the remote peer {@linkplain Capability#supportsMultiAck() understands} {@link MultiAck}.
+ */
+final class AckBatcher {
+    private final Channel channel;
+
+    /**
+     * Bytes to acknowledge, keyed by oid. Guarded by this.
+     */
+    private Map<Integer, Integer> pending = new LinkedHashMap<Integer, Integer>();
+    /**
+     * Sum of {@link #pending}. Guarded by this.
+     */
+    private long pendingBytes;
+    /**
+     * Scheduled to flush {@link #pending}, if set. Guarded by this.
+     */
+    private TimerTask timer;
+
+    /**
+     * Number of chunks handed to the pipe writer but not yet written.
+     */
+    private final AtomicInteger queuedWrites = new AtomicInteger();
+
+    /**
+     * Runs {@link #flush()} on the pipe writer, when the timer goes off.
+     */
+    private final Runnable flusher = new Runnable() {
+        public void run() {
+            flush();
+        }
+    };
+
+    AckBatcher(Channel channel) {
+        this.channel = channel;
+    }
+
+    /**
+     * Called when a chunk is handed to the pipe writer.
+     */
+    void onQueued() {
+        queuedWrites.incrementAndGet();
+    }
+
+    /**
+     * Called by the pipe writer once it's done with a chunk of the given size.
+     */
+    void ack(int oid, int size) {
+        boolean flush;
+        synchronized (this) {
+            Integer cur = pending.get(oid);
+            pending.put(oid, cur == null ? size : cur + size);
+            pendingBytes += size;
+            flush = pendingBytes >= THRESHOLD;
+            if (!flush && timer == null && DELAY > 0) {
+                timer = new TimerTask() {
+                    @Override
+                    public void run() {
+                        try {
+                            channel.pipeWriter.execute(flusher);
+                        } catch (RejectedExecutionException e) {
+                            // the channel is shutting down, so there's no one left to ack to
+                        } catch (RuntimeException e) {
+                            // an exception would kill TIMER, and with it the delayed acks of every channel
+                            LOGGER.log(Level.WARNING, "Failed to flush the acks of channel " + channel, e);
+                        }
+                    }
+                };
+                TIMER.schedule(timer, DELAY);
+            }
+        }
+        if (queuedWrites.decrementAndGet() == 0 || flush) {
+            flush();
+        }
+    }
+
+    /**
+     * Sends all the pending acks.
+     */
+    void flush() {
+        Map<Integer, Integer> acks;
+        synchronized (this) {
+            if (timer != null) {
+                timer.cancel();
+                timer = null;
+                if (CANCELLED.incrementAndGet() % PURGE_INTERVAL == 0) {
+                    // cancelled tasks otherwise stay in the queue of the timer until they are due
+                    TIMER.purge();
+                }
+            }
+            if (pending.isEmpty()) {
+                return;
+            }
+            acks = pending;
+            pending = new LinkedHashMap<Integer, Integer>();
+            pendingBytes = 0;
+        }
+
+        int[] oids = new int[acks.size()];
+        int[] sizes = new int[acks.size()];
+        int i = 0;
+        for (Map.Entry<Integer, Integer> e : acks.entrySet()) {
+            oids[i] = e.getKey();
+            sizes[i] = e.getValue();
+            i++;
+        }
+        try {
+            channel.send(new MultiAck(oids, sizes));
+        } catch (ChannelClosedException x) {
+            // the other direction can be already closed if the connection
+            // shut down is initiated from this side. In that case, remain silent.
+        } catch (IOException e) {
+            // ignore errors
+            LOGGER.log(Level.WARNING, "Failed to ack the stream", e);
+        }
+    }
+
+    private static final Logger LOGGER = Logger.getLogger(AckBatcher.class.getName());
+
+    /**
+     * Shared by all the channels, since it only ever runs very short tasks that don't block.
+     * The tasks must not throw, or else the timer stops for everyone.
+     */
+    private static final Timer TIMER = new Timer("Pipe ack flusher", true);
+
+    /**
+     * Number of tasks cancelled on {@link #TIMER}, which is purged every {@link #PURGE_INTERVAL} of them.
+     */
+    private static final AtomicInteger CANCELLED = new AtomicInteger();
+    private static final int PURGE_INTERVAL = 1024;
+
+    /**
+     * Send the acks once this many bytes are waiting to be acknowledged.
+     */
+    static final int THRESHOLD = Integer.getInteger(Channel.class.getName() + ".ackThreshold", 64 * 1024);
+
+    /**
+     * Maximum number of milliseconds an ack is held back. 0 to disable the timer.
+     */
+    static final long DELAY = Long.getLong(Channel.class.getName() + ".ackDelay", 5);
+}
@@ -0,0 +1,83 @@
+/*******************************************************************************
+ *
+ * Copyright (c) 2012 Oracle Corporation.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *
+ *
+ *******************************************************************************/
+
+package hudson.remoting;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Recycles the byte arrays that received frames are read into.
+ *
+ * <p>
+ * Arrays are handed out in power-of-two sizes between {@link #MIN_SIZE} and {@link #MAX_SIZE},
+ * so the array is often longer than what's asked for. Larger requests are simply allocated.
+ * Each size keeps at most {@link #MAX_POOLED} arrays, so a burst of large frames doesn't pin
+ * the memory forever.
+ *
+ * <p>
+ * An array must not be touched once it's {@linkplain #release(byte[]) released}.
+ */
+final class BufferPool {
+    // Java can't create a generic array, but every element is a BlockingQueue<byte[]>
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private final BlockingQueue<byte[]>[] pools = new BlockingQueue[sizeClass(MAX_SIZE) + 1];
+
+    BufferPool() {
+        for (int i = 0; i < pools.length; i++) {
+            pools[i] = new ArrayBlockingQueue<byte[]>(MAX_POOLED);
+        }
+    }
+
+    /**
+     * Returns an array of at least the given length.
+     */
+    byte[] acquire(int len) {
+        if (len > MAX_SIZE) {
+            return new byte[len];
+        }
+        int c = sizeClass(len);
+        byte[] b = pools[c].poll();
+        return b != null ? b : new byte[MIN_SIZE << c];
+    }
+
+    /**
+     * Gives back an array obtained from {@link #acquire(int)}.
+     */
+    void release(byte[] b) {
+        if (b.length < MIN_SIZE || b.length > MAX_SIZE || Integer.bitCount(b.length) != 1) {
+            return; // not one of ours
+        }
+        pools[sizeClass(b.length)].offer(b);
+    }
+
+    /**
+     * Index of the smallest size that can hold the given length.
+     */
+    private static int sizeClass(int len) {
+        if (len <= MIN_SIZE) {
+            return 0;
+        }
+        return 32 - Integer.numberOfLeadingZeros(len - 1) - MIN_SIZE_BITS;
+    }
+
+    private static final int MIN_SIZE_BITS = 9;
+    static final int MIN_SIZE = 1 << MIN_SIZE_BITS;
+    static final int MAX_SIZE = 256 * 1024;
+
+    /**
+     * Number of arrays kept for each size.
+     */
+    static final int MAX_POOLED = 16;
+}
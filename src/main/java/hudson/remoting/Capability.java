@@ -23,6 +23,8 @@ import java.io.OutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.ObjectInputStream;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 /**
  * Represents additional features implemented on {@link Channel}.
@@ -42,12 +44,34 @@ public final class Capability implements Serializable {
      */
     private final long mask;
 
+    /**
+     * {@linkplain PayloadSerializer#getName() Name} of the {@link PayloadSerializer} this side reads and writes, or null.
+     * Older versions don't have this field, which then reads as null.
+     */
+    private final String payloadSerializerName;
+
+    /**
+     * The {@link PayloadSerializer} itself, which stays on this side.
+     */
+    private transient final PayloadSerializer payloadSerializer;
+
     Capability(long mask) {
+        this(mask,null);
+    }
+
+    Capability(long mask, PayloadSerializer payloadSerializer) {
         this.mask = mask;
+        this.payloadSerializer = payloadSerializer;
+        this.payloadSerializerName = payloadSerializer!=null ? payloadSerializer.getName() : null;
     }
 
     Capability() {
-        this(MASK_MULTI_CLASSLOADER|MASK_PIPE_THROTTLING);
+        this(DEFAULT_PAYLOAD_SERIALIZER);
+    }
+
+    Capability(PayloadSerializer payloadSerializer) {
+        this(MASK_MULTI_CLASSLOADER|MASK_PIPE_THROTTLING|MASK_FRAMED_COMMANDS|MASK_MULTI_ACK|MASK_INPUT_PREFETCH|MASK_METHOD_IDS|MASK_CLASS_BUNDLES|MASK_JAR_DIGESTS|MASK_JAR_STREAMING|MASK_USER_FRAMES|MASK_CLASS_DESCRIPTOR_CACHE|MASK_FRAME_COMPRESSION|MASK_ONE_WAY_CALLS,
+            payloadSerializer);
     }
 
     /**
@@ -69,6 +93,119 @@ public final class Capability implements Serializable {
         return (mask& MASK_PIPE_THROTTLING)!=0;
     }
 
+    /**
+     * Does the implementation understand length-prefixed command frames?
+     *
+     * @see FramedCommandTransport
+     */
+    public boolean supportsFramedCommands() {
+        return (mask&MASK_FRAMED_COMMANDS)!=0;
+    }
+
+    /**
+     * Does the implementation understand acks of multiple pipes bundled into one command?
+     *
+     * @see AckBatcher
+     */
+    public boolean supportsMultiAck() {
+        return (mask&MASK_MULTI_ACK)!=0;
+    }
+
+    /**
+     * Can the exporting side of a remote {@link InputStream} push its data ahead of the reads?
+     *
+     * @see ProxyInputStream
+     */
+    public boolean supportsInputPrefetch() {
+        return (mask&MASK_INPUT_PREFETCH)!=0;
+    }
+
+    /**
+     * Can remote method calls identify the method by an ID instead of its signature?
+     *
+     * @see MethodIdTable
+     */
+    public boolean supportsMethodIds() {
+        return (mask&MASK_METHOD_IDS)!=0;
+    }
+
+    /**
+     * Can the remote class loader send related classes along with the class we asked for?
+     *
+     * @see RemoteClassLoader.ClassBundle
+     */
+    public boolean supportsClassBundles() {
+        return (mask&MASK_CLASS_BUNDLES)!=0;
+    }
+
+    /**
+     * Can the remote class loader tell the digest of a jar before sending it?
+     *
+     * @see JarCache
+     */
+    public boolean supportsJarDigests() {
+        return (mask&MASK_JAR_DIGESTS)!=0;
+    }
+
+    /**
+     * Can the remote class loader stream a jar through a {@link Pipe}, instead of sending it as one byte array?
+     *
+     * @see RemoteClassLoader.IClassLoader#streamJar(java.net.URL, Pipe)
+     */
+    public boolean supportsJarStreaming() {
+        return (mask&MASK_JAR_STREAMING)!=0;
+    }
+
+    /**
+     * Can {@link UserRequest}s and their responses carry their serialized payload as is in the command frame,
+     * instead of as a byte array nested in another serialization stream?
+     *
+     * @see FramedCommandTransport
+     */
+    public boolean supportsUserFrames() {
+        return (mask&MASK_USER_FRAMES)!=0;
+    }
+
+    /**
+     * Can {@link MultiClassLoaderSerializer} refer to the class descriptors sent in earlier calls by their IDs?
+     *
+     * @see ClassDescriptorTable
+     */
+    public boolean supportsClassDescriptorCache() {
+        return (mask&MASK_CLASS_DESCRIPTOR_CACHE)!=0;
+    }
+
+    /**
+     * Can the frames carry a compressed payload?
+     *
+     * @see Compression
+     */
+    public boolean supportsFrameCompression() {
+        return (mask&MASK_FRAME_COMPRESSION)!=0;
+    }
+
+    /**
+     * Does the implementation leave out the {@link Response} of a {@link Request} sent with {@link Request#callOneWay(Channel)}?
+     *
+     * @see OneWay
+     */
+    public boolean supportsOneWayCalls() {
+        return (mask&MASK_ONE_WAY_CALLS)!=0;
+    }
+
+    /**
+     * Returns our {@link PayloadSerializer}, if the other side reads and writes the same format.
+     * Otherwise null, and the channel uses Java serialization alone.
+     *
+     * @param remote
+     *      Capability of the other side.
+     */
+    PayloadSerializer negotiatePayloadSerializer(Capability remote) {
+        if (payloadSerializer!=null && payloadSerializerName.equals(remote.payloadSerializerName))
+            return payloadSerializer;
+        return null;
+    }
+
     /**
      * Writes out the capacity preamble.
      */
@@ -117,6 +254,81 @@ public final class Capability implements Serializable {
      */
     private static final long MASK_PIPE_THROTTLING = 4L;
 
+    /**
+     * Bit that indicates the use of {@link FramedCommandTransport} instead of a single {@link ObjectOutputStream}.
+     */
+    private static final long MASK_FRAMED_COMMANDS = 8L;
+
+    /**
+     * Bit that indicates the use of {@link ProxyOutputStream.MultiAck}.
+     */
+    private static final long MASK_MULTI_ACK = 16L;
+
+    /**
+     * Bit that indicates the support of {@link ProxyInputStream.Prefetch}.
+     */
+    private static final long MASK_INPUT_PREFETCH = 32L;
+
+    /**
+     * Bit that indicates the support of {@link MethodIdTable}.
+     */
+    private static final long MASK_METHOD_IDS = 64L;
+
+    /**
+     * Bit that indicates the support of {@link RemoteClassLoader.IClassLoader#fetch3(String)}.
+     */
+    private static final long MASK_CLASS_BUNDLES = 128L;
+
+    /**
+     * Bit that indicates the support of {@link RemoteClassLoader.IClassLoader#fetchJarDigest(java.net.URL)}.
+     */
+    private static final long MASK_JAR_DIGESTS = 256L;
+
+    /**
+     * Bit that indicates the support of {@link RemoteClassLoader.IClassLoader#streamJar(java.net.URL, Pipe)}.
+     */
+    private static final long MASK_JAR_STREAMING = 512L;
+
+    /**
+     * Bit that indicates the support of the compact frames of {@link UserRequest} and {@link UserResponse}.
+     */
+    private static final long MASK_USER_FRAMES = 1024L;
+
+    /**
+     * Bit that indicates the support of {@link ClassDescriptorTable}.
+     */
+    private static final long MASK_CLASS_DESCRIPTOR_CACHE = 2048L;
+
+    /**
+     * Bit that indicates the support of {@link FramedCommandTransport#COMPRESSED} frames.
+     */
+    private static final long MASK_FRAME_COMPRESSION = 4096L;
+
+    /**
+     * Bit that indicates the support of {@link Request#callOneWay(Channel)}.
+     */
+    private static final long MASK_ONE_WAY_CALLS = 8192L;
+
+    /**
+     * Instantiates the {@link PayloadSerializer} named by the <tt>hudson.remoting.PayloadSerializer</tt> system property,
+     * which the channels use unless they are given one.
+     */
+    private static PayloadSerializer loadPayloadSerializer() {
+        String name = System.getProperty(PayloadSerializer.class.getName());
+        if (name==null)
+            return null;
+        try {
+            return (PayloadSerializer)Class.forName(name).newInstance();
+        } catch (Exception e) {
+            LOGGER.log(Level.WARNING, "Failed to instantiate the payload serializer "+name, e);
+            return null;
+        }
+    }
+
+    private static final Logger LOGGER = Logger.getLogger(Capability.class.getName());
+
+    private static final PayloadSerializer DEFAULT_PAYLOAD_SERIALIZER = loadPayloadSerializer();
+
     static final byte[] PREAMBLE;
 
     public static final Capability NONE = new Capability(0);
@@ -22,18 +22,19 @@ import hudson.remoting.PipeWindow.Real;
 import hudson.remoting.forward.ForwarderFactory;
 import hudson.remoting.forward.ListeningPort;
 import hudson.remoting.forward.PortForwarder;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
 import java.io.OutputStream;
 import java.io.PrintWriter;
 import java.io.Serializable;
 import java.io.UnsupportedEncodingException;
 import java.lang.ref.WeakReference;
 import java.net.URL;
-import java.util.Collections;
+import java.nio.channels.Channels;
+import java.nio.channels.SocketChannel;
 import java.util.Hashtable;
 import java.util.Map;
 import java.util.Vector;
@@ -100,8 +101,10 @@ import java.util.logging.Logger;
  * @author Kohsuke Kawaguchi, Winston Prakash (bug fixes)
  */
 public class Channel implements VirtualChannel, IChannel {
-    private final ObjectInputStream ois;
-    private final ObjectOutputStream oos;
+    /**
+     * Sends and receives {@link Command}s. Chosen based on the {@link #remoteCapability}.
+     */
+    private final CommandTransport transport;
     /**
      * Human readable description of where this channel is connected to. Used during diagnostic output
      * and error reports.
@@ -123,13 +126,16 @@ public class Channel implements VirtualChannel, IChannel {
      */
     private volatile Throwable outClosed = null;
 
-    /*package*/ final Map<Integer, Request<?, ?>> pendingCalls = new Hashtable<Integer, Request<?, ?>>();
+    /**
+     * Records the {@link Request}s sent from this side that are waiting for their {@link Response}s.
+     * Keyed by the request ID, and looked up without locking by the thread that receives the responses.
+     */
+    /*package*/ final ConcurrentIntMap<Request<?, ?>> pendingCalls = new ConcurrentIntMap<Request<?, ?>>();
 
     /**
      * Records the {@link Request}s being executed on this channel, sent by the remote peer.
      */
-    /*package*/ final Map<Integer, Request<?, ?>> executingCalls =
-        Collections.synchronizedMap(new Hashtable<Integer, Request<?, ?>>());
+    /*package*/ final ConcurrentIntMap<Request<?, ?>> executingCalls = new ConcurrentIntMap<Request<?, ?>>();
 
     /**
      * {@link ClassLoader}s that are proxies of the remote classloaders.
@@ -141,6 +147,32 @@ public class Channel implements VirtualChannel, IChannel {
      */
     private final ExportTable<Object> exportedObjects = new ExportTable<Object>();
 
+    /**
+     * Methods of {@link #exportedObjects} that the remote side has called.
+     */
+    /*package*/ final MethodCache methodCache = new MethodCache();
+
+    /**
+     * IDs of the methods called through {@link RemoteInvocationHandler} in both directions.
+     */
+    /*package*/ final MethodIdTable methodIds = new MethodIdTable();
+
+    /**
+     * IDs of the class descriptors written by {@link MultiClassLoaderSerializer} in both directions.
+     */
+    /*package*/ final ClassDescriptorTable classDescriptors = new ClassDescriptorTable();
+
+    /**
+     * Codec that {@link MultiClassLoaderSerializer} uses alongside Java serialization, if both sides have the same one.
+     * Otherwise null.
+     */
+    /*package*/ final PayloadSerializer payloadSerializer;
+
+    /**
+     * Compresses the frames we send, and inflates the ones we receive.
+     */
+    /*package*/ final FrameCompressor frameCompressor;
+
     /**
      * {@link PipeWindow}s keyed by their OIDs (of the OutputStream exported by the other side.)
      * <p/>
@@ -203,6 +235,87 @@ public class Channel implements VirtualChannel, IChannel {
      */
     public final AtomicInteger resourceLoadingCount = new AtomicInteger();
 
+    /**
+     * Total count of remote class and resource lookups that found nothing.
+     * These are included in {@link #classLoadingCount} and {@link #resourceLoadingCount}.
+     */
+    public final AtomicInteger remoteMissCount = new AtomicInteger();
+
+    /**
+     * Total count of class and resource lookups that didn't go to the other side, because it already told us
+     * it doesn't have them. Each of them saved a round trip.
+     *
+     * @see #remoteMissCount
+     */
+    public final AtomicInteger negativeCacheHitCount = new AtomicInteger();
+
+    /**
+     * Total count of classes that the other side sent ahead of time, along with the classes we asked for.
+     * These are not included in {@link #classLoadingCount}.
+     *
+     * @see Capability#supportsClassBundles()
+     */
+    public final AtomicInteger classPrefetchCount = new AtomicInteger();
+
+    /**
+     * Out of {@link #classPrefetchCount}, the number of classes that were actually loaded later.
+     * Each of them saved a round trip.
+     */
+    public final AtomicInteger classPrefetchHitCount = new AtomicInteger();
+
+    /**
+     * Total count of the jars that {@link #preloadJar(ClassLoader, URL...)} found in {@link JarCache},
+     * instead of transferring them.
+     */
+    public final AtomicInteger jarCacheHitCount = new AtomicInteger();
+
+    /**
+     * Total number of times the outgoing commands were flushed to the stream.
+     * Only counted when the commands are sent as frames.
+     */
+    public final AtomicLong sendBatchCount = new AtomicLong();
+
+    /**
+     * Total number of commands sent in those flushes. Used in a pair with {@link #sendBatchCount}
+     * to see how many commands are written per system call on average.
+     */
+    public final AtomicLong sendBatchCommandCount = new AtomicLong();
+
+    /**
+     * Largest number of commands written in a single flush.
+     *
+     * @see #sendBatchCount
+     */
+    public final AtomicInteger sendBatchMaxDepth = new AtomicInteger();
+
+    /**
+     * Total size of the payloads of the frames that were sent compressed, before compression.
+     * Together with {@link #compressionOutputBytes}, this gives the compression ratio.
+     *
+     * @see #setCompression(Compression)
+     */
+    public final AtomicLong compressionInputBytes = new AtomicLong();
+
+    /**
+     * Total size of those payloads after compression.
+     */
+    public final AtomicLong compressionOutputBytes = new AtomicLong();
+
+    /**
+     * Total number of frames that were sent as is, because they didn't shrink enough when compressed.
+     */
+    public final AtomicLong compressionSkipCount = new AtomicLong();
+
+    /**
+     * Total number of nanoseconds spent compressing the outgoing frames, including the failed attempts.
+     */
+    public final AtomicLong compressionTime = new AtomicLong();
+
+    /**
+     * Total number of nanoseconds spent inflating the incoming frames.
+     */
+    public final AtomicLong decompressionTime = new AtomicLong();
+
     /**
      * Property bag that contains application-specific stuff.
      */
@@ -233,6 +346,18 @@ public class Channel implements VirtualChannel, IChannel {
 
     /*package*/ final ExecutorService pipeWriter;
 
+    /**
+     * Bundles up the acks of the chunks written by {@link #pipeWriter},
+     * when the remote peer {@linkplain Capability#supportsMultiAck() supports it}.
+     */
+    /*package*/ final AckBatcher ackBatcher = new AckBatcher(this);
+
+    /**
+     * {@link #PIPE_WINDOW_MAX_SIZE} for the pipes that this side writes to.
+     * Only changed by benchmarks, to compare with a fixed window.
+     */
+    /*package*/ volatile int pipeWindowMaxSize = PIPE_WINDOW_MAX_SIZE;
+
 
     /**
      * Communication mode.
@@ -340,8 +465,62 @@ public class Channel implements VirtualChannel, IChannel {
         this(name, exec, mode, is, os, header, restricted, new Capability());
     }
 
+    /**
+     * Creates a new channel that writes some of the objects it sends with the given {@link PayloadSerializer},
+     * if the other side has one of the same name.
+     *
+     * @param payloadSerializer If null, the one named by the <tt>hudson.remoting.PayloadSerializer</tt>
+     * system property is used, if any.
+     * @see #Channel(String, ExecutorService, Mode, InputStream, OutputStream, OutputStream, boolean)
+     */
+    public Channel(String name, ExecutorService exec, Mode mode, InputStream is, OutputStream os, OutputStream header,
+                   boolean restricted, PayloadSerializer payloadSerializer) throws IOException {
+        this(name, exec, mode, is, os, header, restricted,
+            payloadSerializer != null ? new Capability(payloadSerializer) : new Capability());
+    }
+
     /*package*/ Channel(String name, ExecutorService exec, Mode mode, InputStream is, OutputStream os,
                         OutputStream header, boolean restricted, Capability capability) throws IOException {
+        this(name, exec, mode, is, os, header, restricted, capability, null, null);
+    }
+
+    public Channel(String name, ExecutorService exec, NioChannelHub hub, SocketChannel socket) throws IOException {
+        this(name, exec, hub, socket, false);
+    }
+
+    /**
+     * Creates a new channel on a socket, whose I/O is done by the selector threads of the given hub
+     * instead of a dedicated reader thread.
+     *
+     * <p/>
+     * The preamble is exchanged in the blocking mode, after which the socket is switched to
+     * the non-blocking mode and registered to the hub. If the remote peer is too old to
+     * {@linkplain Capability#supportsFramedCommands() understand frames}, the channel falls back to
+     * a reader thread over the socket streams, just like the other constructors.
+     *
+     * @param hub Selector threads that serve this channel.
+     * @param socket Connection to the remote peer, in the blocking mode.
+     * The channel takes over the socket, and closes it when the channel is closed.
+     * @param exec The requests from the remote peer are executed by using this {@link Executor}.
+     * The commands themselves are decoded by the hub, which also delivers the responses to our calls
+     * without this executor, so it can be bounded, as long as there are as many threads as the calls that
+     * need to be served at once.
+     * @see #Channel(String, ExecutorService, Mode, InputStream, OutputStream, OutputStream, boolean)
+     */
+    public Channel(String name, ExecutorService exec, NioChannelHub hub, SocketChannel socket, boolean restricted)
+        throws IOException {
+        this(name, exec, hub, socket, restricted, new Capability());
+    }
+
+    /*package*/ Channel(String name, ExecutorService exec, NioChannelHub hub, SocketChannel socket, boolean restricted,
+                        Capability capability) throws IOException {
+        this(name, exec, Mode.BINARY, Channels.newInputStream(socket), Channels.newOutputStream(socket), null,
+            restricted, capability, hub, socket);
+    }
+
+    private Channel(String name, ExecutorService exec, Mode mode, InputStream is, OutputStream os, OutputStream header,
+                    boolean restricted, Capability capability, NioChannelHub hub, SocketChannel socket)
+        throws IOException {
         this.name = name;
         this.executor = exec;
         this.isRestricted = restricted;
@@ -360,11 +539,9 @@ public class Channel implements VirtualChannel, IChannel {
 
         capability.writePreamble(os);
 
-        ObjectOutputStream oos = null;
         if (mode != Mode.NEGOTIATE) {
             os.write(mode.preamble);
-            oos = new ObjectOutputStream(mode.wrap(os));
-            oos.flush();    // make sure that stream preamble is sent to the other end. avoids dead-lock
+            os.flush();    // make sure that stream preamble is sent to the other end. avoids dead-lock
         }
 
         {// read the input until we hit preamble
@@ -392,18 +569,20 @@ public class Channel implements VirtualChannel, IChannel {
                                         // now we know what the other side wants, so send the consistent preamble
                                         mode = modes[i];
                                         os.write(mode.preamble);
-                                        oos = new ObjectOutputStream(mode.wrap(os));
-                                        oos.flush();
+                                        os.flush();
                                     } else {
                                         if (modes[i] != mode) {
                                             throw new IOException("Protocol negotiation failure");
                                         }
                                     }
-                                    this.oos = oos;
                                     this.remoteCapability = cap;
+                                    this.payloadSerializer = capability.negotiatePayloadSerializer(cap);
+                                    this.frameCompressor = new FrameCompressor(this,
+                                        capability.supportsFrameCompression() && cap.supportsFrameCompression(),
+                                        Compression.getDefault());
+                                    this.transport = createTransport(capability, mode, is, os, hub, socket);
                                     this.pipeWriter = createPipeWriter();
-                                    this.ois = new ObjectInputStream(mode.wrap(is));
-                                    new ReaderThread(name).start();
+                                    transport.start();
 
                                     return;
                                 case 2:
@@ -444,6 +623,30 @@ public class Channel implements VirtualChannel, IChannel {
         return outClosed != null;
     }
 
+    /**
+     * Creates the {@link CommandTransport} that both sides can talk.
+     * <p/>
+     * <p/>
+     * This is done after the preamble of the other side is received, because until then
+     * we don't know its {@link Capability}. The stream header of the classic transport
+     * is thus written after we've seen the preamble, which is still early enough not to dead-lock.
+     */
+    private CommandTransport createTransport(Capability capability, Mode mode, InputStream is, OutputStream os,
+                                             NioChannelHub hub, SocketChannel socket) throws IOException {
+        if (capability.supportsFramedCommands() && remoteCapability.supportsFramedCommands()) {
+            if (hub != null) {
+                return new NioCommandTransport(this, hub, socket);
+            }
+            return new FramedCommandTransport(this, name, mode.wrap(is), mode.wrap(os));
+        }
+        if (socket != null) {
+            // nobody else buffers the socket streams for us
+            is = new BufferedInputStream(is);
+            os = new BufferedOutputStream(os);
+        }
+        return new ClassicCommandTransport(this, name, mode.wrap(is), mode.wrap(os));
+    }
+
     /**
      * Creates the {@link ExecutorService} for writing to pipes.
      * <p/>
@@ -470,8 +673,19 @@ public class Channel implements VirtualChannel, IChannel {
      * This is the lowest layer of abstraction in {@link Channel}.
      * {@link Command}s are executed on a remote system in the order they are sent.
      */
-    /*package*/
-    synchronized void send(Command cmd) throws IOException {
+    /*package*/ void send(Command cmd) throws IOException {
+        if (transport.isConcurrent()) {
+            // the transport orders concurrent writes by itself,
+            // so senders don't need to wait for each other to finish writing.
+            doSend(cmd);
+        } else {
+            synchronized (this) {
+                doSend(cmd);
+            }
+        }
+    }
+
+    private void doSend(Command cmd) throws IOException {
         if (outClosed != null) {
             throw new ChannelClosedException(outClosed);
         }
@@ -480,18 +694,10 @@ public class Channel implements VirtualChannel, IChannel {
         }
         Channel old = Channel.setCurrent(this);
         try {
-            oos.writeObject(cmd);
-            oos.flush();        // make sure the command reaches the other end.
+            transport.write(cmd, cmd instanceof CloseCommand);
         } finally {
             Channel.setCurrent(old);
         }
-        // unless this is the last command, have OOS and remote OIS forget all the objects we sent
-        // in this command. Otherwise it'll keep objects in memory unnecessarily.
-        // However, this may fail if the command was the close, because that's supposed to be the last command
-        // ever sent. See the comment from jglick on HUDSON-3077 about what happens if we do oos.reset(). 
-        if (!(cmd instanceof CloseCommand)) {
-            oos.reset();
-        }
     }
 
     /**
@@ -622,7 +828,7 @@ public class Channel implements VirtualChannel, IChannel {
             }
             PipeWindow w;
             if (remoteCapability.supportsPipeThrottling()) {
-                w = new Real(k, PIPE_WINDOW_SIZE);
+                w = new Real(k, PIPE_WINDOW_SIZE, Math.max(PIPE_WINDOW_SIZE, pipeWindowMaxSize));
             } else {
                 w = new PipeWindow.Fake();
             }
@@ -663,6 +869,76 @@ public class Channel implements VirtualChannel, IChannel {
         }
     }
 
+    /**
+     * Like {@link #call(Callable)}, but the result is streamed back through a {@link Pipe} as it's serialized,
+     * and deserialized as it arrives, instead of being serialized into a byte array that's sent in one response.
+     *
+     * <p>
+     * Use this for results too large to hold in memory a few times over, such as a listing of a large directory.
+     * It works with any version of the other side that supports {@link Pipe}s.
+     */
+    public <V, T extends Throwable>
+    V callStream(Callable<V, T> callable) throws IOException, T, InterruptedException {
+        UserRequest<Void, Throwable> request = null;
+        try {
+            StreamingCallable<V, T> sc = new StreamingCallable<V, T>(callable, Pipe.createRemoteToLocal());
+            request = new UserRequest<Void, Throwable>(this, sc);
+            // if the callable never gets to close the pipe, such as when it fails to deserialize, the response does
+            request.setCloseOnFailure(sc.getPipe().getIn());
+            Future<UserResponse<Void, Throwable>> f = request.callAsync(this);
+
+            V v = null;
+            IOException failure = null;
+            try {
+                v = sc.readResult(this);
+            } catch (IOException e) {
+                // most likely because the callable failed, in which case the response tells why
+                failure = e;
+            }
+
+            UserResponse<Void, Throwable> r;
+            try {
+                r = f.get();
+            } catch (ExecutionException e) {
+                throw (IOException)new IOException("Remote call on " + name + " failed").initCause(e.getCause());
+            }
+            try {
+                r.retrieve(this, sc.getClassLoader());
+            } catch (IOException e) {
+                throw e;
+            } catch (ClassNotFoundException e) {
+                throw e;
+            } catch (RuntimeException e) {
+                throw e;
+            } catch (Error e) {
+                throw e;
+            } catch (Throwable t) {// really means catch(T t)
+                // the streaming callable throws nothing else
+                @SuppressWarnings("unchecked")
+                T x = (T)t;
+                throw x;
+            }
+            if (failure != null) {
+                throw failure;
+            }
+            return v;
+
+            // re-wrap the exception so that we can capture the stack trace of the caller.
+        } catch (ClassNotFoundException e) {
+            IOException x = new IOException("Remote call on " + name + " failed");
+            x.initCause(e);
+            throw x;
+        } catch (Error e) {
+            IOException x = new IOException("Remote call on " + name + " failed");
+            x.initCause(e);
+            throw x;
+        } finally {
+            if (request != null) {
+                request.releaseExports();
+            }
+        }
+    }
+
     /**
      * {@inheritDoc}
      */
@@ -737,22 +1013,19 @@ public class Channel implements VirtualChannel, IChannel {
             throw new IllegalArgumentException();
         }
         outClosed = inClosed = e;
+        transport.terminate();
         try {
-            synchronized (pendingCalls) {
-                for (Request<?, ?> req : pendingCalls.values()) {
-                    req.abort(e);
-                }
-                pendingCalls.clear();
+            for (Request<?, ?> req : pendingCalls.values()) {
+                req.abort(e);
             }
-            synchronized (executingCalls) {
-                for (Request<?, ?> r : executingCalls.values()) {
-                    java.util.concurrent.Future<?> f = r.future;
-                    if (f != null) {
-                        f.cancel(true);
-                    }
+            pendingCalls.clear();
+            for (Request<?, ?> r : executingCalls.values()) {
+                java.util.concurrent.Future<?> f = r.future;
+                if (f != null) {
+                    f.cancel(true);
                 }
-                executingCalls.clear();
             }
+            executingCalls.clear();
         } finally {
             notifyAll();
 
@@ -820,9 +1093,9 @@ public class Channel implements VirtualChannel, IChannel {
     /**
      * Notifies the remote peer that we are closing down.
      * <p/>
-     * Execution of this command also triggers the {@link ReaderThread} to shut down
-     * and quit. The {@link CloseCommand} is always the last command to be sent on
-     * {@link ObjectOutputStream}, and it's the last command to be read.
+     * Execution of this command also triggers the {@link CommandTransport} to stop
+     * receiving. The {@link CloseCommand} is always the last command to be sent on
+     * {@link CommandTransport}, and it's the last command to be read.
      */
     private static final class CloseCommand extends Command {
         protected void execute(Channel channel) {
@@ -854,6 +1127,20 @@ public class Channel implements VirtualChannel, IChannel {
         private static final long serialVersionUID = 1L;
     }
 
+    /**
+     * Updates the counters after the given number of commands were sent in one go.
+     */
+    /*package*/ void recordSendBatch(int batch) {
+        sendBatchCount.incrementAndGet();
+        sendBatchCommandCount.addAndGet(batch);
+        while (true) {
+            int max = sendBatchMaxDepth.get();
+            if (batch <= max || sendBatchMaxDepth.compareAndSet(max, batch)) {
+                break;
+            }
+        }
+    }
+
     /**
      * Resets all the performance counters.
      */
@@ -862,6 +1149,20 @@ public class Channel implements VirtualChannel, IChannel {
         classLoadingTime.set(0);
         resourceLoadingCount.set(0);
         resourceLoadingTime.set(0);
+        remoteMissCount.set(0);
+        negativeCacheHitCount.set(0);
+        classPrefetchCount.set(0);
+        classPrefetchHitCount.set(0);
+        jarCacheHitCount.set(0);
+        sendBatchCount.set(0);
+        sendBatchCommandCount.set(0);
+        sendBatchMaxDepth.set(0);
+        compressionInputBytes.set(0);
+        compressionOutputBytes.set(0);
+        compressionSkipCount.set(0);
+        compressionTime.set(0);
+        decompressionTime.set(0);
+        exportedObjects.resetExportCounts();
     }
 
     /**
@@ -873,10 +1174,11 @@ public class Channel implements VirtualChannel, IChannel {
         }
 
         send(new CloseCommand());
-        outClosed
-            = new IOException();   // last command sent. no further command allowed. lock guarantees that no command will slip inbetween
+        // last command sent. no further command allowed. the lock keeps out the senders that don't send concurrently,
+        // and concurrent transports reject whatever would be queued behind the close command.
+        outClosed = new IOException();
         try {
-            oos.close();
+            transport.closeWrite();
         } catch (IOException e) {
             // there's a race condition here.
             // the remote peer might have already responded to the close command
@@ -990,6 +1292,44 @@ public class Channel implements VirtualChannel, IChannel {
         exportedObjects.dump(w);
     }
 
+    /**
+     * Changes which of the subsequent exports record their allocation traces for {@link #dumpExportTable(PrintWriter)}.
+     *
+     * @see ExportTracePolicy#setDefault(ExportTracePolicy)
+     */
+    public void setExportTracePolicy(ExportTracePolicy policy) {
+        exportedObjects.setTracePolicy(policy);
+    }
+
+    /**
+     * Changes how the subsequent frames are compressed.
+     * This has no effect unless the other side {@linkplain Capability#supportsFrameCompression() supports it}.
+     *
+     * @see Compression#setDefault(Compression)
+     */
+    public void setCompression(Compression compression) {
+        frameCompressor.setCompression(compression);
+    }
+
+    public Compression getCompression() {
+        return frameCompressor.getCompression();
+    }
+
+    /**
+     * Number of objects exported so far (since the last {@link #resetPerformanceCounters()}),
+     * keyed by their class names.
+     */
+    public Map<String, Long> getExportCounts() {
+        return exportedObjects.getExportCounts();
+    }
+
+    /**
+     * Number of objects that are currently exported, keyed by their class names.
+     */
+    public Map<String, Integer> getLiveExportCounts() {
+        return exportedObjects.getLiveCounts();
+    }
+
     public ExportList startExportRecording() {
         return exportedObjects.startRecording();
     }
@@ -1001,48 +1341,36 @@ public class Channel implements VirtualChannel, IChannel {
         return lastHeard;
     }
 
-    private final class ReaderThread extends Thread {
-        public ReaderThread(String name) {
-            super("Channel reader thread: " + name);
+    /**
+     * Executes a command received from the remote peer.
+     * Called by the transport for each command, in the order they were received.
+     */
+    /*package*/ void receive(Command cmd) {
+        lastHeard = System.currentTimeMillis();
+        if (logger.isLoggable(Level.FINE)) {
+            logger.fine("Received " + cmd);
+        }
+        try {
+            cmd.execute(this);
+        } catch (Throwable t) {
+            logger.log(Level.SEVERE, "Failed to execute command " + cmd + " (channel " + name + ")", t);
+            logger.log(Level.SEVERE, "This command is created here", cmd.createdAt);
         }
+    }
 
-        @Override
-        public void run() {
-            Command cmd = null;
-            try {
-                while (inClosed == null) {
-                    try {
-                        Channel old = Channel.setCurrent(Channel.this);
-                        try {
-                            cmd = (Command) ois.readObject();
-                            lastHeard = System.currentTimeMillis();
-                        } finally {
-                            Channel.setCurrent(old);
-                        }
-                    } catch (EOFException e) {
-                        IOException ioe = new IOException("Unexpected termination of the channel");
-                        ioe.initCause(e);
-                        throw ioe;
-                    } catch (ClassNotFoundException e) {
-                        logger.log(Level.SEVERE, "Unable to read a command (channel " + name + ")", e);
-                    }
-                    if (logger.isLoggable(Level.FINE)) {
-                        logger.fine("Received " + cmd);
-                    }
-                    try {
-                        cmd.execute(Channel.this);
-                    } catch (Throwable t) {
-                        logger.log(Level.SEVERE, "Failed to execute command " + cmd + " (channel " + name + ")", t);
-                        logger.log(Level.SEVERE, "This command is created here", cmd.createdAt);
-                    }
-                }
-                ois.close();
-            } catch (IOException e) {
+    /**
+     * Called by the transport once it stops receiving commands.
+     *
+     * @param e null if the channel was closed normally. Otherwise the error that stopped the transport.
+     */
+    /*package*/ void onReadEnd(IOException e) {
+        try {
+            if (e != null) {
                 logger.log(Level.SEVERE, "I/O error in channel " + name, e);
                 terminate(e);
-            } finally {
-                pipeWriter.shutdown();
             }
+        } finally {
+            pipeWriter.shutdown();
         }
     }
 
@@ -1072,8 +1400,20 @@ public class Channel implements VirtualChannel, IChannel {
 
     private static final Logger logger = Logger.getLogger(Channel.class.getName());
 
+    /**
+     * Initial size of the window of each pipe, in bytes.
+     *
+     * @see PipeWindow
+     */
     public static final int PIPE_WINDOW_SIZE = Integer.getInteger(Channel.class + ".pipeWindowSize", 128 * 1024);
 
+    /**
+     * The window of a pipe grows from {@link #PIPE_WINDOW_SIZE} up to this size, as long as the link
+     * can carry more and the receiver keeps up. Set this to {@link #PIPE_WINDOW_SIZE} or less to
+     * disable the auto-tuning.
+     */
+    public static final int PIPE_WINDOW_MAX_SIZE = Integer.getInteger(Channel.class.getName() + ".pipeWindowMaxSize", 4 * 1024 * 1024);
+
 //    static {
 //        ConsoleHandler h = new ConsoleHandler();
 //        h.setFormatter(new Formatter(){
@@ -0,0 +1,96 @@
+/*******************************************************************************
+ *
+ * Copyright (c) 2012 Oracle Corporation.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *
+ *
+ *******************************************************************************/
+
+package hudson.remoting;
+
+import java.io.ObjectStreamClass;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * Integer IDs for the class descriptors written by {@link MultiClassLoaderSerializer}, so that the callables
+ * and the results of the same classes sent over and over don't carry the full descriptor every time.
+ *
+ * <p>
+ * This works like {@link MethodIdTable}. The writing side assigns the IDs, and sends the descriptor along with the ID
+ * until a {@link UserRequest} that carried it completes successfully, which tells us that the other side has
+ * {@linkplain #define(int, ObjectStreamClass) read} it. From then on, the ID alone is sent. Descriptors that only
+ * ever appear in responses are thus always sent in full, as nothing tells us that they were read.
+ *
+ * <p>
+ * Each {@link Channel} has one of these, which holds both the IDs we assigned to the classes we write,
+ * and the descriptors the other side defined.
+ *
+ * @see Capability#supportsClassDescriptorCache()
+ */
+final class ClassDescriptorTable {
+    /**
+     * IDs of the classes we write. Keys are held weakly, so as not to hold on to their class loaders.
+     * Guarded by this, as is {@link #iota}.
+     */
+    private final Map<Class<?>, Id> ids = new WeakHashMap<Class<?>, Id>();
+    private int iota;
+
+    /**
+     * Descriptors of the classes the other side writes, by their ID.
+     * Streams only ever read these, so they can be shared.
+     */
+    private final ConcurrentIntMap<ObjectStreamClass> definitions = new ConcurrentIntMap<ObjectStreamClass>();
+
+    /**
+     * ID of one of the classes we write.
+     */
+    static final class Id {
+        final int id;
+        /**
+         * True once we know the other side knows this ID.
+         */
+        volatile boolean known;
+
+        Id(int id) {
+            this.id = id;
+        }
+    }
+
+    /**
+     * Assigns an ID to the given class, unless it already has one.
+     */
+    synchronized Id idOf(Class<?> c) {
+        Id id = ids.get(c);
+        if (id == null) {
+            id = new Id(++iota);
+            ids.put(c, id);
+        }
+        return id;
+    }
+
+    /**
+     * Called when the other side sends a descriptor, along with the ID it assigned to it.
+     */
+    void define(int id, ObjectStreamClass desc) {
+        if (definitions.get(id) == null) {
+            definitions.put(id, desc);
+        }
+    }
+
+    /**
+     * Looks up the descriptor of a class the other side writes.
+     *
+     * @return
+     *      null if the other side never defined this ID.
+     */
+    ObjectStreamClass lookup(int id) {
+        return definitions.get(id);
+    }
+}
@@ -0,0 +1,66 @@
+/*******************************************************************************
+ *
+ * Copyright (c) 2012 Oracle Corporation.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *
+ *
+ *******************************************************************************/
+
+package hudson.remoting;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+
+/**
+ * {@link CommandTransport} that sends every {@link Command} through a single long-lived
+ * {@link ObjectOutputStream}/{@link ObjectInputStream} pair.
+ *
+ * <p>
+ * This is the historical wire format, used when the remote peer doesn't
+ * {@linkplain Capability#supportsFramedCommands() support framing}.
+ */
+final class ClassicCommandTransport extends StreamCommandTransport {
+    private final ObjectOutputStream oos;
+    private final ObjectInputStream ois;
+
+    ClassicCommandTransport(Channel channel, String name, InputStream is, OutputStream os) throws IOException {
+        super(channel, name);
+        this.oos = new ObjectOutputStream(os);
+        oos.flush();    // make sure that stream header is sent to the other end. avoids dead-lock
+        this.ois = new ObjectInputStream(is);
+    }
+
+    void write(Command cmd, boolean last) throws IOException {
+        oos.writeObject(cmd);
+        oos.flush();        // make sure the command reaches the other end.
+
+        // unless this is the last command, have OOS and remote OIS forget all the objects we sent
+        // in this command. Otherwise it'll keep objects in memory unnecessarily.
+        // However, this may fail if the command was the close, because that's supposed to be the last command
+        // ever sent. See the comment from jglick on HUDSON-3077 about what happens if we do oos.reset().
+        if (!last) {
+            oos.reset();
+        }
+    }
+
+    Command read() throws IOException, ClassNotFoundException {
+        return (Command) ois.readObject();
+    }
+
+    void closeWrite() throws IOException {
+        oos.close();
+    }
+
+    void closeRead() throws IOException {
+        ois.close();
+    }
+}
@@ -16,6 +16,8 @@
 
 package hudson.remoting;
 
+import java.io.DataOutputStream;
+import java.io.IOException;
 import java.io.Serializable;
 
 /**
@@ -64,6 +66,41 @@ abstract class Command implements Serializable {
      */
     protected abstract void execute(Channel channel);
 
+    /**
+     * Identifies the compact encoding of this command used by {@link FramedCommandTransport}.
+     *
+     * @return
+     *      {@link FramedCommandTransport#TAG_SERIALIZED} to send this command through Java serialization,
+     *      which is what most commands do. Commands that return anything else, even only some of the time,
+     *      need to override {@link #writeFrame(DataOutputStream)}, and {@link FramedCommandTransport} needs
+     *      to know how to read them back.
+     */
+    /*package*/ byte getFrameTag() {
+        return FramedCommandTransport.TAG_SERIALIZED;
+    }
+
+    /**
+     * Writes the compact encoding of this command.
+     * {@link #createdAt} is not sent in this form.
+     *
+     * <p>
+     * Only called when {@link #getFrameTag()} returns something other than
+     * {@link FramedCommandTransport#TAG_SERIALIZED}, as {@link FramedCommandTransport} serializes the rest itself.
+     */
+    /*package*/ void writeFrame(DataOutputStream out) throws IOException {
+        throw new UnsupportedOperationException(getClass().getName() + " has no compact encoding");
+    }
+
+    /**
+     * Size of what {@link #writeFrame(DataOutputStream)} writes, if it's known upfront,
+     * so that large payloads are written into a buffer of the right size to begin with.
+     *
+     * @return -1 if unknown.
+     */
+    /*package*/ int getFrameSize() {
+        return -1;
+    }
+
     private static final long serialVersionUID = 1L;
 
     private final class Source extends Exception {
@@ -0,0 +1,68 @@
+/*******************************************************************************
+ *
+ * Copyright (c) 2012 Oracle Corporation.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *
+ *
+ *******************************************************************************/
+
+package hudson.remoting;
+
+import java.io.IOException;
+
+/**
+ * Lower-most layer of {@link Channel} that moves {@link Command}s over the wire.
+ *
+ * <p>
+ * {@link Channel} picks the implementation once the {@link Capability} of the
+ * remote peer is known, so that two different versions of <tt>remoting.jar</tt>
+ * agree on the wire format.
+ *
+ * @see StreamCommandTransport
+ * @see NioCommandTransport
+ */
+abstract class CommandTransport {
+    /**
+     * Sends a command to the remote peer.
+     *
+     * <p>
+     * Called with {@link Channel#current()} set. Unless {@link #isConcurrent()} returns true,
+     * this is also called with the {@link Channel} lock held.
+     *
+     * @param last
+     *      True if this is the last command to be sent over this transport (that is, the close command.)
+     */
+    abstract void write(Command cmd, boolean last) throws IOException;
+
+    /**
+     * True if {@link #write(Command, boolean)} can be called from multiple threads at once.
+     * The order in which concurrent writes are sent is then the order in which they got into this method.
+     */
+    boolean isConcurrent() {
+        return false;
+    }
+
+    /**
+     * Starts delivering the received commands to {@link Channel#receive(Command)}, in the order they arrive,
+     * followed by a call to {@link Channel#onReadEnd(IOException)} once no more will arrive.
+     */
+    abstract void start() throws IOException;
+
+    /**
+     * Closes the sending side. No further {@link #write(Command, boolean)} will be made.
+     */
+    abstract void closeWrite() throws IOException;
+
+    /**
+     * Called when the channel is terminated abnormally, to release any thread this transport
+     * is running on its own. No further {@link #write(Command, boolean)} will be made.
+     */
+    void terminate() {
+    }
+}
@@ -0,0 +1,102 @@
+/*******************************************************************************
+ *
+ * Copyright (c) 2012 Oracle Corporation.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *
+ *
+ *******************************************************************************/
+
+package hudson.remoting;
+
+import java.util.Locale;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.Deflater;
+
+/**
+ * How {@link Channel} compresses the frames it sends.
+ *
+ * <p>
+ * Each frame is compressed on its own, so that the commands can still be sent and executed out of order, and it's
+ * sent as is unless it shrinks, which saves the other side the trouble of inflating the frames that carry
+ * already-compressed data, such as archives streamed through a {@link Pipe}. The other side has to
+ * {@linkplain Capability#supportsFrameCompression() support compressed frames}, but each side decides on its own
+ * whether to compress what it sends, so on a slow link only the side that sends the bulk of the data needs to.
+ *
+ * <p>
+ * The default is set by the <tt>hudson.remoting.Compression</tt> system property,
+ * which is either "none" (the default), "fast", or "deflate".
+ *
+ * @see Channel#setCompression(Compression)
+ * @see Channel#compressionInputBytes
+ */
+public enum Compression {
+    /**
+     * Frames are sent as is.
+     */
+    NONE(Deflater.NO_COMPRESSION),
+    /**
+     * Deflate at its fastest level, which only looks for recent repeats, much like the LZ family of codecs.
+     * This costs little CPU, and suits most links.
+     */
+    FAST(Deflater.BEST_SPEED),
+    /**
+     * Deflate at its default level, for slow links where every byte counts.
+     */
+    DEFLATE(Deflater.DEFAULT_COMPRESSION);
+
+    /**
+     * The {@link Deflater} level.
+     */
+    final int level;
+
+    Compression(int level) {
+        this.level = level;
+    }
+
+    /**
+     * Parses the value of the system property.
+     */
+    /*package*/ static Compression parse(String s) {
+        if (s == null) {
+            return NONE;
+        }
+        try {
+            return valueOf(s.toUpperCase(Locale.ENGLISH));
+        } catch (IllegalArgumentException e) {
+            LOGGER.log(Level.WARNING, "Invalid compression: " + s, e);
+            return NONE;
+        }
+    }
+
+    private static final Logger LOGGER = Logger.getLogger(Compression.class.getName());
+
+    /**
+     * The compression of newly created channels.
+     */
+    private static volatile Compression DEFAULT = parse(System.getProperty(Compression.class.getName()));
+
+    /**
+     * Gets the compression of newly created channels.
+     * Unless {@linkplain #setDefault(Compression) changed}, this comes from the system property.
+     */
+    public static Compression getDefault() {
+        return DEFAULT;
+    }
+
+    /**
+     * Changes the compression of the channels created from now on.
+     */
+    public static void setDefault(Compression compression) {
+        if (compression == null) {
+            throw new IllegalArgumentException();
+        }
+        DEFAULT = compression;
+    }
+}
@@ -0,0 +1,257 @@
+/*******************************************************************************
+ *
+ * Copyright (c) 2012 Oracle Corporation.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *
+ *
+ *******************************************************************************/
+
+package hudson.remoting;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Concurrent map from <tt>int</tt> to objects, for the IDs that {@link Channel} hands out
+ * (object IDs, request IDs, ...)
+ *
+ * <p>
+ * Keys are kept unboxed in open-addressing tables, one per segment. {@link #get(int)} takes no lock,
+ * while updates lock only the segment that the key falls into.
+ *
+ * <p>
+ * A slot is claimed by writing the key and then publishing the value through a volatile write,
+ * so a reader that sees the value also sees the key. Removal leaves a tombstone that keeps the key
+ * until the segment is rehashed, which means a claimed slot never changes its key, and readers can
+ * probe without synchronization.
+ */
+final class ConcurrentIntMap<V> {
+    private final Segment<V>[] segments;
+    private final int segmentShift;
+
+    ConcurrentIntMap() {
+        this(16);
+    }
+
+    /**
+     * @param concurrency Expected number of concurrent writers. Rounded up to a power of 2.
+     */
+    // Java can't create a generic array, but every element is a Segment<V>
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    ConcurrentIntMap(int concurrency) {
+        int n = 1, shift = 0;
+        while (n < concurrency) {
+            n <<= 1;
+            shift++;
+        }
+        segments = new Segment[n];
+        for (int i = 0; i < n; i++) {
+            segments[i] = new Segment<V>();
+        }
+        segmentShift = 32 - shift;
+    }
+
+    /**
+     * Spreads consecutive IDs evenly over the segments and the slots.
+     */
+    private static int hash(int key) {
+        int h = key * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    private Segment<V> segmentFor(int h) {
+        return segments.length == 1 ? segments[0] : segments[h >>> segmentShift];
+    }
+
+    public V get(int key) {
+        int h = hash(key);
+        return segmentFor(h).get(key, h);
+    }
+
+    /**
+     * @return the value previously associated with the key, or null.
+     */
+    public V put(int key, V value) {
+        if (value == null) {
+            throw new NullPointerException();
+        }
+        int h = hash(key);
+        return segmentFor(h).put(key, h, value);
+    }
+
+    /**
+     * @return the value that was associated with the key, or null.
+     */
+    public V remove(int key) {
+        int h = hash(key);
+        return segmentFor(h).remove(key, h);
+    }
+
+    public int size() {
+        int sz = 0;
+        for (Segment<V> s : segments) {
+            sz += s.size;
+        }
+        return sz;
+    }
+
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    /**
+     * Returns a snapshot of the values.
+     */
+    public List<V> values() {
+        List<V> r = new ArrayList<V>();
+        for (Segment<V> s : segments) {
+            s.values(r);
+        }
+        return r;
+    }
+
+    public void clear() {
+        for (Segment<V> s : segments) {
+            s.clear();
+        }
+    }
+
+    private static final class Table {
+        final int[] keys;
+        /**
+         * null for a free slot, {@link #TOMBSTONE} for a removed entry, or else the value.
+         */
+        final AtomicReferenceArray<Object> values;
+        final int mask;
+
+        Table(int capacity) {
+            keys = new int[capacity];
+            values = new AtomicReferenceArray<Object>(capacity);
+            mask = capacity - 1;
+        }
+    }
+
+    private static final class Segment<V> {
+        private volatile Table table = new Table(INITIAL_CAPACITY);
+        /**
+         * Number of live entries. Guarded by this.
+         */
+        private volatile int size;
+        /**
+         * Number of claimed slots, live or removed. Guarded by this.
+         */
+        private int used;
+
+        @SuppressWarnings("unchecked")
+        V get(int key, int h) {
+            Table t = table;
+            for (int i = h & t.mask; ; i = (i + 1) & t.mask) {
+                Object v = t.values.get(i);
+                if (v == null) {
+                    return null;
+                }
+                if (t.keys[i] == key) {
+                    return v == TOMBSTONE ? null : (V) v;
+                }
+            }
+        }
+
+        @SuppressWarnings("unchecked")
+        synchronized V put(int key, int h, V value) {
+            Table t = table;
+            for (int i = h & t.mask; ; i = (i + 1) & t.mask) {
+                Object v = t.values.get(i);
+                if (v == null) {
+                    t.keys[i] = key;
+                    t.values.set(i, value);
+                    size++;
+                    if (++used * 2 > t.keys.length) {
+                        rehash();
+                    }
+                    return null;
+                }
+                if (t.keys[i] == key) {
+                    t.values.set(i, value);
+                    if (v == TOMBSTONE) {
+                        size++;
+                        return null;
+                    }
+                    return (V) v;
+                }
+            }
+        }
+
+        @SuppressWarnings("unchecked")
+        synchronized V remove(int key, int h) {
+            Table t = table;
+            for (int i = h & t.mask; ; i = (i + 1) & t.mask) {
+                Object v = t.values.get(i);
+                if (v == null) {
+                    return null;
+                }
+                if (t.keys[i] == key) {
+                    if (v == TOMBSTONE) {
+                        return null;
+                    }
+                    t.values.set(i, TOMBSTONE);
+                    size--;
+                    return (V) v;
+                }
+            }
+        }
+
+        /**
+         * Copies the live entries into a new table, sized for the current number of entries.
+         * Readers keep using the old table until they see the new one, which is complete by then.
+         */
+        private void rehash() {
+            Table old = table;
+            int capacity = INITIAL_CAPACITY;
+            while (capacity < size * 4) {
+                capacity <<= 1;
+            }
+            Table t = new Table(capacity);
+            for (int j = 0; j < old.keys.length; j++) {
+                Object v = old.values.get(j);
+                if (v != null && v != TOMBSTONE) {
+                    int i = hash(old.keys[j]) & t.mask;
+                    while (t.values.get(i) != null) {
+                        i = (i + 1) & t.mask;
+                    }
+                    t.keys[i] = old.keys[j];
+                    t.values.set(i, v);
+                }
+            }
+            used = size;
+            table = t;
+        }
+
+        @SuppressWarnings("unchecked")
+        void values(List<V> r) {
+            Table t = table;
+            for (int i = 0; i < t.keys.length; i++) {
+                Object v = t.values.get(i);
+                if (v != null && v != TOMBSTONE) {
+                    r.add((V) v);
+                }
+            }
+        }
+
+        synchronized void clear() {
+            table = new Table(INITIAL_CAPACITY);
+            size = 0;
+            used = 0;
+        }
+    }
+
+    private static final Object TOMBSTONE = new Object();
+
+    private static final int INITIAL_CAPACITY = 16;
+}
@@ -18,24 +18,59 @@ package hudson.remoting;
 
 import java.io.IOException;
 import java.io.PrintWriter;
-import java.util.HashMap;
-import java.util.Map;
 import java.util.ArrayList;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Manages unique ID for exported objects, and allows look-up from IDs.
  *
+ * <p>
+ * {@link #get(int)} is on the path of every remote method invocation and every pipe chunk,
+ * so it doesn't take any lock. Exports and unexports only contend on the segment of the
+ * {@link ConcurrentIntMap} they touch.
+ *
  * @author Kohsuke Kawaguchi
  */
 final class ExportTable<T> {
-    private final Map<Integer,Entry> table = new HashMap<Integer,Entry>();
-    private final Map<T,Entry> reverse = new HashMap<T,Entry>();
+    private final ConcurrentIntMap<Entry> table = new ConcurrentIntMap<Entry>();
+    /**
+     * Uses {@link Object#equals(Object)}, not the identity, since some exported objects are
+     * wrappers that get recreated for every export (such as {@link RemoteClassLoader.ClassLoaderProxy}),
+     * and those need to map to the same ID.
+     */
+    private final ConcurrentMap<T,Entry> reverse = new ConcurrentHashMap<T,Entry>();
     /**
      * {@link ExportList}s which are actively recording the current
      * export operation.
      */
     private final ThreadLocal<ExportList> lists = new ThreadLocal<ExportList>();
 
+    /**
+     * Decides which exports get {@link Entry#allocationTrace}.
+     */
+    private volatile ExportTracePolicy tracePolicy = ExportTracePolicy.getDefault();
+
+    /**
+     * Export statistics by the class name of the exported object.
+     */
+    private final ConcurrentMap<String,TypeStats> stats = new ConcurrentHashMap<String,TypeStats>();
+
+    private static final class TypeStats {
+        /**
+         * Number of objects that were given an ID.
+         */
+        final AtomicLong exported = new AtomicLong();
+        /**
+         * Number of objects that are exported right now.
+         */
+        final AtomicInteger live = new AtomicInteger();
+    }
+
     /**
      * Information about one exporetd object.
      */
@@ -43,37 +78,42 @@ final class ExportTable<T> {
         final int id;
         final T object;
         /**
-         * Where was this object first exported?
+         * Where was this object first exported? Null if {@link ExportTracePolicy} decided not to record it.
          */
         final Exception allocationTrace;
+        final TypeStats typeStats;
         /**
-         * Current reference count.
-         * Access to {@link ExportTable} is guarded by synchronized block,
-         * so accessing this field requires no further synchronization.
+         * Current reference count. Once it drops to 0, the entry is dead and can't be revived.
          */
-        private int referenceCount;
+        private final AtomicInteger referenceCount = new AtomicInteger(1);
 
         Entry(T object) {
-            this.id = iota++;
+            this.id = iota.getAndIncrement();
             this.object = object;
-            this.allocationTrace = new Exception();
-            // force the computation of the stack trace in a Java friendly data structure,
-            // so that the call stack can be seen from the heap dump after the fact. 
-            allocationTrace.getStackTrace();
-            addRef();
-
-            table.put(id,this);
-            reverse.put(object,this);
+            this.allocationTrace = tracePolicy.trace(object);
+            this.typeStats = statsOf(object.getClass());
         }
 
-        void addRef() {
-            referenceCount++;
+        /**
+         * @return false if this entry is already released.
+         */
+        boolean addRef() {
+            while (true) {
+                int c = referenceCount.get();
+                if (c == 0) {
+                    return false;
+                }
+                if (referenceCount.compareAndSet(c, c + 1)) {
+                    return true;
+                }
+            }
         }
 
         void release() {
-            if(--referenceCount==0) {
+            if(referenceCount.decrementAndGet()==0) {
                 table.remove(id);
-                reverse.remove(object);
+                reverse.remove(object,this);
+                typeStats.live.decrementAndGet();
             }
         }
     }
@@ -91,10 +131,8 @@ final class ExportTable<T> {
             lists.set(this);
         }
         void release() {
-            synchronized(ExportTable.this) {
-                for (Entry e : this)
-                    e.release();
-            }
+            for (Entry e : this)
+                e.release();
         }
         void stopRecording() {
             lists.set(old);
@@ -104,7 +142,7 @@ final class ExportTable<T> {
     /**
      * Unique ID generator.
      */
-    private int iota = 1;
+    private final AtomicInteger iota = new AtomicInteger(1);
 
     /**
      * Starts the recording of the export operations
@@ -133,7 +171,7 @@ final class ExportTable<T> {
      *      The assigned 'object ID'. If the object is already exported,
      *      it will return the ID already assigned to it.
      */
-    public synchronized int export(T t) {
+    public int export(T t) {
         return export(t,true);
     }
 
@@ -142,14 +180,32 @@ final class ExportTable<T> {
      *      If false, listener will not be notified. This is used to
      *      create an export that won't get unexported when the call returns.
      */
-    public synchronized int export(T t, boolean notifyListener) {
+    public int export(T t, boolean notifyListener) {
         if(t==null)    return 0;   // bootstrap classloader
 
-        Entry e = reverse.get(t);
-        if(e==null)
-            e = new Entry(t);
-        else
-            e.addRef();
+        Entry e;
+        while (true) {
+            e = reverse.get(t);
+            if (e == null) {
+                e = new Entry(t);
+                // make the ID resolvable before anyone else can find it
+                table.put(e.id, e);
+                Entry prev = reverse.putIfAbsent(t, e);
+                if (prev == null) {
+                    e.typeStats.exported.incrementAndGet();
+                    e.typeStats.live.incrementAndGet();
+                    break;
+                }
+                // lost the race with another thread exporting the same object
+                table.remove(e.id);
+                e = prev;
+            }
+            if (e.addRef()) {
+                break;
+            }
+            // the entry is being released concurrently. help remove it and try again
+            reverse.remove(t, e);
+        }
 
         if(notifyListener) {
             ExportList l = lists.get();
@@ -159,7 +215,57 @@ final class ExportTable<T> {
         return e.id;
     }
 
-    public synchronized T get(int id) {
+    private TypeStats statsOf(Class<?> type) {
+        TypeStats s = stats.get(type.getName());
+        if (s == null) {
+            TypeStats n = new TypeStats();
+            s = stats.putIfAbsent(type.getName(), n);
+            if (s == null) {
+                s = n;
+            }
+        }
+        return s;
+    }
+
+    public void setTracePolicy(ExportTracePolicy tracePolicy) {
+        this.tracePolicy = tracePolicy;
+    }
+
+    /**
+     * Number of objects exported so far, by their class names.
+     */
+    public Map<String,Long> getExportCounts() {
+        Map<String,Long> r = new TreeMap<String,Long>();
+        for (Map.Entry<String,TypeStats> e : stats.entrySet()) {
+            r.put(e.getKey(), e.getValue().exported.get());
+        }
+        return r;
+    }
+
+    /**
+     * Number of objects currently exported, by their class names.
+     */
+    public Map<String,Integer> getLiveCounts() {
+        Map<String,Integer> r = new TreeMap<String,Integer>();
+        for (Map.Entry<String,TypeStats> e : stats.entrySet()) {
+            int n = e.getValue().live.get();
+            if (n > 0) {
+                r.put(e.getKey(), n);
+            }
+        }
+        return r;
+    }
+
+    /**
+     * Resets the numbers reported by {@link #getExportCounts()}.
+     */
+    public void resetExportCounts() {
+        for (TypeStats s : stats.values()) {
+            s.exported.set(0);
+        }
+    }
+
+    public T get(int id) {
         Entry e = table.get(id);
         if(e!=null) return e.object;
         else        return null;
@@ -168,7 +274,7 @@ final class ExportTable<T> {
     /**
      * Removes the exported object from the table.
      */
-    public synchronized void unexport(T t) {
+    public void unexport(T t) {
         if(t==null)     return;
         Entry e = reverse.get(t);
         if(e==null)    return; // presumably already unexported
@@ -178,7 +284,7 @@ final class ExportTable<T> {
     /**
      * Removes the exported object for the specified oid from the table.
      */
-    public synchronized void unexportByOid(Integer oid) {
+    public void unexportByOid(Integer oid) {
         if(oid==null)     return;
         Entry e = table.get(oid);
         if(e==null)    return; // presumably already unexported
@@ -188,10 +294,14 @@ final class ExportTable<T> {
     /**
      * Dumps the contents of the table to a file.
      */
-    public synchronized void dump(PrintWriter w) throws IOException {
+    public void dump(PrintWriter w) throws IOException {
         for (Entry e : table.values()) {
-            w.printf("#%d (ref.%d) : %s\n", e.id, e.referenceCount, e.object);
-            e.allocationTrace.printStackTrace(w);
+            w.printf("#%d (ref.%d) : %s\n", e.id, e.referenceCount.get(), e.object);
+            if (e.allocationTrace != null) {
+                e.allocationTrace.printStackTrace(w);
+            } else {
+                w.println("  (export trace not recorded; see ExportTracePolicy)");
+            }
         }
     }
 }
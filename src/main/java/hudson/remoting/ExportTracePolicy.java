@@ -0,0 +1,145 @@
+/*******************************************************************************
+ *
+ * Copyright (c) 2012 Oracle Corporation.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *
+ *
+ *******************************************************************************/
+
+package hudson.remoting;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Decides whether {@link Channel} remembers where each exported object was exported from.
+ *
+ * <p>
+ * The trace shows up in {@link Channel#dumpExportTable(java.io.PrintWriter)}, and in heap dumps,
+ * which helps tracking down leaked exports. But walking and keeping the stack of every export
+ * isn't free, so busy channels may want to record only some of them, or none at all.
+ *
+ * <p>
+ * The default policy is set by the <tt>hudson.remoting.ExportTracePolicy</tt> system property,
+ * which is either "full" (the default), "off", or a number N to record one in N exports.
+ *
+ * @see Channel#setExportTracePolicy(ExportTracePolicy)
+ */
+public abstract class ExportTracePolicy {
+    /**
+     * Called whenever an object gets a new object ID.
+     *
+     * @param o The object being exported.
+     * @return The trace to keep as long as the object stays exported, or null to keep nothing.
+     */
+    public abstract Exception trace(Object o);
+
+    /**
+     * Records nothing.
+     */
+    public static final ExportTracePolicy OFF = new ExportTracePolicy() {
+        public Exception trace(Object o) {
+            return null;
+        }
+
+        @Override
+        public String toString() {
+            return "off";
+        }
+    };
+
+    /**
+     * Records every export.
+     */
+    public static final ExportTracePolicy FULL = new ExportTracePolicy() {
+        public Exception trace(Object o) {
+            Exception e = new Exception();
+            // force the computation of the stack trace in a Java friendly data structure,
+            // so that the call stack can be seen from the heap dump after the fact.
+            e.getStackTrace();
+            return e;
+        }
+
+        @Override
+        public String toString() {
+            return "full";
+        }
+    };
+
+    /**
+     * Records one in every <tt>n</tt> exports.
+     */
+    public static ExportTracePolicy sampled(final int n) {
+        if (n < 1) {
+            throw new IllegalArgumentException("n=" + n);
+        }
+        if (n == 1) {
+            return FULL;
+        }
+        return new ExportTracePolicy() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            public Exception trace(Object o) {
+                if ((count.getAndIncrement() & Integer.MAX_VALUE) % n != 0) {
+                    return null;
+                }
+                return FULL.trace(o);
+            }
+
+            @Override
+            public String toString() {
+                return "1 in " + n;
+            }
+        };
+    }
+
+    /**
+     * Parses the value of the system property.
+     */
+    /*package*/ static ExportTracePolicy parse(String s) {
+        if (s == null || s.equals("full")) {
+            return FULL;
+        }
+        if (s.equals("off")) {
+            return OFF;
+        }
+        try {
+            return sampled(Integer.parseInt(s));
+        } catch (IllegalArgumentException e) {
+            LOGGER.log(Level.WARNING, "Invalid export trace policy: " + s, e);
+            return FULL;
+        }
+    }
+
+    private static final Logger LOGGER = Logger.getLogger(ExportTracePolicy.class.getName());
+
+    /**
+     * The policy of newly created channels.
+     */
+    private static volatile ExportTracePolicy DEFAULT = parse(System.getProperty(ExportTracePolicy.class.getName()));
+
+    /**
+     * Gets the policy of newly created channels.
+     * Unless {@linkplain #setDefault(ExportTracePolicy) changed}, this comes from the system property.
+     */
+    public static ExportTracePolicy getDefault() {
+        return DEFAULT;
+    }
+
+    /**
+     * Changes the policy of the channels created from now on.
+     */
+    public static void setDefault(ExportTracePolicy policy) {
+        if (policy == null) {
+            throw new IllegalArgumentException();
+        }
+        DEFAULT = policy;
+    }
+}
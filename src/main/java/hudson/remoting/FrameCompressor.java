@@ -0,0 +1,179 @@
+/*******************************************************************************
+ *
+ * Copyright (c) 2012 Oracle Corporation.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *
+ *
+ *******************************************************************************/
+
+package hudson.remoting;
+
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Compresses and inflates the payloads of the frames of a {@link Channel}, and keeps the statistics.
+ *
+ * <p>
+ * The frames of a given tag tend to compress alike, so when a frame doesn't shrink, the next few frames
+ * of the same tag are sent as is without trying, and the more times in a row that happens, the longer
+ * the compressor backs off. This keeps the cost of a pipe that carries already-compressed data down to
+ * an occasional attempt.
+ *
+ * @see Compression
+ * @see FramedCommandTransport#COMPRESSED
+ */
+final class FrameCompressor {
+    private final Channel channel;
+
+    /**
+     * True if the other side can inflate the frames.
+     */
+    private final boolean enabled;
+
+    private volatile Compression compression;
+
+    /**
+     * Number of frames to send as is before trying again, per tag.
+     * Races only cost an extra attempt or skip, so these aren't synchronized.
+     */
+    private final int[] skips = new int[FramedCommandTransport.COMPRESSED];
+
+    /**
+     * How many frames were skipped the last time, per tag.
+     */
+    private final int[] backoffs = new int[FramedCommandTransport.COMPRESSED];
+
+    FrameCompressor(Channel channel, boolean enabled, Compression compression) {
+        this.channel = channel;
+        this.enabled = enabled;
+        this.compression = compression;
+    }
+
+    Compression getCompression() {
+        return compression;
+    }
+
+    void setCompression(Compression compression) {
+        this.compression = compression;
+    }
+
+    /**
+     * Should we try to compress a frame of this tag and payload length?
+     */
+    boolean shouldCompress(byte tag, int len) {
+        if (!enabled || compression == Compression.NONE || len < MIN_SIZE) {
+            return false;
+        }
+        if (skips[tag] > 0) {
+            skips[tag]--;
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Deflates the payload into the given output range, unless that doesn't fit it.
+     *
+     * @return
+     *      Length of the deflated data, or -1 if it didn't fit, in which case the frame should be sent as is.
+     */
+    int compress(byte tag, byte[] in, int offset, int len, byte[] out, int outOffset, int outLen) {
+        long start = System.nanoTime();
+        Deflater d = DEFLATERS.poll();
+        if (d == null) {
+            d = new Deflater();
+        }
+        int n = 0;
+        boolean fit;
+        try {
+            d.setLevel(compression.level);
+            d.setInput(in, offset, len);
+            d.finish();
+            while (!d.finished() && n < outLen) {
+                n += d.deflate(out, outOffset + n, outLen - n);
+            }
+            fit = d.finished();
+        } finally {
+            d.reset();
+            DEFLATERS.offer(d);
+        }
+        channel.compressionTime.addAndGet(System.nanoTime() - start);
+
+        if (fit) {
+            backoffs[tag] = 0;
+            channel.compressionInputBytes.addAndGet(len);
+            channel.compressionOutputBytes.addAndGet(n);
+            return n;
+        } else {
+            int b = Math.min(Math.max(backoffs[tag] * 2, 1), MAX_BACKOFF);
+            backoffs[tag] = b;
+            skips[tag] = b;
+            channel.compressionSkipCount.incrementAndGet();
+            return -1;
+        }
+    }
+
+    /**
+     * Inflates what {@link #compress(byte, byte[], int, int, byte[], int, int)} produced.
+     *
+     * @param outLen
+     *      The exact length of the original payload.
+     */
+    void inflate(byte[] in, int offset, int len, byte[] out, int outLen) throws IOException {
+        long start = System.nanoTime();
+        Inflater inf = INFLATERS.poll();
+        if (inf == null) {
+            inf = new Inflater();
+        }
+        try {
+            inf.setInput(in, offset, len);
+            int n = 0;
+            while (n < outLen) {
+                int r = inf.inflate(out, n, outLen - n);
+                if (r == 0) {
+                    break;  // truncated, or longer than it should be
+                }
+                n += r;
+            }
+            if (n != outLen || !inf.finished()) {
+                throw new StreamCorruptedException("Compressed frame doesn't inflate to " + outLen + " bytes");
+            }
+        } catch (DataFormatException e) {
+            throw (IOException) new StreamCorruptedException("Corrupt compressed frame").initCause(e);
+        } finally {
+            inf.reset();
+            INFLATERS.offer(inf);
+        }
+        channel.decompressionTime.addAndGet(System.nanoTime() - start);
+    }
+
+    /**
+     * Frames smaller than this aren't worth compressing.
+     */
+    static final int MIN_SIZE = 256;
+
+    /**
+     * Most frames skipped in a row between the attempts.
+     */
+    private static final int MAX_BACKOFF = 64;
+
+    /**
+     * Idle {@link Deflater}s and {@link Inflater}s, shared by all the channels, as they hold on to a good deal
+     * of native memory that isn't worth allocating per frame. There are only ever as many as the frames
+     * compressed at once.
+     */
+    private static final Queue<Deflater> DEFLATERS = new ConcurrentLinkedQueue<Deflater>();
+    private static final Queue<Inflater> INFLATERS = new ConcurrentLinkedQueue<Inflater>();
+}
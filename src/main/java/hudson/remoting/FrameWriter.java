@@ -0,0 +1,249 @@
+/*******************************************************************************
+ *
+ * Copyright (c) 2012 Oracle Corporation.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *
+ *
+ *******************************************************************************/
+
+package hudson.remoting;
+
+import hudson.remoting.FramedCommandTransport.Frame;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Thread that drains the frames queued by {@link FramedCommandTransport} to the stream.
+ *
+ * <p>
+ * Senders encode their {@link Command}s on their own threads, and just append the resulting
+ * {@link Frame} to a lock-free queue. This thread writes whatever has been queued so far
+ * and flushes once per batch, instead of once per command, so busy channels
+ * issue far fewer system calls. Frames are written in the order they are queued, which
+ * is the order in which commands are executed on the remote side.
+ *
+ * <p>
+ * To avoid unbounded memory use when the other side reads slower than we write,
+ * senders block once more than {@link #MAX_QUEUED_BYTES} are waiting to be written.
+ */
+final class FrameWriter extends Thread {
+    private final Channel channel;
+    private final OutputStream out;
+
+    private final Queue<Frame> queue = new ConcurrentLinkedQueue<Frame>();
+    /**
+     * Total size of the frames in {@link #queue}. Also used as the lock for the senders
+     * that wait for the queue to drain.
+     */
+    private final AtomicLong queuedBytes = new AtomicLong();
+
+    /**
+     * True while this thread is parked, waiting for frames to arrive.
+     * Senders only need to wake us up when this flag is set.
+     */
+    private volatile boolean idle;
+
+    /**
+     * Set once the last frame has been written, or when we gave up.
+     */
+    private volatile boolean finished;
+
+    /**
+     * Rejects the frames that would otherwise be queued behind the last one.
+     */
+    private final LastFrameGate gate = new LastFrameGate();
+
+    /**
+     * If non-null, writing to the stream failed and no further frame can be sent.
+     */
+    private volatile IOException failure;
+
+    FrameWriter(Channel channel, String name, OutputStream out) {
+        super("Channel writer thread: " + name);
+        this.channel = channel;
+        this.out = out;
+    }
+
+    /**
+     * Queues a frame for writing.
+     */
+    void enqueue(Frame f) throws IOException {
+        if (failure != null) {
+            throw new ChannelClosedException(failure);
+        }
+        if (finished || !gate.enter(f.last)) {
+            f.recycle();
+            throw new ChannelClosedException(failure);
+        }
+        try {
+            queue.offer(f);
+        } finally {
+            gate.leave(f.last);
+        }
+        long size = queuedBytes.addAndGet(f.size());
+        if (idle) {
+            LockSupport.unpark(this);
+        }
+        if (size > MAX_QUEUED_BYTES) {
+            awaitDrain();
+        }
+    }
+
+    /**
+     * Blocks until the backlog drops below {@link #MAX_QUEUED_BYTES}.
+     */
+    private void awaitDrain() throws IOException {
+        synchronized (queuedBytes) {
+            try {
+                while (queuedBytes.get() > MAX_QUEUED_BYTES && !finished) {
+                    queuedBytes.wait();
+                }
+            } catch (InterruptedException e) {
+                // the frame is already queued, so the command will be sent anyway.
+                Thread.currentThread().interrupt();
+            }
+        }
+        if (failure != null) {
+            throw new ChannelClosedException(failure);
+        }
+    }
+
+    /**
+     * Waits until the last frame is written.
+     *
+     * <p>
+     * This doesn't join the thread, because it can still be on its way to
+     * {@link Channel#terminate(IOException)}, which needs the lock held by our caller.
+     */
+    void awaitTermination() throws IOException {
+        synchronized (queuedBytes) {
+            try {
+                while (!finished) {
+                    queuedBytes.wait();
+                }
+            } catch (InterruptedException e) {
+                throw (IOException) new InterruptedIOException().initCause(e);
+            }
+        }
+    }
+
+    /**
+     * Stops writing, even if there are frames still queued.
+     * Used when the channel is terminated.
+     */
+    void abort() {
+        finished = true;
+        LockSupport.unpark(this);
+        wakeUpSenders();
+    }
+
+    @Override
+    public void run() {
+        int batch = 0;
+        boolean lingered = false;
+        try {
+            while (!finished) {
+                Frame f = queue.poll();
+                if (f == null) {
+                    if (batch > 0 && !lingered && LINGER_NANOS > 0) {
+                        // give the other senders a chance to join this batch
+                        lingered = true;
+                        park(LINGER_NANOS);
+                        continue;
+                    }
+                    if (batch > 0) {
+                        flush(batch);
+                        batch = 0;
+                        lingered = false;
+                        continue;
+                    }
+                    park(0);
+                    continue;
+                }
+
+                f.writeTo(out);
+                f.recycle();
+                batch++;
+                long size = queuedBytes.addAndGet(-f.size());
+                if (size <= MAX_QUEUED_BYTES && size + f.size() > MAX_QUEUED_BYTES) {
+                    wakeUpSenders();
+                }
+
+                if (f.last) {
+                    flush(batch);
+                    finished = true;
+                    wakeUpSenders();
+                } else if (batch >= MAX_BATCH_SIZE) {
+                    flush(batch);
+                    batch = 0;
+                    lingered = false;
+                }
+            }
+        } catch (IOException e) {
+            failure = e;
+            finished = true;
+            wakeUpSenders();
+            LOGGER.log(Level.SEVERE, "Failed to write to channel " + getName(), e);
+            channel.terminate(e);
+        }
+    }
+
+    private void park(long nanos) {
+        idle = true;
+        try {
+            // re-check after announcing that we are idle, or else we might miss a wake up
+            if (queue.isEmpty() && !finished) {
+                if (nanos > 0) {
+                    LockSupport.parkNanos(this, nanos);
+                } else {
+                    LockSupport.park(this);
+                }
+            }
+        } finally {
+            idle = false;
+        }
+    }
+
+    private void flush(int batch) throws IOException {
+        out.flush();
+        channel.recordSendBatch(batch);
+    }
+
+    private void wakeUpSenders() {
+        synchronized (queuedBytes) {
+            queuedBytes.notifyAll();
+        }
+    }
+
+    private static final Logger LOGGER = Logger.getLogger(FrameWriter.class.getName());
+
+    /**
+     * Maximum number of commands written before the stream is flushed.
+     */
+    static final int MAX_BATCH_SIZE = Integer.getInteger(Channel.class.getName() + ".sendBatchSize", 64);
+
+    /**
+     * Once the queue runs dry, wait this many microseconds for more commands to arrive before flushing.
+     * 0 to flush right away, which favors latency over fewer system calls.
+     */
+    static final long LINGER_NANOS = Long.getLong(Channel.class.getName() + ".sendLingerMicros", 0) * 1000;
+
+    /**
+     * Senders block when more than this many bytes are waiting to be written.
+     */
+    static final long MAX_QUEUED_BYTES = Long.getLong(Channel.class.getName() + ".sendQueueSize", 4 * 1024 * 1024);
+}
@@ -0,0 +1,360 @@
+/*******************************************************************************
+ *
+ * Copyright (c) 2012 Oracle Corporation.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *
+ *
+ *******************************************************************************/
+
+package hudson.remoting;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.io.StreamCorruptedException;
+import java.nio.ByteBuffer;
+
+/**
+ * {@link StreamCommandTransport} that sends each {@link Command} as a length-prefixed frame.
+ *
+ * <p>
+ * A frame consists of a one byte tag, a four byte payload length, and the payload.
+ * Commands that are sent very often (such as {@link ProxyOutputStream} chunks and acks,
+ * or {@link Response}s) define their own compact encoding through {@link Command#getFrameTag()}
+ * and {@link Command#writeFrame(DataOutputStream)}, which avoids the class descriptors,
+ * the stack trace in {@link Command#createdAt}, and the reset marker that Java serialization
+ * would otherwise cost per command. Everything else is sent as {@link #TAG_SERIALIZED},
+ * whose payload is a self-contained Java serialization stream.
+ *
+ * <p>
+ * The payload of a frame may also be compressed, as {@link Channel#setCompression(Compression) configured},
+ * in which case the tag has the {@link #COMPRESSED} bit set, and the payload consists of the original payload
+ * length followed by the deflated payload.
+ *
+ * @see Capability#supportsFramedCommands()
+ */
+final class FramedCommandTransport extends StreamCommandTransport {
+    private final DataInputStream in;
+    private final FrameWriter writer;
+    private final OutputStream out;
+    /**
+     * Received frames are read into these buffers.
+     * {@link ProxyOutputStream.Chunk}s hold on to theirs until the data is written out.
+     * Also used for the large outgoing frames, until {@link FrameWriter} is done with them.
+     */
+    private final BufferPool buffers = new BufferPool();
+    private final FrameCompressor compressor;
+
+    FramedCommandTransport(Channel channel, String name, InputStream is, OutputStream os) {
+        super(channel, name);
+        this.compressor = channel.frameCompressor;
+        this.in = new DataInputStream(new BufferedInputStream(is, BUFFER_SIZE));
+        this.out = new BufferedOutputStream(os, BUFFER_SIZE);
+        this.writer = new FrameWriter(channel, name, out);
+        writer.start();
+    }
+
+    /**
+     * Encodes the command on the calling thread, then hands it off to {@link FrameWriter}.
+     * This can be called concurrently.
+     */
+    void write(Command cmd, boolean last) throws IOException {
+        writer.enqueue(new Frame(cmd, last, buffers, compressor));
+    }
+
+    @Override
+    boolean isConcurrent() {
+        return true;
+    }
+
+    Command read() throws IOException, ClassNotFoundException {
+        byte tag = in.readByte();
+        int len = checkFrameLength(in.readInt());
+        byte[] buf = buffers.acquire(len);
+        in.readFully(buf, 0, len);
+        return decode(tag, buf, 0, len, buffers, compressor);
+    }
+
+    /**
+     * Turns the payload of a frame back into a {@link Command}.
+     *
+     * @param pool
+     *      If non-null, the buffer came from this pool, and it's given back once it's no longer needed.
+     *      Either right away, or when the decoded command is done with it.
+     * @param compressor
+     *      Inflates the {@link #COMPRESSED} frames.
+     */
+    static Command decode(byte tag, byte[] buf, int offset, int len, BufferPool pool, FrameCompressor compressor) throws IOException, ClassNotFoundException {
+        if ((tag & COMPRESSED) != 0) {
+            byte[] raw;
+            int rawLen;
+            try {
+                if (len < 4) {
+                    throw new StreamCorruptedException("Invalid compressed frame");
+                }
+                rawLen = checkFrameLength(readInt(buf, offset));
+                raw = pool != null ? pool.acquire(rawLen) : new byte[rawLen];
+                compressor.inflate(buf, offset + 4, len - 4, raw, rawLen);
+            } finally {
+                if (pool != null) {
+                    pool.release(buf);
+                }
+            }
+            return decode((byte) (tag & ~COMPRESSED), raw, 0, rawLen, pool, null);
+        }
+        if (tag == TAG_CHUNK) {
+            // the chunk keeps the payload as is, instead of copying it out
+            return ProxyOutputStream.Chunk.readFrame(buf, offset, len, pool);
+        }
+        try {
+            return decode(tag, new DataInputStream(new ByteArrayInputStream(buf, offset, len)));
+        } finally {
+            if (pool != null) {
+                pool.release(buf);
+            }
+        }
+    }
+
+    private static Command decode(byte tag, DataInputStream frame) throws IOException, ClassNotFoundException {
+        switch (tag) {
+            case TAG_SERIALIZED:
+                return (Command) new ObjectInputStream(frame).readObject();
+            case TAG_ACK:
+                return ProxyOutputStream.Ack.readFrame(frame);
+            case TAG_EOF:
+                return ProxyOutputStream.EOF.readFrame(frame);
+            case TAG_FLUSH:
+                return ProxyOutputStream.Flush.readFrame(frame);
+            case TAG_RESPONSE:
+                return Response.readFrame(frame);
+            case TAG_UNEXPORT:
+                return UnexportCommand.readFrame(frame);
+            case TAG_MULTI_ACK:
+                return ProxyOutputStream.MultiAck.readFrame(frame);
+            case TAG_INPUT_DATA:
+                return ProxyInputStream.Data.readFrame(frame);
+            case TAG_INPUT_CREDIT:
+                return ProxyInputStream.Credit.readFrame(frame);
+            case TAG_RPC_REQUEST:
+                return RemoteInvocationHandler.RPCRequest.readFrame(frame);
+            case TAG_USER_REQUEST:
+                return UserRequest.readFrame(frame);
+            default:
+                throw new StreamCorruptedException("Unknown frame tag " + tag);
+        }
+    }
+
+    void closeWrite() throws IOException {
+        writer.awaitTermination();
+        out.close();
+    }
+
+    void closeRead() throws IOException {
+        in.close();
+    }
+
+    @Override
+    void terminate() {
+        writer.abort();
+    }
+
+    /**
+     * Encoded form of a {@link Command}, header included.
+     */
+    static final class Frame extends ByteArrayOutputStream {
+        /**
+         * True if this is the last frame to be sent.
+         */
+        final boolean last;
+
+        /**
+         * If non-null, {@link #buf} came from this pool.
+         */
+        private BufferPool pool;
+
+        Frame(Command cmd, boolean last) throws IOException {
+            this(cmd, last, null, null);
+        }
+
+        /**
+         * @param pool
+         *      Commands whose {@linkplain Command#getFrameSize() size is known} are encoded into a buffer
+         *      from this pool, if non-null. Call {@link #recycle()} once the frame is sent.
+         * @param compressor
+         *      If non-null, compresses the payload when that's worth it.
+         */
+        Frame(Command cmd, boolean last, BufferPool pool, FrameCompressor compressor) throws IOException {
+            super(0);
+            this.last = last;
+
+            byte tag = cmd.getFrameTag();
+            int size = tag == TAG_SERIALIZED ? -1 : cmd.getFrameSize();
+            if (size < 0) {
+                buf = new byte[64];
+            } else if (pool != null) {
+                buf = pool.acquire(HEADER_SIZE + size);
+                this.pool = pool;
+            } else {
+                buf = new byte[HEADER_SIZE + size];
+            }
+
+            count = HEADER_SIZE;    // fill in the header once we know the size
+            if (tag == TAG_SERIALIZED) {
+                ObjectOutputStream oos = new ObjectOutputStream(this);
+                oos.writeObject(cmd);
+                oos.flush();
+            } else {
+                DataOutputStream dos = new DataOutputStream(this);
+                cmd.writeFrame(dos);
+                dos.flush();
+            }
+
+            int len = count - HEADER_SIZE;
+            if (compressor != null && compressor.shouldCompress(tag, len)) {
+                // only worth it if it saves at least an eighth, so give the deflater no more room than that
+                int limit = HEADER_SIZE + 4 + len - (len >>> 3);
+                byte[] out = pool != null ? pool.acquire(limit) : new byte[limit];
+                int n = compressor.compress(tag, buf, HEADER_SIZE, len, out, HEADER_SIZE + 4, limit - HEADER_SIZE - 4);
+                if (n >= 0) {
+                    recycle();
+                    this.pool = pool;
+                    buf = out;
+                    writeInt(buf, HEADER_SIZE, len);
+                    tag |= COMPRESSED;
+                    len = 4 + n;
+                    count = HEADER_SIZE + len;
+                } else if (pool != null) {
+                    pool.release(out);
+                }
+            }
+
+            buf[0] = tag;
+            writeInt(buf, 1, len);
+        }
+
+        /**
+         * Exposes the encoded frame without copying it.
+         */
+        ByteBuffer toByteBuffer() {
+            return ByteBuffer.wrap(buf, 0, count);
+        }
+
+        /**
+         * Gives the buffer back to the pool it came from, if any.
+         * The frame must not be written after this.
+         */
+        void recycle() {
+            if (pool != null) {
+                pool.release(buf);
+                pool = null;
+            }
+        }
+    }
+
+    /**
+     * Writes an arbitrary object in the middle of a frame payload through Java serialization.
+     */
+    static void writeObject(DataOutputStream out, Object o) throws IOException {
+        ObjectOutputStream oos = new ObjectOutputStream(out);
+        oos.writeObject(o);
+        oos.flush();
+    }
+
+    /**
+     * The opposite of {@link #writeObject(DataOutputStream, Object)}.
+     * This needs to be the last thing read from the payload.
+     */
+    static Object readObject(DataInputStream in) throws IOException, ClassNotFoundException {
+        return new ObjectInputStream(in).readObject();
+    }
+
+    private static void writeInt(byte[] buf, int offset, int v) {
+        buf[offset] = (byte) (v >>> 24);
+        buf[offset + 1] = (byte) (v >>> 16);
+        buf[offset + 2] = (byte) (v >>> 8);
+        buf[offset + 3] = (byte) v;
+    }
+
+    private static int readInt(byte[] buf, int offset) {
+        return (buf[offset] & 0xFF) << 24 | (buf[offset + 1] & 0xFF) << 16 | (buf[offset + 2] & 0xFF) << 8 | (buf[offset + 3] & 0xFF);
+    }
+
+    /**
+     * Rejects a payload length read off the wire, before anything is allocated for it.
+     *
+     * @return the length
+     */
+    static int checkFrameLength(int len) throws StreamCorruptedException {
+        if (len < 0 || len > MAX_FRAME_SIZE) {
+            throw new StreamCorruptedException("Invalid frame length " + len);
+        }
+        return len;
+    }
+
+    /**
+     * Reads the number of elements that follow in the payload of a frame, and rejects it
+     * if the rest of the payload can't possibly hold that many.
+     *
+     * @param elementSize
+     *      Minimum number of bytes each element takes.
+     */
+    static int readLength(DataInputStream frame, int elementSize) throws IOException {
+        int len = frame.readInt();
+        // the payload is fully buffered, so this is what's left of it
+        if (len < 0 || (long) len * elementSize > frame.available()) {
+            throw new StreamCorruptedException("Invalid length " + len);
+        }
+        return len;
+    }
+
+    private static final int BUFFER_SIZE = 8192;
+
+    /**
+     * Largest payload accepted from the other side, compressed or not.
+     * Anything bigger than this is assumed to be a corrupted stream, which fails the channel.
+     * Large data should go through a {@link Pipe} instead.
+     */
+    static final int MAX_FRAME_SIZE = Integer.getInteger(Channel.class.getName() + ".maxFrameSize", 256 * 1024 * 1024);
+
+    /**
+     * Tag and the payload length.
+     */
+    static final int HEADER_SIZE = 5;
+
+    /**
+     * The payload is the Java serialization of the {@link Command}.
+     */
+    static final byte TAG_SERIALIZED = 0;
+    static final byte TAG_CHUNK = 1;
+    static final byte TAG_ACK = 2;
+    static final byte TAG_EOF = 3;
+    static final byte TAG_FLUSH = 4;
+    static final byte TAG_RESPONSE = 5;
+    static final byte TAG_UNEXPORT = 6;
+    static final byte TAG_MULTI_ACK = 7;
+    static final byte TAG_INPUT_DATA = 8;
+    static final byte TAG_INPUT_CREDIT = 9;
+    static final byte TAG_RPC_REQUEST = 10;
+    static final byte TAG_USER_REQUEST = 11;
+
+    /**
+     * Bit set in the tag of a compressed frame. The tags themselves stay below it.
+     *
+     * @see FrameCompressor
+     */
+    static final byte COMPRESSED = 0x40;
+}
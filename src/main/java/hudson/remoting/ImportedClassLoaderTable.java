@@ -18,31 +18,34 @@ package hudson.remoting;
 
 import hudson.remoting.RemoteClassLoader.IClassLoader;
 
-import java.util.Hashtable;
-import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 /**
  * @author Kohsuke Kawaguchi
  */
 final class ImportedClassLoaderTable {
     final Channel channel;
-    final Map<IClassLoader,ClassLoader> classLoaders = new Hashtable<IClassLoader,ClassLoader>();
+    final ConcurrentMap<IClassLoader,ClassLoader> classLoaders = new ConcurrentHashMap<IClassLoader,ClassLoader>();
 
     ImportedClassLoaderTable(Channel channel) {
         this.channel = channel;
     }
 
-    public synchronized ClassLoader get(int oid) {
+    public ClassLoader get(int oid) {
         return get(RemoteInvocationHandler.wrap(channel,oid,IClassLoader.class,false,false));
     }
 
-    public synchronized ClassLoader get(IClassLoader classLoaderProxy) {
+    public ClassLoader get(IClassLoader classLoaderProxy) {
         ClassLoader r = classLoaders.get(classLoaderProxy);
         if(r==null) {
             // we need to be able to use the same hudson.remoting classes, hence delegate
             // to this class loader.
             r = RemoteClassLoader.create(getClass().getClassLoader(),classLoaderProxy);
-            classLoaders.put(classLoaderProxy,r);
+            // creating one is cheap, so if another thread beat us to it, just use theirs
+            ClassLoader prev = classLoaders.putIfAbsent(classLoaderProxy,r);
+            if(prev!=null)
+                r = prev;
         }
         return r;
     }
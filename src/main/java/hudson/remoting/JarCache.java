@@ -0,0 +1,295 @@
+/*******************************************************************************
+ *
+ * Copyright (c) 2012 Oracle Corporation.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *
+ *
+ *******************************************************************************/
+
+package hudson.remoting;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Directory of the jar files that {@link RemoteClassLoader} prefetched, named after the SHA-1 digest of their contents,
+ * so that they survive reconnects and don't have to be transferred again.
+ *
+ * <p>
+ * The other side tells us the digest of a jar before we fetch it, and if we already have a file by that name,
+ * we use it as is. Since the files are never modified once they are in place, several agents on the same machine
+ * can share the directory. Files that haven't been used for the longest time are deleted once the total size
+ * exceeds the limit.
+ *
+ * @see Capability#supportsJarDigests()
+ */
+final class JarCache {
+    private final File dir;
+    private final long maxSize;
+
+    /**
+     * @param maxSize
+     *      Total size of the cached jars, in bytes, beyond which the least recently used ones are deleted.
+     */
+    JarCache(File dir, long maxSize) {
+        this.dir = dir;
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * Returns the cached jar of the given digest, or null if we don't have it.
+     */
+    File get(String digest) {
+        File f = fileOf(digest);
+        if (!f.isFile()) {
+            return null;
+        }
+        // the last modified time is what we evict by
+        f.setLastModified(System.currentTimeMillis());
+        return f;
+    }
+
+    /**
+     * Stores the jar, and returns the file it's stored in.
+     *
+     * @throws IOException
+     *      if the image doesn't match the digest, or if the file can't be written.
+     */
+    File put(String digest, byte[] image) throws IOException {
+        return put(digest, new ByteArrayInputStream(image));
+    }
+
+    /**
+     * Stores the jar read from the stream, without holding it in memory, and returns the file it's stored in.
+     * The stream is read to the end, but not closed.
+     *
+     * @throws IOException
+     *      if the contents don't match the digest, or if the file can't be written.
+     */
+    File put(String digest, InputStream in) throws IOException {
+        File f = fileOf(digest);
+        dir.mkdirs();
+        // write to a temporary file first, so that nobody sees a partially written jar
+        File tmp = File.createTempFile(digest, ".tmp", dir);
+        try {
+            String actual = copy(in, tmp);
+            if (!digest.equals(actual)) {
+                throw new IOException("Digest mismatch: expected " + digest + " but got " + actual);
+            }
+            if (!tmp.renameTo(f) && !f.isFile()) {
+                throw new IOException("Unable to create " + f);
+            }
+        } finally {
+            tmp.delete();
+        }
+
+        evict();
+        return f;
+    }
+
+    private File fileOf(String digest) {
+        return new File(dir, digest + ".jar");
+    }
+
+    /**
+     * Deletes the least recently used jars until the total size is within the limit.
+     */
+    private synchronized void evict() {
+        File[] files = dir.listFiles();
+        if (files == null) {
+            return;
+        }
+        long total = 0;
+        for (File f : files) {
+            total += f.length();
+        }
+        if (total <= maxSize) {
+            return;
+        }
+
+        Arrays.sort(files, new Comparator<File>() {
+            public int compare(File a, File b) {
+                long x = a.lastModified(), y = b.lastModified();
+                return x < y ? -1 : x == y ? 0 : 1;
+            }
+        });
+        for (File f : files) {
+            if (total <= maxSize) {
+                break;
+            }
+            if (!f.getName().endsWith(".jar")) {
+                continue;   // someone else's temporary file
+            }
+            long len = f.length();
+            // this fails on Windows if the jar is in use, in which case we'll try again later
+            if (f.delete()) {
+                total -= len;
+            }
+        }
+    }
+
+    /**
+     * Computes the SHA-1 digest of the given bytes, as a hex string.
+     */
+    static String digest(byte[] image) {
+        MessageDigest md = newDigest();
+        md.update(image);
+        return toHex(md.digest());
+    }
+
+    /**
+     * Computes the SHA-1 digest of the stream, as a hex string, and closes it.
+     */
+    static String digest(InputStream in) throws IOException {
+        try {
+            MessageDigest md = newDigest();
+            byte[] buf = new byte[8192];
+            int len;
+            while ((len = in.read(buf)) > 0) {
+                md.update(buf, 0, len);
+            }
+            return toHex(md.digest());
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Computes the SHA-1 digest of the jar at the given URL, as a hex string.
+     *
+     * <p>
+     * Every agent that connects asks the side that serves the jars for the same digests, so the digest
+     * of a local file is remembered for as long as its length and last modified time stay the same.
+     */
+    static String digest(URL url) throws IOException {
+        File f = toFile(url);
+        if (f == null) {
+            return digest(url.openStream());
+        }
+        String key = url.toExternalForm(); // URL.equals() resolves host names
+        // look at the file before reading it, so that a change in the mean time is noticed next time
+        long length = f.length(), lastModified = f.lastModified();
+        synchronized (DIGESTS) {
+            Digest d = DIGESTS.get(key);
+            if (d != null && d.length == length && d.lastModified == lastModified) {
+                return d.digest;
+            }
+        }
+        String digest = digest(url.openStream());
+        synchronized (DIGESTS) {
+            DIGESTS.put(key, new Digest(length, lastModified, digest));
+        }
+        return digest;
+    }
+
+    private static File toFile(URL url) {
+        if (!"file".equals(url.getProtocol())) {
+            return null;
+        }
+        try {
+            return new File(url.toURI());
+        } catch (URISyntaxException e) {
+            return null;
+        } catch (IllegalArgumentException e) {
+            return null;    // has a host name, or the like
+        }
+    }
+
+    /**
+     * Digest of a local file, as of the given length and last modified time.
+     */
+    private static final class Digest {
+        final long length;
+        final long lastModified;
+        final String digest;
+
+        Digest(long length, long lastModified, String digest) {
+            this.length = length;
+            this.lastModified = lastModified;
+            this.digest = digest;
+        }
+    }
+
+    /**
+     * Copies the stream into the file, and returns the digest of what was copied.
+     */
+    static String copy(InputStream in, File f) throws IOException {
+        MessageDigest md = newDigest();
+        FileOutputStream fos = new FileOutputStream(f);
+        try {
+            byte[] buf = new byte[8192];
+            int len;
+            while ((len = in.read(buf)) >= 0) {
+                md.update(buf, 0, len);
+                fos.write(buf, 0, len);
+            }
+        } finally {
+            fos.close();
+        }
+        return toHex(md.digest());
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new AssertionError(e);    // every JRE has SHA-1
+        }
+    }
+
+    private static String toHex(byte[] bytes) {
+        StringBuilder buf = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            buf.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return buf.toString();
+    }
+
+    private static JarCache fromSystemProperty() {
+        String dir = System.getProperty(JarCache.class.getName() + ".dir");
+        if (dir == null) {
+            return null;
+        }
+        return new JarCache(new File(dir), MAX_SIZE);
+    }
+
+    /**
+     * Digests computed by {@link #digest(URL)}, keyed by the URL of the jar, least recently used first.
+     */
+    private static final Map<String, Digest> DIGESTS = new LinkedHashMap<String, Digest>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Digest> eldest) {
+            return size() > MAX_DIGESTS;
+        }
+    };
+
+    private static final int MAX_DIGESTS = 4096;
+
+    /**
+     * Default limit of the total size of the cached jars. 1GB.
+     */
+    static final long MAX_SIZE = Long.getLong(JarCache.class.getName() + ".maxSize", 1024L * 1024 * 1024);
+
+    /**
+     * The cache that {@link RemoteClassLoader}s use, or null to disable the caching.
+     * Set from the <tt>hudson.remoting.JarCache.dir</tt> system property, or by {@link Launcher}.
+     */
+    static volatile JarCache DEFAULT = fromSystemProperty();
+}
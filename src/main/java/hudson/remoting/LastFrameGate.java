@@ -0,0 +1,72 @@
+/*******************************************************************************
+ *
+ * Copyright (c) 2012 Oracle Corporation.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *
+ *
+ *******************************************************************************/
+
+package hudson.remoting;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Keeps frames from being queued behind the last one, where they would never be written,
+ * without making the senders lock each other out.
+ *
+ * <p>
+ * A sender announces itself before it checks whether the last frame is queued, and the sender of the last frame
+ * waits for those that are already past the check, which only takes as long as appending to the queue.
+ *
+ * @see FrameWriter
+ * @see NioCommandTransport
+ */
+final class LastFrameGate {
+    /**
+     * Number of senders that may be queueing a frame right now.
+     */
+    private final AtomicInteger senders = new AtomicInteger();
+    private final AtomicBoolean closed = new AtomicBoolean();
+
+    /**
+     * Called before a frame is queued.
+     *
+     * @return
+     *      false if the last frame is already queued, in which case this one must not be.
+     *      Otherwise, the caller queues the frame and then calls {@link #leave(boolean)}.
+     */
+    boolean enter(boolean last) {
+        if (last) {
+            if (!closed.compareAndSet(false, true)) {
+                return false;
+            }
+            // the senders that got in before us queue their frames ahead of ours
+            while (senders.get() != 0) {
+                Thread.yield();
+            }
+            return true;
+        }
+        senders.incrementAndGet();
+        if (closed.get()) {
+            senders.decrementAndGet();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Called once the frame let in by {@link #enter(boolean)} is queued.
+     */
+    void leave(boolean last) {
+        if (!last) {
+            senders.decrementAndGet();
+        }
+    }
+}
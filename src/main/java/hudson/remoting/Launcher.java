@@ -117,6 +117,12 @@ public class Launcher {
     public File tcpPortFile=null;
 
 
+    @Option(name="-jarCache",metaVar="DIR",usage="cache the jar files sent by the master in this directory, " +
+            "so that they don't have to be transferred again when reconnecting.")
+    public void setJarCache(File dir) {
+        JarCache.DEFAULT = new JarCache(dir,JarCache.MAX_SIZE);
+    }
+
     @Option(name="-auth",metaVar="user:pass",usage="If your Hudson is security-enabeld, specify a valid user name and password.")
     public String auth = null;
 
@@ -0,0 +1,145 @@
+/*******************************************************************************
+ *
+ * Copyright (c) 2012 Oracle Corporation.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *
+ *
+ *******************************************************************************/
+
+package hudson.remoting;
+
+import java.lang.ref.WeakReference;
+import java.lang.reflect.Method;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * Remembers which {@link Method} an {@link RemoteInvocationHandler.RPCRequest} resolves to,
+ * so that repeated calls to the same exported object don't scan its methods every time.
+ *
+ * <p>
+ * Classes are weakly referenced, and so are the methods, since a {@link Method} refers to
+ * its class. This way, the cache never keeps a class loader alive, at the price of looking up
+ * a method again once the garbage collector cleared it. Each class remembers at most
+ * {@link #MAX_METHODS} signatures, and the whole cache is dropped once it holds more than
+ * {@link #MAX_CLASSES} classes.
+ */
+final class MethodCache {
+    /**
+     * Guarded by this.
+     */
+    private final Map<Class<?>, Map<Key, WeakReference<Method>>> cache = new WeakHashMap<Class<?>, Map<Key, WeakReference<Method>>>();
+
+    /**
+     * Finds the public method of the given class by its name and the names of its parameter types.
+     *
+     * @return null if there's no such method. The returned method is already made accessible.
+     */
+    Method resolve(Class<?> c, String name, String[] types) {
+        Key key = new Key(name, types);
+        synchronized (this) {
+            Map<Key, WeakReference<Method>> methods = cache.get(c);
+            if (methods != null) {
+                WeakReference<Method> ref = methods.get(key);
+                Method m = ref != null ? ref.get() : null;
+                if (m != null) {
+                    return m;
+                }
+            }
+        }
+
+        Method m = find(c, name, types);
+        if (m == null) {
+            return null;
+        }
+        m.setAccessible(true);  // in case the class is not public
+
+        synchronized (this) {
+            Map<Key, WeakReference<Method>> methods = cache.get(c);
+            if (methods == null) {
+                if (cache.size() >= MAX_CLASSES) {
+                    cache.clear();
+                }
+                methods = new LinkedHashMap<Key, WeakReference<Method>>(16, 0.75f, true) {
+                    @Override
+                    protected boolean removeEldestEntry(Map.Entry<Key, WeakReference<Method>> eldest) {
+                        return size() > MAX_METHODS;
+                    }
+                };
+                cache.put(c, methods);
+            }
+            methods.put(key, new WeakReference<Method>(m));
+        }
+        return m;
+    }
+
+    /**
+     * Scans the methods of the class.
+     */
+    static Method find(Class<?> c, String name, String[] types) {
+        OUTER:
+        for (Method m : c.getMethods()) {
+            if (!m.getName().equals(name)) {
+                continue;
+            }
+            Class<?>[] paramTypes = m.getParameterTypes();
+            if (paramTypes.length != types.length) {
+                continue;
+            }
+            for (int i = 0; i < types.length; i++) {
+                if (!types[i].equals(paramTypes[i].getName())) {
+                    continue OUTER;
+                }
+            }
+            return m;
+        }
+        return null;
+    }
+
+    /**
+     * Method name and the names of the parameter types.
+     */
+    private static final class Key {
+        private final String name;
+        private final String[] types;
+        private final int hash;
+
+        Key(String name, String[] types) {
+            this.name = name;
+            this.types = types;
+            this.hash = name.hashCode() * 31 + Arrays.hashCode(types);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key that = (Key) o;
+            return hash == that.hash && name.equals(that.name) && Arrays.equals(types, that.types);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+
+    /**
+     * Number of distinct signatures remembered per class.
+     */
+    static final int MAX_METHODS = 256;
+
+    /**
+     * Number of classes remembered per channel.
+     */
+    static final int MAX_CLASSES = 1024;
+}
@@ -0,0 +1,108 @@
+/*******************************************************************************
+ *
+ * Copyright (c) 2012 Oracle Corporation.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *
+ *
+ *******************************************************************************/
+
+package hudson.remoting;
+
+import java.lang.reflect.Method;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * Integer IDs for the methods called through {@link RemoteInvocationHandler}, so that
+ * {@link RemoteInvocationHandler.RPCRequest} doesn't need to carry the method name and the names
+ * of its parameter types on every call.
+ *
+ * <p>
+ * The calling side assigns the IDs. A call sends the ID along with the full signature until one such call
+ * completes successfully, which tells us that the other side has {@linkplain #define(int, String, String[]) seen}
+ * the signature. From then on, the ID alone is sent.
+ *
+ * <p>
+ * Each {@link Channel} has one of these, which holds both the IDs we assigned to the methods we call,
+ * and the IDs the other side assigned to the methods it calls on us.
+ *
+ * @see Capability#supportsMethodIds()
+ */
+final class MethodIdTable {
+    /**
+     * IDs of the methods we call. Keys are the {@link Method}s of the proxy classes, which
+     * are held strongly by the proxy classes, and so are weakly held here. Guarded by this, as is {@link #iota}.
+     */
+    private final Map<Method, Id> ids = new WeakHashMap<Method, Id>();
+    private int iota;
+
+    /**
+     * Signatures of the methods the other side calls, by their ID.
+     */
+    private final ConcurrentIntMap<Signature> definitions = new ConcurrentIntMap<Signature>();
+
+    /**
+     * ID of one of the methods we call.
+     */
+    static final class Id {
+        final int id;
+        /**
+         * True once we know the other side knows this ID.
+         */
+        volatile boolean known;
+
+        Id(int id) {
+            this.id = id;
+        }
+    }
+
+    /**
+     * Method name and the names of its parameter types.
+     */
+    static final class Signature {
+        final String name;
+        final String[] types;
+
+        Signature(String name, String[] types) {
+            this.name = name;
+            this.types = types;
+        }
+    }
+
+    /**
+     * Assigns an ID to the given method, unless it already has one.
+     */
+    synchronized Id idOf(Method m) {
+        Id id = ids.get(m);
+        if (id == null) {
+            id = new Id(++iota);
+            ids.put(m, id);
+        }
+        return id;
+    }
+
+    /**
+     * Called when the other side sends the signature of a method, along with the ID it assigned to it.
+     */
+    void define(int id, String name, String[] types) {
+        if (definitions.get(id) == null) {
+            definitions.put(id, new Signature(name, types));
+        }
+    }
+
+    /**
+     * Looks up the signature of a method the other side calls.
+     *
+     * @return
+     *      null if the other side never defined this ID.
+     */
+    Signature lookup(int id) {
+        return definitions.get(id);
+    }
+}
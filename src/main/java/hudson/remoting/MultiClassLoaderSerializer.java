@@ -16,12 +16,16 @@ package hudson.remoting;
 
 import hudson.remoting.RemoteClassLoader.IClassLoader;
 
+import java.io.Externalizable;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.ObjectInput;
 import java.io.ObjectInputStream;
+import java.io.ObjectOutput;
 import java.io.ObjectOutputStream;
 import java.io.ObjectStreamClass;
 import java.io.OutputStream;
+import java.io.StreamCorruptedException;
 import java.lang.reflect.Proxy;
 import java.util.ArrayList;
 import java.util.HashMap;
@@ -47,10 +51,61 @@ class MultiClassLoaderSerializer {
          * Encountered Classloaders, to their indices.
          */
         private final Map<ClassLoader,Integer> classLoaders = new HashMap<ClassLoader, Integer>();
+        /**
+         * Null unless the other side {@linkplain Capability#supportsClassDescriptorCache() caches class descriptors}.
+         */
+        private final ClassDescriptorTable descriptors;
+        /**
+         * IDs of the class descriptors this stream sent in full.
+         */
+        private final List<ClassDescriptorTable.Id> defined = new ArrayList<ClassDescriptorTable.Id>();
 
         Output(Channel channel, OutputStream out) throws IOException {
             super(out);
             this.channel = channel;
+            this.descriptors = channel.remoteCapability.supportsClassDescriptorCache() ? channel.classDescriptors : null;
+            if (channel.payloadSerializer!=null)
+                enableReplaceObject(true);
+        }
+
+        @Override
+        protected Object replaceObject(Object o) throws IOException {
+            if (o!=null && channel.payloadSerializer.accepts(o.getClass()))
+                return new Encoded(o);
+            return o;
+        }
+
+        /**
+         * IDs of the class descriptors this stream sent in full, which the other side knows
+         * once it has read this stream.
+         */
+        List<ClassDescriptorTable.Id> getDefinedDescriptors() {
+            return defined;
+        }
+
+        @Override
+        protected void writeClassDescriptor(ObjectStreamClass desc) throws IOException {
+            if (descriptors==null) {
+                super.writeClassDescriptor(desc);
+                return;
+            }
+
+            Class<?> c = desc.forClass();
+            if (c==null) {// not a local class, so not worth an ID
+                writeInt(0);
+                super.writeClassDescriptor(desc);
+                return;
+            }
+
+            ClassDescriptorTable.Id id = descriptors.idOf(c);
+            if (id.known) {
+                writeInt(id.id);
+            } else {
+                // negative ID means the descriptor follows
+                writeInt(-id.id);
+                super.writeClassDescriptor(desc);
+                defined.add(id);
+            }
         }
 
         @Override
@@ -91,10 +146,31 @@ class MultiClassLoaderSerializer {
     static final class Input extends ObjectInputStream {
         private final Channel channel;
         private final List<ClassLoader> classLoaders = new ArrayList<ClassLoader>();
+        private final ClassDescriptorTable descriptors;
 
         Input(Channel channel, InputStream in) throws IOException {
             super(in);
             this.channel = channel;
+            this.descriptors = channel.remoteCapability.supportsClassDescriptorCache() ? channel.classDescriptors : null;
+        }
+
+        @Override
+        protected ObjectStreamClass readClassDescriptor() throws IOException, ClassNotFoundException {
+            if (descriptors==null)
+                return super.readClassDescriptor();
+
+            int id = readInt();
+            if (id>0) {
+                ObjectStreamClass desc = descriptors.lookup(id);
+                if (desc==null)
+                    throw new StreamCorruptedException("Undefined class descriptor "+id);
+                return desc;
+            }
+
+            ObjectStreamClass desc = super.readClassDescriptor();
+            if (id<0)
+                descriptors.define(-id,desc);
+            return desc;
         }
 
         private ClassLoader readClassLoader() throws IOException, ClassNotFoundException {
@@ -141,6 +217,46 @@ class MultiClassLoaderSerializer {
         }
     }
 
+    /**
+     * Stands in for an object written by the {@link PayloadSerializer} of the channel.
+     *
+     * <p>
+     * The type of the object is written as a {@link Class}, so that it's loaded by the right class loader
+     * on the other side, followed by whatever the serializer writes.
+     */
+    static final class Encoded implements Externalizable {
+        private Object value;
+
+        Encoded(Object value) {
+            this.value = value;
+        }
+
+        /**
+         * For {@link Externalizable}.
+         */
+        public Encoded() {
+        }
+
+        public void writeExternal(ObjectOutput out) throws IOException {
+            out.writeObject(value.getClass());
+            ((Output)out).channel.payloadSerializer.write(value,out);
+        }
+
+        public void readExternal(ObjectInput in) throws IOException, ClassNotFoundException {
+            Class<?> type = (Class<?>)in.readObject();
+            PayloadSerializer serializer = in instanceof Input ? ((Input)in).channel.payloadSerializer : null;
+            if (serializer==null)
+                throw new StreamCorruptedException("No payload serializer to read "+type);
+            value = serializer.read(type,in);
+        }
+
+        private Object readResolve() {
+            return value;
+        }
+
+        private static final long serialVersionUID = 1L;
+    }
+
     /**
      * Indicates that the class being sent should be loaded from the system classloader.
      */
@@ -0,0 +1,206 @@
+/*******************************************************************************
+ *
+ * Copyright (c) 2012 Oracle Corporation.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *
+ *
+ *******************************************************************************/
+
+package hudson.remoting;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Pool of selector threads that serves the socket I/O of any number of {@link Channel}s.
+ *
+ * <p>
+ * A {@link Channel} created on a {@link java.nio.channels.SocketChannel} with this hub doesn't get a
+ * reader thread of its own. Instead, one of the selector threads reads whatever has arrived,
+ * reassembles complete frames, and hands them over to a thread pool of the hub,
+ * where they are decoded and executed in the order they were received, one channel at a time.
+ * Much like the reader thread of a channel, these threads only hand the requests over to the executor
+ * of the channel, and deliver the {@link Response}s themselves, so a bounded executor doesn't dead-lock
+ * when all its threads wait for the responses of the calls they made.
+ * Outgoing frames are written by the same selector thread as the socket becomes writable.
+ *
+ * <p>
+ * Neither thread runs user code, so a single slow command only holds up its own channel.
+ *
+ * <pre>
+ * NioChannelHub hub = new NioChannelHub();
+ * Channel ch = new Channel("agent", executor, hub, socketChannel);
+ * </pre>
+ *
+ * @see Channel#Channel(String, java.util.concurrent.ExecutorService, NioChannelHub, java.nio.channels.SocketChannel)
+ */
+public class NioChannelHub {
+    private final SelectorThread[] threads;
+    private final AtomicInteger next = new AtomicInteger();
+
+    /**
+     * Decodes and executes the commands received by the channels, a single task per channel at a time.
+     */
+    /*package*/ final ExecutorService commandExecutor = Executors.newCachedThreadPool(new ThreadFactory() {
+        private final AtomicInteger n = new AtomicInteger();
+
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "NioChannelHub command reader #" + n.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        }
+    });
+
+    /**
+     * Creates a hub with one selector thread per processor.
+     */
+    public NioChannelHub() throws IOException {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * @param nThreads Number of selector threads. Channels are assigned to them in a round-robin fashion.
+     */
+    public NioChannelHub(int nThreads) throws IOException {
+        if (nThreads < 1) {
+            throw new IllegalArgumentException("nThreads=" + nThreads);
+        }
+        threads = new SelectorThread[nThreads];
+        for (int i = 0; i < nThreads; i++) {
+            threads[i] = new SelectorThread("NioChannelHub selector thread #" + i);
+        }
+        for (SelectorThread t : threads) {
+            t.start();
+        }
+    }
+
+    /**
+     * Picks the selector thread for a new channel.
+     */
+    /*package*/ SelectorThread pick() {
+        return threads[(next.getAndIncrement() & Integer.MAX_VALUE) % threads.length];
+    }
+
+    /**
+     * Stops all the selector threads.
+     * Channels that are still open no longer receive nor send anything, and should be closed beforehand.
+     */
+    public void close() throws IOException {
+        for (SelectorThread t : threads) {
+            t.shutdown();
+        }
+        commandExecutor.shutdown();
+    }
+
+    /**
+     * One selector, and the thread that drives it.
+     */
+    /*package*/ static final class SelectorThread extends Thread {
+        private final Selector selector;
+        /**
+         * Tasks that need to run on this thread, such as registering a channel or changing its interest set.
+         */
+        private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+        /**
+         * Shared by all the channels on this thread, since only one of them reads at a time.
+         */
+        private final ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+        private volatile boolean closed;
+
+        SelectorThread(String name) throws IOException {
+            super(name);
+            setDaemon(true);
+            this.selector = Selector.open();
+        }
+
+        /**
+         * Runs the given task on this thread, as soon as possible.
+         */
+        void execute(Runnable task) {
+            tasks.add(task);
+            selector.wakeup();
+        }
+
+        Selector getSelector() {
+            return selector;
+        }
+
+        void shutdown() {
+            closed = true;
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (!closed) {
+                    Runnable task;
+                    while ((task = tasks.poll()) != null) {
+                        try {
+                            task.run();
+                        } catch (RuntimeException e) {
+                            LOGGER.log(Level.SEVERE, "Failed to run a task on " + getName(), e);
+                        }
+                    }
+
+                    selector.select();
+
+                    Iterator<SelectionKey> itr = selector.selectedKeys().iterator();
+                    while (itr.hasNext()) {
+                        SelectionKey key = itr.next();
+                        itr.remove();
+                        NioCommandTransport t = (NioCommandTransport) key.attachment();
+                        try {
+                            if (key.isReadable()) {
+                                t.onReadable(readBuffer);
+                            }
+                            if (key.isValid() && key.isWritable()) {
+                                t.onWritable();
+                            }
+                        } catch (CancelledKeyException e) {
+                            // the channel got closed by another thread. nothing more to do
+                        }
+                    }
+                }
+            } catch (IOException e) {
+                LOGGER.log(Level.SEVERE, "Selector failed in " + getName(), e);
+                // nobody is going to serve the channels on this thread any more
+                closed = true;
+                for (SelectionKey key : selector.keys()) {
+                    ((NioCommandTransport) key.attachment()).abort(e);
+                }
+            } finally {
+                try {
+                    selector.close();
+                } catch (IOException e) {
+                    LOGGER.log(Level.WARNING, "Failed to close the selector", e);
+                }
+            }
+        }
+    }
+
+    private static final Logger LOGGER = Logger.getLogger(NioChannelHub.class.getName());
+
+    /**
+     * Maximum number of bytes read from a socket in one go.
+     */
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+}
@@ -0,0 +1,503 @@
+/*******************************************************************************
+ *
+ * Copyright (c) 2012 Oracle Corporation.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *
+ *
+ *******************************************************************************/
+
+package hudson.remoting;
+
+import hudson.remoting.FramedCommandTransport.Frame;
+import hudson.remoting.NioChannelHub.SelectorThread;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.StreamCorruptedException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import static hudson.remoting.FramedCommandTransport.HEADER_SIZE;
+
+/**
+ * {@link CommandTransport} that talks the same frames as {@link FramedCommandTransport}
+ * over a non-blocking {@link SocketChannel} driven by {@link NioChannelHub}.
+ *
+ * <p>
+ * The socket is only ever read and written by the selector thread. Received frames are queued
+ * and decoded/executed by a single task at a time on {@link NioChannelHub#commandExecutor}, which keeps
+ * the commands in order, just like the reader thread of the other transports would. Outgoing frames are encoded by the senders and queued for the selector thread,
+ * which writes as many of them as the socket takes in one gathering write.
+ */
+final class NioCommandTransport extends CommandTransport implements Runnable {
+    private final Channel channel;
+    private final SocketChannel socket;
+    private final SelectorThread selector;
+    private final Executor executor;
+    /**
+     * Set once the socket is registered. Only touched by the selector thread.
+     */
+    private SelectionKey key;
+
+    // receiving side. fields below are only touched by the selector thread.
+    private final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+    /**
+     * Frame being reassembled. The tag followed by the payload.
+     */
+    private byte[] frame;
+    private int framePos;
+
+    /**
+     * Received frames waiting to be executed, followed by {@link #END} once there's nothing more to read.
+     */
+    private final Queue<byte[]> inbox = new ConcurrentLinkedQueue<byte[]>();
+    private final AtomicLong inboxBytes = new AtomicLong();
+    /**
+     * True while a task to drain {@link #inbox} is submitted to the executor.
+     */
+    private final AtomicBoolean draining = new AtomicBoolean();
+    /**
+     * True while we stopped reading because the executor doesn't keep up.
+     */
+    private final AtomicBoolean readSuspended = new AtomicBoolean();
+    /**
+     * Why we stopped reading. null for EOF.
+     */
+    private volatile IOException readFailure;
+    /**
+     * Set once the channel has been told that nothing more will be received.
+     */
+    private boolean readDone;
+
+    // sending side
+    private final Queue<Frame> outbox = new ConcurrentLinkedQueue<Frame>();
+    /**
+     * Total size of the frames that are queued but not yet written.
+     * Also used as the lock for the senders that wait for the queue to drain.
+     */
+    private final AtomicLong outboxBytes = new AtomicLong();
+    /**
+     * True while the selector thread is asked to write {@link #outbox}.
+     */
+    private final AtomicBoolean writeScheduled = new AtomicBoolean();
+    /**
+     * Large outgoing frames are encoded into these buffers.
+     */
+    private final BufferPool buffers = new BufferPool();
+    /**
+     * Frames taken out of {@link #outbox} and partially written, along with their buffers.
+     * Only touched by the selector thread.
+     */
+    private final ArrayDeque<Frame> writing = new ArrayDeque<Frame>();
+    private final ArrayDeque<ByteBuffer> writingBuffers = new ArrayDeque<ByteBuffer>();
+    /**
+     * Set once the last frame has been written, or when we gave up.
+     */
+    private volatile boolean finished;
+    /**
+     * Rejects the frames that would otherwise be queued behind the last one.
+     */
+    private final LastFrameGate gate = new LastFrameGate();
+    private volatile IOException writeFailure;
+
+    NioCommandTransport(Channel channel, NioChannelHub hub, SocketChannel socket) {
+        this.channel = channel;
+        this.socket = socket;
+        this.selector = hub.pick();
+        this.executor = hub.commandExecutor;
+    }
+
+    @Override
+    void start() throws IOException {
+        socket.configureBlocking(false);
+        selector.execute(new Runnable() {
+            public void run() {
+                try {
+                    key = socket.register(selector.getSelector(), SelectionKey.OP_READ, NioCommandTransport.this);
+                } catch (ClosedChannelException e) {
+                    abort(e);
+                    return;
+                }
+                onWritable();   // anything sent so far
+            }
+        });
+    }
+
+    void write(Command cmd, boolean last) throws IOException {
+        if (writeFailure != null) {
+            throw new ChannelClosedException(writeFailure);
+        }
+        Frame f = new Frame(cmd, last, buffers, channel.frameCompressor);
+        if (finished || !gate.enter(last)) {
+            f.recycle();
+            throw new ChannelClosedException(writeFailure);
+        }
+        try {
+            outbox.offer(f);
+        } finally {
+            gate.leave(last);
+        }
+        long size = outboxBytes.addAndGet(f.size());
+        if (writeScheduled.compareAndSet(false, true)) {
+            selector.execute(new Runnable() {
+                public void run() {
+                    onWritable();
+                }
+            });
+        }
+        if (size > FrameWriter.MAX_QUEUED_BYTES) {
+            awaitDrain();
+        }
+    }
+
+    @Override
+    boolean isConcurrent() {
+        return true;
+    }
+
+    /**
+     * Blocks until the backlog drops below {@link FrameWriter#MAX_QUEUED_BYTES}.
+     */
+    private void awaitDrain() throws IOException {
+        synchronized (outboxBytes) {
+            try {
+                while (outboxBytes.get() > FrameWriter.MAX_QUEUED_BYTES && !finished) {
+                    outboxBytes.wait();
+                }
+            } catch (InterruptedException e) {
+                // the frame is already queued, so the command will be sent anyway.
+                Thread.currentThread().interrupt();
+            }
+        }
+        if (writeFailure != null) {
+            throw new ChannelClosedException(writeFailure);
+        }
+    }
+
+    /**
+     * Waits until the last frame is written. The selector thread then shuts down the output.
+     */
+    void closeWrite() throws IOException {
+        synchronized (outboxBytes) {
+            try {
+                while (!finished) {
+                    outboxBytes.wait();
+                }
+            } catch (InterruptedException e) {
+                throw (IOException) new InterruptedIOException().initCause(e);
+            }
+        }
+    }
+
+    private void closeRead() throws IOException {
+        socket.close();
+    }
+
+    @Override
+    void terminate() {
+        finished = true;
+        wakeUpSenders();
+        try {
+            socket.close();
+        } catch (IOException e) {
+            LOGGER.log(Level.FINE, "Failed to close " + socket, e);
+        }
+    }
+
+    /**
+     * Called by the selector thread when there's something to read.
+     *
+     * @param buf Scratch buffer shared with other transports on the same selector thread.
+     */
+    void onReadable(ByteBuffer buf) {
+        buf.clear();
+        try {
+            if (socket.read(buf) == -1) {
+                endOfInput(null);
+                return;
+            }
+        } catch (IOException e) {
+            endOfInput(e);
+            return;
+        }
+        buf.flip();
+
+        while (buf.hasRemaining()) {
+            if (frame == null) {
+                while (header.hasRemaining() && buf.hasRemaining()) {
+                    header.put(buf.get());
+                }
+                if (header.hasRemaining()) {
+                    return; // wait for the rest of the header
+                }
+                header.flip();
+                byte tag = header.get();
+                int len = header.getInt();
+                header.clear();
+                try {
+                    FramedCommandTransport.checkFrameLength(len);
+                } catch (StreamCorruptedException e) {
+                    endOfInput(e);
+                    return;
+                }
+                frame = new byte[len + 1];
+                frame[0] = tag;
+                framePos = 1;
+            }
+
+            int n = Math.min(buf.remaining(), frame.length - framePos);
+            buf.get(frame, framePos, n);
+            framePos += n;
+            if (framePos == frame.length) {
+                deliver(frame);
+                frame = null;
+            }
+        }
+    }
+
+    private void deliver(byte[] f) {
+        inbox.offer(f);
+        if (inboxBytes.addAndGet(f.length) > MAX_INBOX_BYTES) {
+            // the executor isn't keeping up. stop reading and let TCP push back on the sender.
+            readSuspended.set(true);
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+            // the executor might have caught up in the mean time
+            if (inboxBytes.get() <= MAX_INBOX_BYTES) {
+                resumeReading();
+            }
+        }
+        scheduleDrain();
+    }
+
+    private void resumeReading() {
+        if (readSuspended.compareAndSet(true, false)) {
+            selector.execute(new Runnable() {
+                public void run() {
+                    if (key.isValid()) {
+                        key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * No more frames will be received, because of EOF (if e==null) or an error.
+     */
+    private void endOfInput(IOException e) {
+        readFailure = e;
+        if (key != null && key.isValid()) {
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+        }
+        inbox.offer(END);
+        scheduleDrain();
+    }
+
+    private void scheduleDrain() {
+        if (draining.compareAndSet(false, true)) {
+            try {
+                executor.execute(this);
+            } catch (RejectedExecutionException e) {
+                // the hub is shut down, so nobody is going to execute the commands
+                draining.set(false);
+                LOGGER.log(Level.WARNING, "Hub rejected the commands received by " + channel, e);
+                abort(new IOException("Hub rejected the commands received by " + channel));
+            }
+        }
+    }
+
+    /**
+     * Decodes and executes the received frames, in order. Runs on {@link NioChannelHub#commandExecutor}.
+     */
+    public void run() {
+        while (true) {
+            byte[] f;
+            while ((f = inbox.poll()) != null) {
+                if (readDone) {
+                    continue;   // discard everything that arrived after the channel was closed
+                }
+                if (f == END) {
+                    IOException e = readFailure;
+                    if (e == null && !channel.isInClosed()) {
+                        e = (IOException) new IOException("Unexpected termination of the channel")
+                            .initCause(new EOFException());
+                    }
+                    finishRead(e);
+                    continue;
+                }
+
+                process(f);
+                if (inboxBytes.addAndGet(-f.length) <= MAX_INBOX_BYTES) {
+                    resumeReading();
+                }
+                if (channel.isInClosed()) {
+                    finishRead(null);
+                }
+            }
+            draining.set(false);
+            // frames might have arrived after we looked at the queue but before we cleared the flag
+            if (inbox.isEmpty() || !draining.compareAndSet(false, true)) {
+                return;
+            }
+        }
+    }
+
+    private void process(byte[] f) {
+        Command cmd;
+        Channel old = Channel.setCurrent(channel);
+        try {
+            cmd = FramedCommandTransport.decode(f[0], f, 1, f.length - 1, null, channel.frameCompressor);
+        } catch (ClassNotFoundException e) {
+            LOGGER.log(Level.SEVERE, "Unable to read a command (channel " + channel + ")", e);
+            return;
+        } catch (IOException e) {
+            finishRead(e);  // the stream is corrupt. whatever comes next can't be trusted
+            return;
+        } finally {
+            Channel.setCurrent(old);
+        }
+        channel.receive(cmd);
+    }
+
+    private void finishRead(IOException e) {
+        if (readDone) {
+            return;
+        }
+        readDone = true;
+        if (e == null) {
+            try {
+                closeRead();
+            } catch (IOException x) {
+                LOGGER.log(Level.FINE, "Failed to close " + socket, x);
+            }
+        }
+        channel.onReadEnd(e);
+    }
+
+    /**
+     * Called by the selector thread to write the queued frames.
+     */
+    void onWritable() {
+        if (key == null) {
+            return; // not registered yet. we'll be called again once we are.
+        }
+        try {
+            while (true) {
+                Frame f;
+                while (writing.size() < FrameWriter.MAX_BATCH_SIZE && (f = outbox.poll()) != null) {
+                    writing.add(f);
+                    writingBuffers.add(f.toByteBuffer());
+                }
+                if (writing.isEmpty()) {
+                    writeScheduled.set(false);
+                    // a sender might have queued a frame before we cleared the flag
+                    if (outbox.isEmpty() || !writeScheduled.compareAndSet(false, true)) {
+                        if (key.isValid()) {
+                            key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+                        }
+                        return;
+                    }
+                    continue;
+                }
+
+                socket.write(writingBuffers.toArray(new ByteBuffer[writingBuffers.size()]));
+
+                int batch = 0;
+                long bytes = 0;
+                while (!writingBuffers.isEmpty() && !writingBuffers.peek().hasRemaining()) {
+                    writingBuffers.poll();
+                    f = writing.poll();
+                    f.recycle();
+                    batch++;
+                    bytes += f.size();
+                    if (f.last) {
+                        socket.socket().shutdownOutput();
+                        finished = true;
+                    }
+                }
+                if (batch > 0) {
+                    channel.recordSendBatch(batch);
+                    long size = outboxBytes.addAndGet(-bytes);
+                    if ((size <= FrameWriter.MAX_QUEUED_BYTES && size + bytes > FrameWriter.MAX_QUEUED_BYTES) || finished) {
+                        wakeUpSenders();
+                    }
+                }
+                if (finished) {
+                    // the key is already cancelled if the channel got terminated in the mean time
+                    if (key.isValid()) {
+                        key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+                    }
+                    return;
+                }
+                if (!writingBuffers.isEmpty()) {
+                    // socket buffer is full. wait until it drains
+                    key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                    return;
+                }
+            }
+        } catch (IOException e) {
+            writeFailure = e;
+            finished = true;
+            wakeUpSenders();
+            LOGGER.log(Level.SEVERE, "Failed to write to channel " + channel, e);
+            // let the executor terminate the channel, since the selector thread must not block
+            abort(e);
+        }
+    }
+
+    /**
+     * Gives up on the channel because of a problem that the channel itself needs to hear about.
+     */
+    /**
+     * Stops receiving, because of the given error, as if the other side had hung up.
+     */
+    /*package*/ void abort(IOException e) {
+        readFailure = e;
+        inbox.offer(END);
+        if (draining.compareAndSet(false, true)) {
+            Thread t = new Thread("Channel termination: " + channel) {
+                @Override
+                public void run() {
+                    NioCommandTransport.this.run();
+                }
+            };
+            t.start();
+        }
+    }
+
+    private void wakeUpSenders() {
+        synchronized (outboxBytes) {
+            outboxBytes.notifyAll();
+        }
+    }
+
+    private static final Logger LOGGER = Logger.getLogger(NioCommandTransport.class.getName());
+
+    /**
+     * Marks the end of {@link #inbox}.
+     */
+    private static final byte[] END = new byte[0];
+
+    /**
+     * Stop reading from the socket once this many bytes are received but not yet executed.
+     */
+    private static final long MAX_INBOX_BYTES = FrameWriter.MAX_QUEUED_BYTES;
+}
@@ -0,0 +1,43 @@
+/*******************************************************************************
+ *
+ * Copyright (c) 2012 Oracle Corporation.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *
+ *
+ *******************************************************************************/
+
+package hudson.remoting;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Marks a <tt>void</tt> method of an interface {@linkplain Channel#export(Class, Object) exported}
+ * over a {@link Channel} as fire-and-forget.
+ *
+ * <p>
+ * Calling such a method through the proxy returns as soon as the call is sent. The caller neither
+ * waits for the method to complete nor hears about its failure, which the other side only logs.
+ * One-way calls made from the same thread are not guaranteed to execute in order.
+ * If the other side is too old to {@linkplain Capability#supportsOneWayCalls() support one-way calls},
+ * the method is called as usual, and the caller waits for it to complete.
+ *
+ * <p>
+ * This annotation is ignored on methods that return a value.
+ *
+ * @see RemoteInvocationHandler
+ */
+@Documented
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.METHOD)
+public @interface OneWay {
+}
@@ -0,0 +1,62 @@
+/*******************************************************************************
+ *
+ * Copyright (c) 2012 Oracle Corporation.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *
+ *
+ *******************************************************************************/
+
+package hudson.remoting;
+
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+
+/**
+ * Codec that writes some of the objects in {@link Callable}s, their results, and the arguments of
+ * the calls on exported objects, instead of Java serialization.
+ *
+ * <p>
+ * The objects of the types that the serializer doesn't {@linkplain #accepts(Class) accept} go through Java
+ * serialization as usual, so a serializer can pick the few types it's good at. Its output is embedded in the
+ * Java serialization stream of the channel, so class loaders, exported objects and {@link Pipe}s in the rest of the
+ * graph are handled as before, and so are the nested objects that the serializer writes through
+ * {@link ObjectOutput#writeObject(Object)}.
+ *
+ * <p>
+ * Both sides need a serializer of the same {@linkplain #getName() name}, which they tell each other through
+ * {@link Capability}. Otherwise the channel uses Java serialization alone. The serializer is used from many threads
+ * at once.
+ *
+ * @see Channel#Channel(String, java.util.concurrent.ExecutorService, Channel.Mode, java.io.InputStream, java.io.OutputStream, java.io.OutputStream, boolean, PayloadSerializer)
+ */
+public interface PayloadSerializer {
+    /**
+     * Identifies the format, so that it's only used if the other side reads the same format.
+     */
+    String getName();
+
+    /**
+     * Returns true if this serializer writes the objects of the given type, instead of Java serialization.
+     */
+    boolean accepts(Class<?> type);
+
+    /**
+     * Writes an object of a type that this serializer {@linkplain #accepts(Class) accepts}.
+     */
+    void write(Object o, ObjectOutput out) throws IOException;
+
+    /**
+     * Reads back what {@link #write(Object, ObjectOutput)} wrote.
+     *
+     * @param type
+     *      Type of the object that was written, as loaded on this side.
+     */
+    Object read(Class<?> type, ObjectInput in) throws IOException, ClassNotFoundException;
+}
@@ -119,7 +119,27 @@ abstract class PipeWindow {
         }
     }
 
+    /**
+     * Window that adapts its size to the link, much like TCP Vegas.
+     *
+     * <p>
+     * Once per round trip, we time how long it takes for a byte we sent to be acknowledged.
+     * The smallest such time approximates the latency of the link itself, and anything beyond that
+     * is time our bytes spent queued up, typically because the receiver can't write them out as fast
+     * as we send them. So the window grows while we keep running out of it and the round trip stays
+     * close to the minimum (so that a high-latency link can be filled), and shrinks when the round trip
+     * inflates (so that a slow receiver doesn't have to queue up everything we could send.)
+     * The size stays between {@link #MIN_SIZE} and the given maximum.
+     */
     static class Real extends PipeWindow {
+        /**
+         * Current window size. The number of bytes that can be in flight.
+         */
+        private int size;
+        private final int maxSize;
+        /**
+         * {@link #size} minus the bytes in flight. Can be negative right after the window shrinks.
+         */
         private int available;
         private long written;
         private long acked;
@@ -130,10 +150,31 @@ abstract class PipeWindow {
          */
         private final Key key;
 
-        Real(Key key, int initialSize) {
+        /**
+         * If non-negative, we are timing the round trip of the byte at this offset.
+         */
+        private long probeOffset = -1;
+        private long probeTime;
+        /**
+         * Shortest round trip seen so far, in nanoseconds.
+         */
+        private long minRtt = Long.MAX_VALUE;
+        /**
+         * True until the round trip first inflates. Until then the window doubles, instead of growing gradually.
+         */
+        private boolean slowStart = true;
+        /**
+         * True if the sender ran out of window since the last adjustment. We only grow the window
+         * if it's actually holding the sender back.
+         */
+        private boolean limited;
+
+        Real(Key key, int initialSize, int maxSize) {
             this.key = key;
             this.oid = key.oid;
             this.available = initialSize;
+            this.size = initialSize;
+            this.maxSize = maxSize;
         }
 
         public synchronized void increase(int delta) {
@@ -142,7 +183,53 @@ abstract class PipeWindow {
             }
             available += delta;
             acked += delta;
-            notifyAll();
+            if (probeOffset >= 0 && acked >= probeOffset) {
+                adjust(nanoTime() - probeTime);
+                probeOffset = -1;
+            }
+            if (available >= lowWatermark()) {
+                notifyAll();
+            }
+        }
+
+        /**
+         * Called once per round trip to resize the window.
+         */
+        private void adjust(long rtt) {
+            if (rtt <= 0) {
+                rtt = 1;
+            }
+            if (rtt < minRtt) {
+                minRtt = rtt;
+            }
+            // bytes that are sitting in some queue, as opposed to being on the wire
+            long queued = size * (rtt - minRtt) / rtt;
+
+            int newSize = size;
+            if (queued > size / 2) {
+                newSize = Math.max(MIN_SIZE, size - size / 4);
+                slowStart = false;
+            } else if (limited && queued < size / 8) {
+                newSize = (int) Math.min(maxSize, slowStart ? 2L * size : size + size / 8);
+            }
+            limited = false;
+
+            if (newSize != size) {
+                if (LOGGER.isLoggable(FINER)) {
+                    LOGGER.finer(String.format("resize(%d,%d->%d) rtt=%dus minRtt=%dus",
+                        oid, size, newSize, rtt / 1000, minRtt / 1000));
+                }
+                available += newSize - size;
+                size = newSize;
+            }
+        }
+
+        /**
+         * Once the sender runs out of window, wake it up only after this much is available again,
+         * so that a series of small acks is bundled up instead of fragmenting the writes.
+         */
+        private int lowWatermark() {
+            return Math.max(1, size / 4);
         }
 
         public synchronized int peek() {
@@ -153,25 +240,21 @@ abstract class PipeWindow {
          * Blocks until some space becomes available.
          *
          * <p>
-         * If the window size is empty, induce some delay outside the synchronized block,
-         * to avoid fragmenting the window size. That is, if a bunch of small ACKs come in a sequence,
-         * bundle them up into a bigger size before making a call.
+         * If the window is exhausted, wait until it opens to the low watermark,
+         * instead of resuming at the first small ACK.
          */
         public int get() throws InterruptedException, IOException {
             checkDeath();
             synchronized (this) {
-                if (available>0)
+                if (available > 0) {
                     return available;
+                }
 
-                while (available<=0) {
+                limited = true;
+                while (available < lowWatermark()) {
                     wait();
                     checkDeath();
                 }
-            }
-
-            Thread.sleep(10);
-
-            synchronized (this) {
                 return available;
             }
         }
@@ -182,6 +265,10 @@ abstract class PipeWindow {
             }
             available -= delta;
             written += delta;
+            if (probeOffset < 0) {
+                probeOffset = written;
+                probeTime = nanoTime();
+            }
             /*
             HUDSON-7745 says the following assertion fails, which AFAICT is only possible if multiple
             threads write to OutputStream concurrently, but that doesn't happen in most of the situations, so
@@ -192,7 +279,32 @@ abstract class PipeWindow {
 //            if (available<0)
 //                throw new AssertionError();
         }
+
+        /**
+         * Current window size.
+         */
+        synchronized int size() {
+            return size;
+        }
+
+        /**
+         * The clock that times the round trips. Tests replace it to simulate a link.
+         */
+        long nanoTime() {
+            return System.nanoTime();
+        }
+
+        @Override
+        synchronized void dead(Throwable cause) {
+            super.dead(cause);
+            notifyAll();    // let the blocked sender see it
+        }
     }
 
     private static final Logger LOGGER = Logger.getLogger(PipeWindow.class.getName());
+
+    /**
+     * The window never shrinks below this.
+     */
+    static final int MIN_SIZE = 16 * 1024;
 }
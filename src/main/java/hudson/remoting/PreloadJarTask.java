@@ -17,7 +17,16 @@
 package hudson.remoting;
 
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
 /**
  * {@link Callable} used to deliver a jar file to {@link RemoteClassLoader}.
@@ -46,10 +55,60 @@ final class PreloadJarTask implements DelegatingCallable<Boolean,IOException> {
         if (!(cl instanceof RemoteClassLoader))
             return false;
 
-        RemoteClassLoader rcl = (RemoteClassLoader) cl;
-        boolean r = false;
-        for (URL jar : jars)
-            r |= rcl.prefetch(jar);
-        return r;
+        final RemoteClassLoader rcl = (RemoteClassLoader) cl;
+        if (jars.length==0)
+            return false;
+
+        // each jar streams through its own pipe, so fetch a few of them at a time.
+        // they get threads of their own, as waiting on the channel executor could deadlock if it's bounded.
+        ExecutorService pool = Executors.newFixedThreadPool(Math.min(jars.length,MAX_TRANSFERS), new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r,"Preloading jars");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        List<Future<Boolean>> futures = new ArrayList<Future<Boolean>>();
+        boolean interrupted = false;
+        try {
+            for (final URL jar : jars) {
+                futures.add(pool.submit(new java.util.concurrent.Callable<Boolean>() {
+                    public Boolean call() throws IOException {
+                        return rcl.prefetch(jar);
+                    }
+                }));
+            }
+
+            boolean r = false;
+            for (Future<Boolean> f : futures)
+                r |= f.get();
+            return r;
+        } catch (InterruptedException e) {
+            interrupted = true;
+            throw (IOException)new InterruptedIOException().initCause(e);
+        } catch (ExecutionException e) {
+            Throwable t = e.getCause();
+            if (t instanceof IOException)       throw (IOException)t;
+            if (t instanceof RuntimeException)  throw (RuntimeException)t;
+            if (t instanceof Error)             throw (Error)t;
+            throw new IOException(t);
+        } finally {
+            // if one failed, don't start the rest, and let none of them outlive this call
+            for (Future<Boolean> f : futures)
+                f.cancel(interrupted);
+            pool.shutdown();
+            if (!interrupted) {
+                try {
+                    pool.awaitTermination(Long.MAX_VALUE,TimeUnit.MILLISECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
     }
+
+    /**
+     * Number of jars transferred at once.
+     */
+    static final int MAX_TRANSFERS = Integer.getInteger(Channel.class.getName()+".preloadConcurrency",4);
 }
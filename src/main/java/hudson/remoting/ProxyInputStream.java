@@ -16,17 +16,33 @@
 
 package hudson.remoting;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
 import java.io.Serializable;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 /**
  * {@link InputStream} that reads bits from an exported
  * {@link InputStream} on a remote machine.
  *
  * <p>
- * TODO: pre-fetch bytes in advance
+ * If the other side {@linkplain Capability#supportsInputPrefetch() supports it}, the first read
+ * asks the other side to start pushing the data to us, as fast as it can but never more than
+ * {@link #PREFETCH_WINDOW} bytes ahead of what we read. Reads are then served from the local buffer,
+ * so reading sequentially no longer costs one round trip per call. Otherwise, each read fetches
+ * the bytes with a {@link Chunk} request.
+ *
+ * <p>
+ * This changes when the exported stream is read: up to {@link #PREFETCH_WINDOW} bytes are taken out of it
+ * before we ask for them, which matters for sockets and process pipes, and whatever is still buffered when
+ * this stream is closed is lost. Setting the <tt>hudson.remoting.Channel.inputPrefetchWindow</tt> system
+ * property to 0 restores the reads on demand. {@link #skip(long)} doesn't start prefetching by itself,
+ * and {@link #mark(int)} isn't supported, as before.
  *
  * @author Kohsuke Kawaguchi
  */
@@ -34,6 +50,54 @@ final class ProxyInputStream extends InputStream {
     private Channel channel;
     private int oid;
 
+    /**
+     * True once the other side is pushing the data to us. Guarded by this.
+     */
+    private boolean prefetching;
+    /**
+     * ID of the {@link Prefetcher} on the other side, and the ID this stream is exported as
+     * so that {@link Data} can find us.
+     */
+    private int prefetcherOid, sinkOid;
+    /**
+     * Channel to send {@link Credit}s to. Unlike {@link #channel}, this remains set after close.
+     */
+    private Channel prefetchChannel;
+
+    /**
+     * Guards the fields below, which hold the data pushed to us.
+     * Different from this, because {@link Data} can arrive while the thread that starts
+     * prefetching holds our monitor, waiting for its response.
+     */
+    private final Object lock = new Object();
+    /**
+     * Ring buffer of the received bytes that are yet to be read.
+     */
+    private byte[] ring;
+    private int head, count;
+    /**
+     * Bytes read since we last gave the window back to the sender.
+     */
+    private int consumed;
+    private boolean eof;
+    private IOException failure;
+
+    /**
+     * Used by {@link #read()}, as streams aren't read from several threads at once.
+     */
+    private final byte[] single = new byte[1];
+
+    /**
+     * Ends the stream if the channel goes down while we are prefetching,
+     * as no more {@link Data} can arrive then.
+     */
+    private final Channel.Listener closeListener = new Channel.Listener() {
+        @Override
+        public void onClosed(Channel channel, IOException cause) {
+            end(new ChannelClosedException(cause));
+        }
+    };
+
     /**
      * Creates an already connected {@link ProxyOutputStream}.
      *
@@ -47,6 +111,8 @@ final class ProxyInputStream extends InputStream {
 
     @Override
     public int read() throws IOException {
+        if(prefetch())
+            return readBuffered(single,0,1)==1 ? single[0]&0xFF : -1;
         try {
             Buffer buf = new Chunk(oid, 1).call(channel);
             if(buf.len==1)
@@ -65,6 +131,40 @@ final class ProxyInputStream extends InputStream {
 
     @Override
     public int read(byte b[], int off, int len) throws IOException {
+        if(prefetch())
+            return readBuffered(b,off,len);
+        return readOnDemand(b,off,len);
+    }
+
+    /**
+     * Skips by reading, like {@link InputStream#skip(long)} does, except that it doesn't start prefetching,
+     * so a stream that's only skipped through isn't read ahead.
+     */
+    @Override
+    public long skip(long n) throws IOException {
+        if(n<=0)
+            return 0;
+        if(isPrefetching())
+            return super.skip(n);   // from the buffer
+        byte[] buf = new byte[(int)Math.min(n,SKIP_BUFFER_SIZE)];
+        long remaining = n;
+        while(remaining>0) {
+            int r = readOnDemand(buf,0,(int)Math.min(remaining,buf.length));
+            if(r<0)
+                break;
+            remaining -= r;
+        }
+        return n-remaining;
+    }
+
+    private synchronized boolean isPrefetching() {
+        return prefetching;
+    }
+
+    /**
+     * Fetches the bytes with a {@link Chunk} request.
+     */
+    private int readOnDemand(byte[] b, int off, int len) throws IOException {
         try {
             Buffer buf = new Chunk(oid,len).call(channel);
             if(buf.len==-1) return -1;
@@ -78,13 +178,151 @@ final class ProxyInputStream extends InputStream {
         }
     }
 
+    @Override
+    public int available() throws IOException {
+        synchronized (lock) {
+            return count;
+        }
+    }
+
     @Override
     public synchronized void close() throws IOException {
         if(channel!=null) {
-            channel.send(new EOF(oid));
+            if(prefetching) {
+                channel.unexport(sinkOid);
+                channel.send(new Stop(prefetcherOid));
+            } else {
+                channel.send(new EOF(oid));
+            }
             channel = null;
             oid = -1;
         }
+        end(null);
+    }
+
+    /**
+     * Starts prefetching, unless it's already started or the other side can't do it.
+     *
+     * @return true if reads should be served from the local buffer.
+     */
+    private synchronized boolean prefetch() throws IOException {
+        if(prefetching)
+            return true;
+        if(channel==null || PREFETCH_WINDOW<=0 || !channel.remoteCapability.supportsInputPrefetch())
+            return false;
+
+        synchronized (lock) {
+            ring = new byte[PREFETCH_WINDOW];
+        }
+        prefetchChannel = channel;
+        sinkOid = channel.export(this,false);
+        try {
+            prefetcherOid = new Prefetch(oid,sinkOid,PREFETCH_WINDOW).call(channel);
+        } catch (InterruptedException e) {
+            // the other side may or may not have started, so tell it to close the stream either way
+            channel.unexport(sinkOid);
+            close();
+            throw (InterruptedIOException)new InterruptedIOException().initCause(e);
+        } catch (IOException e) {
+            channel.unexport(sinkOid);
+            throw e;
+        }
+        prefetching = true;
+
+        channel.addListener(closeListener);
+        if(channel.isInClosed())    // closed before we started listening
+            end(new ChannelClosedException(null));
+        return true;
+    }
+
+    /**
+     * Reads from the data pushed to us.
+     */
+    private int readBuffered(byte[] b, int off, int len) throws IOException {
+        if(len==0)
+            return 0;
+
+        int n, credit = 0;
+        synchronized (lock) {
+            try {
+                while(count==0 && !eof)
+                    lock.wait();
+            } catch (InterruptedException e) {
+                // pretend EOF
+                Thread.currentThread().interrupt(); // process interrupt later
+                eof = true;
+            }
+            if(count==0) {
+                if(failure!=null)
+                    throw (IOException)new IOException("Failed to read from the remote stream").initCause(failure);
+                return -1;
+            }
+
+            n = Math.min(len,count);
+            int first = Math.min(n,ring.length-head);
+            System.arraycopy(ring,head,b,off,first);
+            System.arraycopy(ring,0,b,off+first,n-first);
+            head = (head+n)%ring.length;
+            count -= n;
+
+            // give the window back in large enough pieces, so that the sender doesn't trickle
+            consumed += n;
+            if(consumed>=ring.length/4 && !eof) {
+                credit = consumed;
+                consumed = 0;
+            }
+        }
+        if(credit>0)
+            send(prefetchChannel,new Credit(prefetcherOid,credit));
+        return n;
+    }
+
+    /**
+     * Called when {@link Data} arrives.
+     */
+    private void receive(byte[] data) {
+        synchronized (lock) {
+            if(eof)
+                return; // closed
+            if(data.length>ring.length-count) {
+                end(new IOException("Remote stream sent more than the window allows"));
+                return;
+            }
+            int tail = (head+count)%ring.length;
+            int first = Math.min(data.length,ring.length-tail);
+            System.arraycopy(data,0,ring,tail,first);
+            System.arraycopy(data,first,ring,0,data.length-first);
+            count += data.length;
+            lock.notifyAll();
+        }
+    }
+
+    /**
+     * No more data will arrive, because of EOF (if e==null), or an error.
+     */
+    private void end(IOException e) {
+        synchronized (lock) {
+            if(!eof) {
+                eof = true;
+                failure = e;
+            }
+            lock.notifyAll();
+        }
+        if(prefetchChannel!=null)
+            prefetchChannel.removeListener(closeListener);
+    }
+
+    /**
+     * Sends a command that nobody waits for, so that failures are only worth a log message.
+     */
+    private static void send(Channel channel, Command cmd) {
+        try {
+            channel.send(cmd);
+        } catch (ChannelClosedException e) {
+            // the channel is shutting down, and so is the stream
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Failed to send "+cmd, e);
+        }
     }
 
     private static final class Buffer implements Serializable {
@@ -125,6 +363,278 @@ final class ProxyInputStream extends InputStream {
         private static final long serialVersionUID = 1L;
     }
 
+    /**
+     * Starts a {@link Prefetcher} on the side that has the {@link InputStream}.
+     *
+     * @see Capability#supportsInputPrefetch()
+     */
+    private static final class Prefetch extends Request<Integer,IOException> {
+        private final int oid;
+        private final int sinkOid;
+        private final int window;
+
+        public Prefetch(int oid, int sinkOid, int window) {
+            this.oid = oid;
+            this.sinkOid = sinkOid;
+            this.window = window;
+        }
+
+        protected Integer perform(Channel channel) throws IOException {
+            InputStream in = (InputStream) channel.getExportedObject(oid);
+            if(in==null)
+                throw new IOException("Stream "+oid+" is already closed");
+
+            Prefetcher p = new Prefetcher(channel,oid,in,sinkOid,window);
+            p.id = channel.export(p,false);
+            channel.executor.execute(p);
+            return p.id;
+        }
+
+        public String toString() {
+            return "ProxyInputStream.Prefetch("+oid+")";
+        }
+
+        private static final long serialVersionUID = 1L;
+    }
+
+    /**
+     * Reads the exported {@link InputStream} and pushes the data to the reader as {@link Data},
+     * as long as the reader has room for it.
+     */
+    static final class Prefetcher implements Runnable {
+        private final Channel channel;
+        private final int oid;
+        private final InputStream in;
+        private final int sinkOid;
+        /**
+         * The ID we are exported as.
+         */
+        private int id;
+
+        /**
+         * Number of bytes we can send without overflowing the reader's buffer. Guarded by this.
+         */
+        private int window;
+        private boolean stopped;
+        /**
+         * True once we've unexported ourselves and the stream. Guarded by this.
+         */
+        private boolean cleanedUp;
+
+        Prefetcher(Channel channel, int oid, InputStream in, int sinkOid, int window) {
+            this.channel = channel;
+            this.oid = oid;
+            this.in = in;
+            this.sinkOid = sinkOid;
+            this.window = window;
+        }
+
+        public void run() {
+            try {
+                while(true) {
+                    int n;
+                    synchronized (this) {
+                        while(window==0 && !stopped)
+                            wait();
+                        if(stopped)
+                            return;
+                        n = Math.min(window,CHUNK_SIZE);
+                    }
+
+                    byte[] buf = new byte[n];
+                    int len = in.read(buf);
+                    if(len<0) {
+                        send(channel,new Data(sinkOid,null,null));
+                        return;
+                    }
+                    if(len==0)
+                        continue;
+                    if(len<n) {
+                        byte[] b = new byte[len];
+                        System.arraycopy(buf,0,b,0,len);
+                        buf = b;
+                    }
+                    synchronized (this) {
+                        window -= len;
+                    }
+                    send(channel,new Data(sinkOid,buf,null));
+                }
+            } catch (IOException e) {
+                if(!isStopped())
+                    send(channel,new Data(sinkOid,null,e));
+            } catch (InterruptedException e) {
+                send(channel,new Data(sinkOid,null,(IOException)new InterruptedIOException().initCause(e)));
+            } finally {
+                // the reader has all it'll get, so it only sends us Credits and Stop from now on, which we can ignore
+                cleanUp();
+            }
+        }
+
+        /**
+         * Unexports ourselves and the stream, and closes the stream, unless that's already done.
+         */
+        private void cleanUp() {
+            synchronized (this) {
+                if(cleanedUp)
+                    return;
+                cleanedUp = true;
+            }
+            channel.unexport(id);
+            channel.unexport(oid);
+            try {
+                in.close();
+            } catch (IOException e) {
+                // ignore errors
+            }
+        }
+
+        private synchronized boolean isStopped() {
+            return stopped;
+        }
+
+        synchronized void credit(int n) {
+            window += n;
+            notifyAll();
+        }
+
+        /**
+         * The reader is gone. Stop reading and close the stream.
+         */
+        void stop() {
+            synchronized (this) {
+                stopped = true;
+                notifyAll();
+            }
+            cleanUp();
+        }
+    }
+
+    /**
+     * Bytes pushed by {@link Prefetcher}, or its EOF (when both the data and the failure are null),
+     * or its failure.
+     */
+    static final class Data extends Command {
+        private final int sinkOid;
+        private final byte[] buf;
+        private final IOException failure;
+
+        Data(int sinkOid, byte[] buf, IOException failure) {
+            super(false);
+            this.sinkOid = sinkOid;
+            this.buf = buf;
+            this.failure = failure;
+        }
+
+        protected void execute(Channel channel) {
+            ProxyInputStream s = (ProxyInputStream) channel.getExportedObject(sinkOid);
+            if(s==null)
+                return; // already closed
+            if(buf!=null)
+                s.receive(buf);
+            else
+                s.end(failure);
+        }
+
+        @Override
+        byte getFrameTag() {
+            // failures need Java serialization
+            return failure==null ? FramedCommandTransport.TAG_INPUT_DATA : FramedCommandTransport.TAG_SERIALIZED;
+        }
+
+        @Override
+        void writeFrame(DataOutputStream out) throws IOException {
+            out.writeInt(sinkOid);
+            if(buf!=null)
+                out.write(buf);
+        }
+
+        @Override
+        int getFrameSize() {
+            return 4+(buf!=null ? buf.length : 0);
+        }
+
+        static Data readFrame(DataInputStream in) throws IOException {
+            int sinkOid = in.readInt();
+            // the payload is fully buffered, so the rest of it is the data. none means EOF.
+            int len = in.available();
+            if(len==0)
+                return new Data(sinkOid,null,null);
+            byte[] buf = new byte[len];
+            in.readFully(buf);
+            return new Data(sinkOid,buf,null);
+        }
+
+        public String toString() {
+            return "ProxyInputStream.Data("+sinkOid+","+(buf!=null ? buf.length : failure!=null ? "failure" : "EOF")+")";
+        }
+
+        private static final long serialVersionUID = 1L;
+    }
+
+    /**
+     * Tells {@link Prefetcher} that the reader has made room for more data.
+     */
+    static final class Credit extends Command {
+        private final int prefetcherOid;
+        private final int size;
+
+        Credit(int prefetcherOid, int size) {
+            super(false);
+            this.prefetcherOid = prefetcherOid;
+            this.size = size;
+        }
+
+        protected void execute(Channel channel) {
+            Prefetcher p = (Prefetcher) channel.getExportedObject(prefetcherOid);
+            if(p!=null)
+                p.credit(size);
+        }
+
+        @Override
+        byte getFrameTag() {
+            return FramedCommandTransport.TAG_INPUT_CREDIT;
+        }
+
+        @Override
+        void writeFrame(DataOutputStream out) throws IOException {
+            out.writeInt(prefetcherOid);
+            out.writeInt(size);
+        }
+
+        static Credit readFrame(DataInputStream in) throws IOException {
+            return new Credit(in.readInt(),in.readInt());
+        }
+
+        public String toString() {
+            return "ProxyInputStream.Credit("+prefetcherOid+","+size+")";
+        }
+
+        private static final long serialVersionUID = 1L;
+    }
+
+    /**
+     * Closes the stream that {@link Prefetcher} reads from. The prefetching counterpart of {@link EOF}.
+     */
+    private static final class Stop extends Command {
+        private final int prefetcherOid;
+
+        public Stop(int prefetcherOid) {
+            this.prefetcherOid = prefetcherOid;
+        }
+
+        protected void execute(Channel channel) {
+            Prefetcher p = (Prefetcher) channel.getExportedObject(prefetcherOid);
+            if(p!=null)
+                p.stop();
+        }
+
+        public String toString() {
+            return "ProxyInputStream.Stop("+prefetcherOid+")";
+        }
+
+        private static final long serialVersionUID = 1L;
+    }
+
     /**
      * {@link Command} for sending EOF.
      */
@@ -152,4 +662,18 @@ final class ProxyInputStream extends InputStream {
 
         private static final long serialVersionUID = 1L;
     }
+
+    private static final Logger LOGGER = Logger.getLogger(ProxyInputStream.class.getName());
+
+    /**
+     * Maximum number of bytes the other side pushes ahead of the reads. 0 to always fetch on demand.
+     */
+    static final int PREFETCH_WINDOW = Integer.getInteger(Channel.class.getName()+".inputPrefetchWindow",128*1024);
+
+    private static final int SKIP_BUFFER_SIZE = 8192;
+
+    /**
+     * Maximum size of a {@link Data}.
+     */
+    private static final int CHUNK_SIZE = 8192;
 }
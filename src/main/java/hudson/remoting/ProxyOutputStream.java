@@ -17,8 +17,13 @@
 package hudson.remoting;
 
 import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InterruptedIOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectStreamException;
 import java.io.OutputStream;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -46,6 +51,12 @@ final class ProxyOutputStream extends OutputStream {
      */
     private boolean closed;
 
+    /**
+     * Used by {@link #write(int)}. Chunks are encoded before {@link Channel#send(Command)} returns,
+     * so this can be reused right away.
+     */
+    private final byte[] single = new byte[1];
+
     /**
      * Creates unconnected {@link ProxyOutputStream}.
      * The returned stream accepts data right away, and
@@ -91,8 +102,9 @@ final class ProxyOutputStream extends OutputStream {
         }
     }
 
-    public void write(int b) throws IOException {
-        write(new byte[]{(byte) b}, 0, 1);
+    public synchronized void write(int b) throws IOException {
+        single[0] = (byte) b;
+        write(single, 0, 1);
     }
 
     public void write(byte b[], int off, int len) throws IOException {
@@ -180,32 +192,71 @@ final class ProxyOutputStream extends OutputStream {
 
     /**
      * {@link Command} for sending bytes.
+     *
+     * <p>
+     * On the sending side, this refers to the caller's buffer without copying it, which is fine because
+     * the transports encode commands before {@link Channel#send(Command)} returns. The data then gets
+     * copied once, straight into the outgoing frame. On the receiving side, the chunk holds on to the frame
+     * it was decoded from, until the data is written to the destination stream.
      */
-    private static final class Chunk extends Command {
+    static final class Chunk extends Command {
         private final int oid;
+        /**
+         * The data is {@code buf[off, off+len)}.
+         * The serialized form always has {@code off==0 && len==buf.length}.
+         */
         private final byte[] buf;
-        private final int requestId = Request.getCurrentRequestId();
+        private final int requestId;
+        private transient int off, len;
+        /**
+         * If non-null, {@link #buf} is returned to this pool once the data is written out.
+         */
+        private transient BufferPool pool;
 
         public Chunk(int oid, byte[] buf, int start, int len) {
             // to improve the performance when a channel is used purely as a pipe,
             // don't record the stack trace. On FilePath.writeToTar case, the stack trace and the OOS header
             // takes up about 1.5K.
+            this(oid, Request.getCurrentRequestId(), buf, start, len, null);
+        }
+
+        private Chunk(int oid, int requestId, byte[] buf, int off, int len, BufferPool pool) {
             super(false);
             this.oid = oid;
-            if (start == 0 && len == buf.length) {
-                this.buf = buf;
-            } else {
-                this.buf = new byte[len];
-                System.arraycopy(buf, start, this.buf, 0, len);
+            this.requestId = requestId;
+            this.buf = buf;
+            this.off = off;
+            this.len = len;
+            this.pool = pool;
+        }
+
+        /**
+         * Java serialization sends the whole array, so trim it to the data first.
+         */
+        private Object writeReplace() throws ObjectStreamException {
+            if (off == 0 && len == buf.length) {
+                return this;
             }
+            byte[] data = new byte[len];
+            System.arraycopy(buf, off, data, 0, len);
+            return new Chunk(oid, requestId, data, 0, len, null);
+        }
+
+        private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+            in.defaultReadObject();
+            len = buf.length;
         }
 
         protected void execute(final Channel channel) {
             final OutputStream os = (OutputStream) channel.getExportedObject(oid);
+            final boolean batchAcks = channel.remoteCapability.supportsMultiAck();
+            if (batchAcks) {
+                channel.ackBatcher.onQueued();
+            }
             markForIoSync(channel, requestId, channel.pipeWriter.submit(new Runnable() {
                 public void run() {
                     try {
-                        os.write(buf);
+                        os.write(buf, off, len);
                     } catch (IOException e) {
                         try {
                             channel.send(new NotifyDeadWriter(e, oid));
@@ -217,9 +268,14 @@ final class ProxyOutputStream extends OutputStream {
                             LOGGER.log(Level.WARNING, "... the failed write was:", e);
                         }
                     } finally {
-                        if (channel.remoteCapability.supportsPipeThrottling()) {
+                        if (pool != null) {
+                            pool.release(buf);
+                        }
+                        if (batchAcks) {
+                            channel.ackBatcher.ack(oid, len);
+                        } else if (channel.remoteCapability.supportsPipeThrottling()) {
                             try {
-                                channel.send(new Ack(oid, buf.length));
+                                channel.send(new Ack(oid, len));
                             } catch (ChannelClosedException x) {
                                 // the other direction can be already closed if the connection
                                 // shut down is initiated from this side. In that case, remain silent.
@@ -233,8 +289,39 @@ final class ProxyOutputStream extends OutputStream {
             }));
         }
 
+        @Override
+        byte getFrameTag() {
+            return FramedCommandTransport.TAG_CHUNK;
+        }
+
+        @Override
+        void writeFrame(DataOutputStream out) throws IOException {
+            out.writeInt(oid);
+            out.writeInt(requestId);
+            out.write(buf, off, len);
+        }
+
+        @Override
+        int getFrameSize() {
+            return 8 + len;
+        }
+
+        /**
+         * Decodes the frame payload {@code frame[off, off+len)}, which the returned chunk keeps.
+         */
+        static Chunk readFrame(byte[] frame, int off, int len, BufferPool pool) throws IOException {
+            if (len < 8) {
+                throw new EOFException();
+            }
+            return new Chunk(readInt(frame, off), readInt(frame, off + 4), frame, off + 8, len - 8, pool);
+        }
+
+        private static int readInt(byte[] b, int i) {
+            return (b[i] << 24) | ((b[i + 1] & 0xFF) << 16) | ((b[i + 2] & 0xFF) << 8) | (b[i + 3] & 0xFF);
+        }
+
         public String toString() {
-            return "Pipe.Chunk(" + oid + "," + buf.length + ")";
+            return "Pipe.Chunk(" + oid + "," + len + ")";
         }
 
         private static final long serialVersionUID = 1L;
@@ -243,7 +330,7 @@ final class ProxyOutputStream extends OutputStream {
     /**
      * {@link Command} for flushing.
      */
-    private static final class Flush extends Command {
+    static final class Flush extends Command {
         private final int oid;
 
         public Flush(int oid) {
@@ -264,6 +351,20 @@ final class ProxyOutputStream extends OutputStream {
             });
         }
 
+        @Override
+        byte getFrameTag() {
+            return FramedCommandTransport.TAG_FLUSH;
+        }
+
+        @Override
+        void writeFrame(DataOutputStream out) throws IOException {
+            out.writeInt(oid);
+        }
+
+        static Flush readFrame(DataInputStream in) throws IOException {
+            return new Flush(in.readInt());
+        }
+
         public String toString() {
             return "Pipe.Flush(" + oid + ")";
         }
@@ -301,13 +402,18 @@ final class ProxyOutputStream extends OutputStream {
     /**
      * {@link Command} for sending EOF.
      */
-    private static final class EOF extends Command {
+    static final class EOF extends Command {
         private final int oid;
 
         public EOF(int oid) {
             this.oid = oid;
         }
 
+        private EOF(int oid, boolean recordCreatedAt) {
+            super(recordCreatedAt);
+            this.oid = oid;
+        }
+
 
         protected void execute(final Channel channel) {
             final OutputStream os = (OutputStream) channel.getExportedObject(oid);
@@ -323,6 +429,20 @@ final class ProxyOutputStream extends OutputStream {
             });
         }
 
+        @Override
+        byte getFrameTag() {
+            return FramedCommandTransport.TAG_EOF;
+        }
+
+        @Override
+        void writeFrame(DataOutputStream out) throws IOException {
+            out.writeInt(oid);
+        }
+
+        static EOF readFrame(DataInputStream in) throws IOException {
+            return new EOF(in.readInt(), false);
+        }
+
         public String toString() {
             return "Pipe.EOF(" + oid + ")";
         }
@@ -333,7 +453,7 @@ final class ProxyOutputStream extends OutputStream {
     /**
      * {@link Command} to notify the sender that it can send some more data.
      */
-    private static class Ack extends Command {
+    static class Ack extends Command {
         /**
          * The oid of the {@link OutputStream} on the receiver side of the data.
          */
@@ -354,6 +474,21 @@ final class ProxyOutputStream extends OutputStream {
             w.increase(size);
         }
 
+        @Override
+        byte getFrameTag() {
+            return FramedCommandTransport.TAG_ACK;
+        }
+
+        @Override
+        void writeFrame(DataOutputStream out) throws IOException {
+            out.writeInt(oid);
+            out.writeInt(size);
+        }
+
+        static Ack readFrame(DataInputStream in) throws IOException {
+            return new Ack(in.readInt(), in.readInt());
+        }
+
         public String toString() {
             return "Pipe.Ack(" + oid + ',' + size + ")";
         }
@@ -361,6 +496,67 @@ final class ProxyOutputStream extends OutputStream {
         private static final long serialVersionUID = 1L;
     }
 
+    /**
+     * Bundles {@link Ack}s of any number of pipes into one command.
+     *
+     * @see AckBatcher
+     * @see Capability#supportsMultiAck()
+     */
+    static class MultiAck extends Command {
+        private final int[] oids;
+        private final int[] sizes;
+
+        MultiAck(int[] oids, int[] sizes) {
+            super(false);
+            this.oids = oids;
+            this.sizes = sizes;
+        }
+
+        protected void execute(Channel channel) {
+            for (int i = 0; i < oids.length; i++) {
+                channel.getPipeWindow(oids[i]).increase(sizes[i]);
+            }
+        }
+
+        @Override
+        byte getFrameTag() {
+            return FramedCommandTransport.TAG_MULTI_ACK;
+        }
+
+        @Override
+        void writeFrame(DataOutputStream out) throws IOException {
+            out.writeInt(oids.length);
+            for (int i = 0; i < oids.length; i++) {
+                out.writeInt(oids[i]);
+                out.writeInt(sizes[i]);
+            }
+        }
+
+        static MultiAck readFrame(DataInputStream in) throws IOException {
+            int n = FramedCommandTransport.readLength(in, 8);
+            int[] oids = new int[n];
+            int[] sizes = new int[n];
+            for (int i = 0; i < n; i++) {
+                oids[i] = in.readInt();
+                sizes[i] = in.readInt();
+            }
+            return new MultiAck(oids, sizes);
+        }
+
+        public String toString() {
+            StringBuilder buf = new StringBuilder("Pipe.MultiAck(");
+            for (int i = 0; i < oids.length; i++) {
+                if (i > 0) {
+                    buf.append(',');
+                }
+                buf.append(oids[i]).append(':').append(sizes[i]);
+            }
+            return buf.append(')').toString();
+        }
+
+        private static final long serialVersionUID = 1L;
+    }
+
     /**
      * {@link Command} to notify the sender that the receiver is dead.
      */
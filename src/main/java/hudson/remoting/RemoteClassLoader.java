@@ -16,23 +16,34 @@
 
 package hudson.remoting;
 
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
 import java.io.Serializable;
+import java.lang.reflect.Method;
 import java.net.URL;
 import java.net.MalformedURLException;
 import java.net.URLClassLoader;
 import java.util.Enumeration;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.Vector;
 import java.util.List;
 import java.util.ArrayList;
 import java.util.Set;
 import java.util.HashSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 /**
  * Loads class files from the other peer through {@link Channel}.
@@ -56,16 +67,31 @@ final class RemoteClassLoader extends URLClassLoader {
      */
     private final Channel channel;
 
-    private final Map<String,File> resourceMap = new HashMap<String,File>();
-    private final Map<String,Vector<File>> resourcesMap = new HashMap<String,Vector<File>>();
+    private final Map<String,File> resourceMap = new ConcurrentHashMap<String,File>();
+    private final Map<String,Vector<File>> resourcesMap = new ConcurrentHashMap<String,Vector<File>>();
 
     /**
-     * List of jars that are already pre-fetched through {@link #addURL(URL)}.
+     * Jars that are already pre-fetched, or being pre-fetched, through {@link #addURL(URL)}, keyed by their URLs.
+     * The task completes once the jar is added.
      *
      * <p>
      * Note that URLs in this set are URLs on the other peer.
      */
-    private final Set<URL> prefetchedJars = new HashSet<URL>();
+    private final ConcurrentMap<String,FutureTask<?>> prefetchedJars = new ConcurrentHashMap<String,FutureTask<?>>();
+
+    /**
+     * Class files that the other side sent along with the classes we asked for, and that we haven't loaded yet.
+     * Guarded by itself, as is {@link #stagedSize}.
+     *
+     * @see ClassBundle
+     */
+    private final Map<String,ClassFile> staged = new HashMap<String,ClassFile>();
+    private int stagedSize;
+
+    /**
+     * Names of the classes and the resources that the other side told us it doesn't have.
+     */
+    private final Misses classMisses = new Misses(), resourceMisses = new Misses(), resourcesMisses = new Misses();
 
     public static ClassLoader create(ClassLoader parent, IClassLoader proxy) {
         if(proxy instanceof ClassLoaderProxy) {
@@ -98,6 +124,10 @@ final class RemoteClassLoader extends URLClassLoader {
         } catch (ClassNotFoundException e) {
             if(channel.isRestricted)
                 throw e;
+            if(classMisses.contains(name)) {
+                channel.negativeCacheHitCount.incrementAndGet();
+                throw e;
+            }
             // delegate to remote
             if (channel.remoteCapability.supportsMultiClassLoaderRPC()) {
                 /*
@@ -111,32 +141,106 @@ final class RemoteClassLoader extends URLClassLoader {
                     along with the reference to the initiating ClassLoader (if the initiating ClassLoader has already loaded this class,
                     then the class file image is wasted.)
                  */
-                long startTime = System.nanoTime();
-                ClassFile cf = proxy.fetch2(name);
-                channel.classLoadingTime.addAndGet(System.nanoTime()-startTime);
-                channel.classLoadingCount.incrementAndGet();
+                ClassFile cf = takeStaged(name);
+                ClassBundle bundle = null;
+                if (cf==null) {
+                    long startTime = System.nanoTime();
+                    try {
+                        if (channel.remoteCapability.supportsClassBundles()) {
+                            bundle = proxy.fetch3(name);
+                            cf = bundle.classFile;
+                        } else {
+                            cf = proxy.fetch2(name);
+                        }
+                    } catch (ClassNotFoundException x) {
+                        onMiss(classMisses,name);
+                        throw x;
+                    } finally {
+                        channel.classLoadingTime.addAndGet(System.nanoTime()-startTime);
+                        channel.classLoadingCount.incrementAndGet();
+                    }
+                }
 
                 ClassLoader cl = channel.importedClassLoaders.get(cf.classLoader);
                 if (cl instanceof RemoteClassLoader) {
                     RemoteClassLoader rcl = (RemoteClassLoader) cl;
+                    if (bundle!=null)
+                        // the JVM resolves the references of the class through the loader that defines it, not through us
+                        rcl.stage(bundle);
                     Class<?> c = rcl.findLoadedClass(name);
-                    if (c==null)
-                        c = rcl.loadClassFile(name,cf.classImage);
+                    if (c==null) {
+                        try {
+                            c = rcl.loadClassFile(name,cf.classImage);
+                        } catch (LinkageError x) {
+                            // we don't hold rcl's lock for this class, so another thread may have defined it first
+                            c = rcl.findLoadedClass(name);
+                            if (c==null)
+                                throw x;
+                        }
+                    }
                     return c;
                 } else {
                     return cl.loadClass(name);
                 }
             } else {
                 long startTime = System.nanoTime();
-                byte[] bytes = proxy.fetch(name);
-                channel.classLoadingTime.addAndGet(System.nanoTime()-startTime);
-                channel.classLoadingCount.incrementAndGet();
+                byte[] bytes;
+                try {
+                    bytes = proxy.fetch(name);
+                } catch (ClassNotFoundException x) {
+                    onMiss(classMisses,name);
+                    throw x;
+                } finally {
+                    channel.classLoadingTime.addAndGet(System.nanoTime()-startTime);
+                    channel.classLoadingCount.incrementAndGet();
+                }
 
                 return loadClassFile(name, bytes);
             }
         }
     }
 
+    private void onMiss(Misses misses, String name) {
+        misses.add(name);
+        channel.remoteMissCount.incrementAndGet();
+    }
+
+    /**
+     * Holds on to the related classes in the bundle, so that we can define them without asking the other side.
+     * This needs to be the loader that defines the requested class, which is also the one that the bundle's classes
+     * come from.
+     */
+    private void stage(ClassBundle bundle) {
+        int n=0;
+        synchronized (staged) {
+            for (int i=0; i<bundle.names.length; i++) {
+                byte[] image = bundle.images[i];
+                if (stagedSize+image.length > MAX_STAGED_SIZE)
+                    break;
+                if (staged.put(bundle.names[i],new ClassFile(bundle.classFile.classLoader,image))==null) {
+                    stagedSize += image.length;
+                    n++;
+                }
+            }
+        }
+        channel.classPrefetchCount.addAndGet(n);
+    }
+
+    /**
+     * Takes out the staged class file of the given class, if we have one.
+     */
+    private ClassFile takeStaged(String name) {
+        ClassFile cf;
+        synchronized (staged) {
+            cf = staged.remove(name);
+            if (cf==null)
+                return null;
+            stagedSize -= cf.classImage.length;
+        }
+        channel.classPrefetchHitCount.incrementAndGet();
+        return cf;
+    }
+
     private Class<?> loadClassFile(String name, byte[] bytes) {
         // define package
         definePackage(name);
@@ -157,7 +261,11 @@ final class RemoteClassLoader extends URLClassLoader {
         if (getPackage(packageName) != null)    // already defined
             return;
 
-        definePackage(packageName, null, null, null, null, null, null, null);
+        try {
+            definePackage(packageName, null, null, null, null, null, null, null);
+        } catch (IllegalArgumentException e) {
+            // another thread defined it first
+        }
     }
 
     public URL findResource(String name) {
@@ -166,13 +274,14 @@ final class RemoteClassLoader extends URLClassLoader {
         if(url!=null || channel.isRestricted)   return url;
 
         try {
-            if(resourceMap.containsKey(name)) {
-                File f = resourceMap.get(name);
-                if(f==null) return null;    // no such resource
-                if(f.exists())
-                    // be defensive against external factors that might have deleted this file, since we use /tmp
-                    // see http://www.nabble.com/Surefire-reports-tt17554215.html
-                    return f.toURI().toURL();
+            File f = resourceMap.get(name);
+            if(f!=null && f.exists())
+                // be defensive against external factors that might have deleted this file, since we use /tmp
+                // see http://www.nabble.com/Surefire-reports-tt17554215.html
+                return f.toURI().toURL();
+            if(resourceMisses.contains(name)) {
+                channel.negativeCacheHitCount.incrementAndGet();
+                return null;
             }
 
             long startTime = System.nanoTime();
@@ -180,7 +289,7 @@ final class RemoteClassLoader extends URLClassLoader {
             channel.resourceLoadingTime.addAndGet(System.nanoTime()-startTime);
             channel.resourceLoadingCount.incrementAndGet();
             if(image==null) {
-                resourceMap.put(name,null);
+                onMiss(resourceMisses,name);
                 return null;
             }
     
@@ -215,11 +324,19 @@ final class RemoteClassLoader extends URLClassLoader {
             if(urls!=null)
                 return urls.elements();
         }
+        if(resourcesMisses.contains(name)) {
+            channel.negativeCacheHitCount.incrementAndGet();
+            return new Vector<URL>().elements();
+        }
 
         long startTime = System.nanoTime();
         byte[][] images = proxy.getResources(name);
         channel.resourceLoadingTime.addAndGet(System.nanoTime()-startTime);
         channel.resourceLoadingCount.incrementAndGet();
+        if(images.length==0) {
+            onMiss(resourcesMisses,name);
+            return new Vector<URL>().elements();
+        }
 
         files = new Vector<File>();
         for( byte[] image: images )
@@ -229,58 +346,8 @@ final class RemoteClassLoader extends URLClassLoader {
         return toURLs(files).elements();
     }
 
-    // FIXME move to utils
-    /** Instructs Java to recursively delete the given directory (dir) and its contents when the JVM exits.
-     *  @param dir File  customer  representing directory to delete. If this file argument is not a directory, it will still
-     *  be deleted. <p>
-     *  The method works in Java 1.3, Java 1.4, Java 5.0 and Java 6.0; but it does not work with some early Java 6.0 versions
-     *  See http://bugs.sun.com/bugdatabase/view_bug.do?bug_id=6437591
-     */
-    public static void deleteDirectoryOnExit(final File dir) {
-        // Delete this on exit.  Delete on exit requests are processed in REVERSE order
-        dir.deleteOnExit();
-
-        // If it's a directory, visit its children.  This recursive walk has to be done AFTER calling deleteOnExit
-        // on the directory itself because Java deletes the files to be deleted on exit in reverse order.
-        if (dir.isDirectory()) {
-            File[] childFiles = dir.listFiles();
-            if (childFiles != null) { // listFiles may return null if there's an IO error
-                for (File f: childFiles) { deleteDirectoryOnExit(f); }
-            }
-        }
-    }
-
-
     private File makeResource(String name, byte[] image) throws IOException {
-        File tmpFile = createTempDir();
-        File resource = new File(tmpFile, name);
-        resource.getParentFile().mkdirs();
-
-        FileOutputStream fos = new FileOutputStream(resource);
-        fos.write(image);
-        fos.close();
-
-        deleteDirectoryOnExit(tmpFile);
-
-        return resource;
-    }
-
-    private File createTempDir() throws IOException {
-    	// work around sun bug 6325169 on windows
-    	// see http://bugs.sun.com/bugdatabase/view_bug.do?bug_id=6325169
-        int nRetry=0;
-        while (true) {
-            try {
-                File tmpFile = File.createTempFile("hudson-remoting", "");
-                tmpFile.delete();
-                tmpFile.mkdir();
-                return tmpFile;
-            } catch (IOException e) {
-                if (nRetry++ < 100)
-                    continue;
-                throw e;
-            }
-        }
+        return ResourceStore.get().add(name,image);
     }
 
     /**
@@ -293,18 +360,119 @@ final class RemoteClassLoader extends URLClassLoader {
      *      true if the prefetch happened. false if the jar is already prefetched.
      * @see Channel#preloadJar(Callable, Class[]) 
      */
-    /*package*/ boolean prefetch(URL jar) throws IOException {
-        synchronized (prefetchedJars) {
-            if(prefetchedJars.contains(jar))
-                return false;
+    /*package*/ boolean prefetch(final URL jar) throws IOException {
+        // threads that prefetch the same jar wait for the first one, but other jars are fetched concurrently
+        FutureTask<?> task = new FutureTask<Void>(new java.util.concurrent.Callable<Void>() {
+            public Void call() throws IOException {
+                doPrefetch(jar);
+                return null;
+            }
+        });
+        String key = jar.toExternalForm();
+        FutureTask<?> existing = prefetchedJars.putIfAbsent(key,task);
+        if (existing!=null)
+            task = existing;
+        else
+            task.run();
 
-            String p = jar.getPath().replace('\\','/');
-            p = p.substring(p.lastIndexOf('/')+1);
-            File localJar = makeResource(p,proxy.fetchJar(jar));
-            addURL(localJar.toURI().toURL());
-            prefetchedJars.add(jar);
-            return true;
+        try {
+            task.get();
+        } catch (InterruptedException e) {
+            throw (IOException)new InterruptedIOException().initCause(e);
+        } catch (ExecutionException e) {
+            prefetchedJars.remove(key,task);   // let the next caller retry
+            Throwable t = e.getCause();
+            if (t instanceof IOException)       throw (IOException)t;
+            if (t instanceof RuntimeException)  throw (RuntimeException)t;
+            if (t instanceof Error)             throw (Error)t;
+            throw new IOException(t);
+        }
+        return existing==null;
+    }
+
+    /**
+     * Fetches the jar, or finds it in {@link JarCache}, and adds it to the class path.
+     */
+    private void doPrefetch(URL jar) throws IOException {
+        File localJar = null;
+        JarCache cache = JarCache.DEFAULT;
+        if (cache!=null && channel.remoteCapability.supportsJarDigests()) {
+            String digest = proxy.fetchJarDigest(jar);
+            localJar = cache.get(digest);
+            if (localJar!=null) {
+                channel.jarCacheHitCount.incrementAndGet();
+            } else {
+                try {
+                    localJar = transferJar(jar,cache,digest);
+                } catch (IOException e) {
+                    LOGGER.log(Level.WARNING, "Failed to cache "+jar, e);
+                }
+            }
+        }
+
+        if (localJar==null)
+            localJar = transferJar(jar,null,null);
+        addURL(localJar.toURI().toURL());
+        // the jar may have what we couldn't find before
+        classMisses.clear();
+        resourceMisses.clear();
+        resourcesMisses.clear();
+    }
+
+    /**
+     * Transfers the jar from the other side into the cache, or into {@link ResourceStore} if the cache is null.
+     *
+     * <p>
+     * If the other side supports it, the jar is streamed through a {@link Pipe} straight into the file,
+     * so the memory it takes is bounded by the pipe window, no matter how large the jar is,
+     * and other commands on the channel get their turn in between the chunks.
+     */
+    private File transferJar(URL jar, JarCache cache, String digest) throws IOException {
+        if (!channel.remoteCapability.supportsJarStreaming())
+            return store(jar,cache,digest,new ByteArrayInputStream(proxy.fetchJar(jar)));
+
+        Pipe pipe = Pipe.createRemoteToLocal();
+        Future<Void> f = proxy.streamJar(jar,pipe);
+        InputStream in = pipe.getIn();
+        File localJar = null;
+        IOException failure = null;
+        try {
+            localJar = store(jar,cache,digest,in);
+        } catch (IOException e) {
+            failure = e;
+        } finally {
+            // if we failed halfway, keep reading so that the other side isn't stuck on a full window
+            try {
+                byte[] buf = new byte[8192];
+                while (in.read(buf)>=0)
+                    ;
+            } catch (IOException e) {
+                if (failure==null)
+                    failure = e;    // otherwise the first failure says more
+            } finally {
+                in.close();
+            }
+        }
+
+        try {
+            // the other side closes the pipe even if it fails, in which case that's the real cause
+            f.get();
+        } catch (InterruptedException e) {
+            throw (IOException)new InterruptedIOException().initCause(e);
+        } catch (ExecutionException e) {
+            throw new IOException("Failed to fetch "+jar, e.getCause());
         }
+        if (failure!=null)
+            throw failure;
+        return localJar;
+    }
+
+    private File store(URL jar, JarCache cache, String digest, InputStream in) throws IOException {
+        if (cache!=null)
+            return cache.put(digest,in);
+        String p = jar.getPath().replace('\\','/');
+        p = p.substring(p.lastIndexOf('/')+1);
+        return ResourceStore.get().add(p,in);
     }
 
     static class ClassFile implements Serializable {
@@ -322,13 +490,151 @@ final class RemoteClassLoader extends URLClassLoader {
         private static final long serialVersionUID = 1L;
     }
 
+    /**
+     * Bounded set of names that the other side doesn't have, oldest ones dropped first.
+     *
+     * <p>
+     * Frameworks like Groovy, Ant and XML parsers probe for optional classes and resources,
+     * and without this, each such probe would cost a round trip, only to get an exception back.
+     * The other side can gain the class later, for example when a plugin is installed,
+     * so a name is forgotten {@link #MISS_TTL} milliseconds after it was found missing,
+     * no matter how often it's probed in the mean time.
+     */
+    private static final class Misses {
+        /**
+         * When each name was found missing, in {@link System#nanoTime()}, oldest first.
+         */
+        private final Map<String,Long> names = new LinkedHashMap<String,Long>() {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String,Long> eldest) {
+                return size() > MAX_MISSES;
+            }
+        };
+
+        synchronized boolean contains(String name) {
+            Long t = names.get(name);
+            if (t==null)
+                return false;
+            if (System.nanoTime()-t > MISS_TTL*1000000L) {
+                names.remove(name); // check again
+                return false;
+            }
+            return true;
+        }
+
+        synchronized void add(String name) {
+            names.remove(name); // move it to the end
+            names.put(name,System.nanoTime());
+        }
+
+        synchronized void clear() {
+            names.clear();
+        }
+    }
+
+    /**
+     * {@link ClassFile} of the class we asked for, along with the class files of the classes it refers to,
+     * which are likely to be loaded soon. The related classes belong to the same class loader as the requested class,
+     * and come from the same jar file or directory.
+     *
+     * @see IClassLoader#fetch3(String)
+     */
+    static class ClassBundle implements Serializable {
+        final ClassFile classFile;
+        final String[] names;
+        final byte[][] images;
+
+        ClassBundle(ClassFile classFile, String[] names, byte[][] images) {
+            this.classFile = classFile;
+            this.names = names;
+            this.images = images;
+        }
+
+        /**
+         * Lists the names of the classes in the constant pool of the given class file,
+         * which include the super types and all the classes that the code uses.
+         */
+        static List<String> referencedClasses(byte[] image) throws IOException {
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(image));
+            if (in.readInt()!=0xCAFEBABE)
+                throw new IOException("Not a class file");
+            in.skipBytes(4);    // version
+
+            int count = in.readUnsignedShort();
+            String[] utf8 = new String[count];
+            int[] classes = new int[count];
+            int nClasses = 0;
+            for (int i=1; i<count; i++) {
+                int tag = in.readUnsignedByte();
+                switch (tag) {
+                case 1:     // Utf8
+                    utf8[i] = in.readUTF();
+                    break;
+                case 7:     // Class
+                    classes[nClasses++] = in.readUnsignedShort();
+                    break;
+                case 5:     // Long
+                case 6:     // Double
+                    in.skipBytes(8);
+                    i++;    // takes up two entries
+                    break;
+                case 3: case 4: case 9: case 10: case 11: case 12: case 17: case 18:
+                    in.skipBytes(4);
+                    break;
+                case 15:    // MethodHandle
+                    in.skipBytes(3);
+                    break;
+                case 8: case 16: case 19: case 20:
+                    in.skipBytes(2);
+                    break;
+                default:
+                    throw new IOException("Unknown constant pool tag "+tag);
+                }
+            }
+
+            List<String> r = new ArrayList<String>(nClasses);
+            for (int i=0; i<nClasses; i++) {
+                String name = utf8[classes[i]];
+                if (name==null)
+                    continue;
+                if (name.startsWith("[")) {
+                    // array type. we are only interested in the element type
+                    int idx = name.indexOf('L');
+                    if (idx<0 || !name.endsWith(";"))
+                        continue;   // array of primitives
+                    name = name.substring(idx+1,name.length()-1);
+                }
+                r.add(name.replace('/','.'));
+            }
+            return r;
+        }
+
+        private static final long serialVersionUID = 1L;
+    }
+
     /**
      * Remoting interface.
      */
     /*package*/ static interface IClassLoader {
         byte[] fetchJar(URL url) throws IOException;
+        /**
+         * Returns the SHA-1 digest of the jar, as a hex string, so that we can tell if we have it in {@link JarCache}.
+         * Only available if the other side {@linkplain Capability#supportsJarDigests() supports it}.
+         */
+        String fetchJarDigest(URL url) throws IOException;
+        /**
+         * Writes the jar into the pipe and closes it, so that neither side has to hold the whole jar in memory.
+         * The returned future completes once the jar is written, or reports why it couldn't be.
+         * Only available if the other side {@linkplain Capability#supportsJarStreaming() supports it}.
+         */
+        Future<Void> streamJar(URL url, Pipe pipe) throws IOException;
         byte[] fetch(String className) throws ClassNotFoundException;
         ClassFile fetch2(String className) throws ClassNotFoundException;
+        /**
+         * Like {@link #fetch2(String)}, but also sends the related classes.
+         * Only available if the other side {@linkplain Capability#supportsClassBundles() supports it}.
+         */
+        ClassBundle fetch3(String className) throws ClassNotFoundException;
         byte[] getResource(String name) throws IOException;
         byte[][] getResources(String name) throws IOException;
     }
@@ -356,6 +662,12 @@ final class RemoteClassLoader extends URLClassLoader {
         final ClassLoader cl;
         final Channel channel;
 
+        /**
+         * Classes already sent through {@link #fetch3(String)}, which we won't send again as related classes.
+         * Guarded by itself.
+         */
+        private final Set<String> sent = new HashSet<String>();
+
         public ClassLoaderProxy(ClassLoader cl, Channel channel) {
         	assert cl != null;
 
@@ -367,6 +679,31 @@ final class RemoteClassLoader extends URLClassLoader {
             return readFully(url.openStream());
         }
 
+        public String fetchJarDigest(URL url) throws IOException {
+            return JarCache.digest(url);
+        }
+
+        public Future<Void> streamJar(URL url, Pipe pipe) throws IOException {
+            OutputStream out = pipe.getOut();
+            try {
+                InputStream in = url.openStream();
+                try {
+                    byte[] buf = new byte[8192];
+                    int len;
+                    while ((len=in.read(buf))>=0)
+                        out.write(buf,0,len);
+                } finally {
+                    in.close();
+                }
+            } finally {
+                // close even if we failed, or else the reader would wait forever
+                out.close();
+            }
+            AsyncFutureImpl<Void> f = new AsyncFutureImpl<Void>();
+            f.set((Void)null);
+            return f;
+        }
+
         public byte[] fetch(String className) throws ClassNotFoundException {
         	if (!USE_BOOTSTRAP_CLASSLOADER && cl==PSEUDO_BOOTSTRAP) {
         		throw new ClassNotFoundException("Classloading from bootstrap classloader disabled");
@@ -383,7 +720,10 @@ final class RemoteClassLoader extends URLClassLoader {
             }
         }
 
-        public ClassFile fetch2(String className) throws ClassNotFoundException {
+        /**
+         * Finds the class loader that defines the given class.
+         */
+        private ClassLoader definingLoader(String className) throws ClassNotFoundException {
             ClassLoader ecl = cl.loadClass(className).getClassLoader();
             if (ecl == null) {
             	if (USE_BOOTSTRAP_CLASSLOADER) {
@@ -392,6 +732,11 @@ final class RemoteClassLoader extends URLClassLoader {
             		throw new ClassNotFoundException("Classloading from system classloader disabled");
             	}
             }
+            return ecl;
+        }
+
+        public ClassFile fetch2(String className) throws ClassNotFoundException {
+            ClassLoader ecl = definingLoader(className);
 
             try {
                 InputStream in = ecl.getResourceAsStream(className.replace('.', '/') + ".class");
@@ -404,6 +749,87 @@ final class RemoteClassLoader extends URLClassLoader {
             }
         }
 
+        public ClassBundle fetch3(String className) throws ClassNotFoundException {
+            ClassLoader ecl = definingLoader(className);
+
+            String path = className.replace('.','/')+".class";
+            URL url = ecl.getResource(path);
+            if (url == null) throw new ClassNotFoundException(className);
+            try {
+                byte[] image = readFully(url.openStream());
+                synchronized (sent) {
+                    sent.add(className);
+                }
+
+                List<String> names = new ArrayList<String>();
+                List<byte[]> images = new ArrayList<byte[]>();
+                if (ecl != PSEUDO_BOOTSTRAP)
+                    collectRelated(ecl, url, path, image, names, images);
+
+                return new ClassBundle(
+                        new ClassFile(exportId(ecl,channel), image),
+                        names.toArray(new String[names.size()]),
+                        images.toArray(new byte[images.size()][]));
+            } catch (IOException e) {
+                throw new ClassNotFoundException(className);
+            }
+        }
+
+        /**
+         * Collects the classes that the given class refers to, then the classes that those refer to, and so on,
+         * up to {@link #BUNDLE_CLASSES} classes and {@link #BUNDLE_SIZE} bytes.
+         *
+         * <p>
+         * Only the classes that come from the same jar file or directory as the given class are collected,
+         * as the others are likely to be defined by another class loader. We tell that from their URLs,
+         * so that we don't have to load the classes here.
+         */
+        private void collectRelated(ClassLoader ecl, URL url, String path, byte[] image, List<String> names, List<byte[]> images) throws IOException {
+            String u = url.toExternalForm();
+            if (!u.endsWith(path))
+                return; // no idea where the other classes would come from
+            String base = u.substring(0, u.length()-path.length());
+
+            int size = 0;
+            List<byte[]> todo = new ArrayList<byte[]>();
+            todo.add(image);
+            for (int i=0; i<todo.size(); i++) {
+                for (String name : ClassBundle.referencedClasses(todo.get(i))) {
+                    if (names.size() >= BUNDLE_CLASSES)
+                        return;
+                    if (name.startsWith("java."))
+                        continue;
+                    synchronized (sent) {
+                        if (sent.contains(name))
+                            continue;
+                    }
+
+                    String p = name.replace('.','/')+".class";
+                    URL r = ecl.getResource(p);
+                    if (r == null || !r.toExternalForm().equals(base+p))
+                        continue;
+                    if (cl != ecl) {
+                        // make sure the requesting class loader sees the same class
+                        URL v = cl.getResource(p);
+                        if (v == null || !v.toExternalForm().equals(base+p))
+                            continue;
+                    }
+
+                    byte[] img = readFully(r.openStream());
+                    if (size+img.length > BUNDLE_SIZE)
+                        return;
+                    size += img.length;
+                    synchronized (sent) {
+                        if (!sent.add(name))
+                            continue;
+                    }
+                    names.add(name);
+                    images.add(img);
+                    todo.add(img);
+                }
+            }
+        }
+
         public byte[] getResource(String name) throws IOException {
         	URL resource = cl.getResource(name);
         	if (resource == null) {
@@ -499,6 +925,14 @@ final class RemoteClassLoader extends URLClassLoader {
             return proxy.fetchJar(url);
         }
 
+        public String fetchJarDigest(URL url) throws IOException {
+            return proxy.fetchJarDigest(url);
+        }
+
+        public Future<Void> streamJar(URL url, Pipe pipe) throws IOException {
+            return proxy.streamJar(url, pipe);
+        }
+
         public byte[] fetch(String className) throws ClassNotFoundException {
             return proxy.fetch(className);
         }
@@ -507,6 +941,10 @@ final class RemoteClassLoader extends URLClassLoader {
             return proxy.fetch2(className);
         }
 
+        public ClassBundle fetch3(String className) throws ClassNotFoundException {
+            return proxy.fetch3(className);
+        }
+
         public byte[] getResource(String name) throws IOException {
             return proxy.getResource(name);
         }
@@ -522,10 +960,59 @@ final class RemoteClassLoader extends URLClassLoader {
         private static final long serialVersionUID = 1L;
     }
 
+    /**
+     * Number of names of the missing classes, and separately of the missing resources, that each {@link RemoteClassLoader} remembers.
+     */
+    static final int MAX_MISSES = Integer.getInteger(RemoteClassLoader.class.getName() + ".negativeCacheSize", 1024);
+
+    /**
+     * Number of milliseconds a missing class or resource is remembered for.
+     */
+    static final long MISS_TTL = Long.getLong(RemoteClassLoader.class.getName() + ".negativeCacheTTL", 60 * 1000);
+
+    private static final Logger LOGGER = Logger.getLogger(RemoteClassLoader.class.getName());
+
+    static {
+        // after LOGGER, which this needs
+        makeParallelCapable();
+    }
+
+    /**
+     * Lets {@link ClassLoader#loadClass(String)} lock each class name separately, instead of the whole class loader,
+     * so that classes are fetched from the other side concurrently. Threads that need the same class still wait for
+     * the one that's fetching it, and then find it loaded. This is a no-op on Java 6, which doesn't support this.
+     * If the registration fails, the class loader still works, only with a single lock.
+     */
+    private static void makeParallelCapable() {
+        try {
+            Method m = ClassLoader.class.getDeclaredMethod("registerAsParallelCapable");
+            m.setAccessible(true);
+            m.invoke(null);
+        } catch (NoSuchMethodException e) {
+            // Java 6
+        } catch (Exception e) {
+            LOGGER.log(Level.FINE, "Failed to register RemoteClassLoader as parallel capable", e);
+        } catch (LinkageError e) {
+            LOGGER.log(Level.FINE, "Failed to register RemoteClassLoader as parallel capable", e);
+        }
+    }
+
     /**
      * If set to true, classes loaded by the bootstrap classloader will be also remoted to the remote JVM.
      * By default, classes that belong to the bootstrap classloader will NOT be remoted, as each JVM gets its own JRE
      * and their versions can be potentially different.
      */
     public static boolean USE_BOOTSTRAP_CLASSLOADER = Boolean.getBoolean(RemoteClassLoader.class.getName() + ".useBootstrapClassLoader");
+
+    /**
+     * Caps on the number of classes and their total bytes that are sent along with a requested class.
+     * Setting the number to 0 disables {@link ClassBundle} prefetching.
+     */
+    static final int BUNDLE_CLASSES = Integer.getInteger(RemoteClassLoader.class.getName() + ".bundleClasses", 64);
+    static final int BUNDLE_SIZE = Integer.getInteger(RemoteClassLoader.class.getName() + ".bundleSize", 256 * 1024);
+
+    /**
+     * Cap on the total bytes of the prefetched class files that each {@link RemoteClassLoader} holds on to until they are loaded.
+     */
+    static final int MAX_STAGED_SIZE = Integer.getInteger(RemoteClassLoader.class.getName() + ".stagedSize", 4 * 1024 * 1024);
 }
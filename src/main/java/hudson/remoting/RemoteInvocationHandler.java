@@ -16,6 +16,8 @@
 
 package hudson.remoting;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.Serializable;
@@ -24,10 +26,19 @@ import java.lang.reflect.InvocationHandler;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 import java.lang.reflect.Proxy;
+import java.util.concurrent.ExecutionException;
 
 /**
  * Sits behind a proxy object and implements the proxy logic.
  *
+ * <p>
+ * Most methods block until the remote object returns. Methods that return a {@link Future}
+ * return right away instead, with a future of what the remote object's future produces.
+ * Only the calling side is spared the wait, though: {@link java.util.concurrent.Future} has no way to tell
+ * when it's done, so a thread of the executor on the exporting side still waits for the remote object's future.
+ * Methods annotated with {@link OneWay} return right away, and never hear back, unless the other side is
+ * too old to {@linkplain Capability#supportsOneWayCalls() support it}.
+ *
  * @author Kohsuke Kawaguchi
  */
 final class RemoteInvocationHandler implements InvocationHandler, Serializable {
@@ -147,10 +158,34 @@ final class RemoteInvocationHandler implements InvocationHandler, Serializable {
         }
         
         // delegate the rest of the methods to the remote object
+        RPCRequest req = new RPCRequest(oid,method,args,userProxy ? dc.getClassLoader() : null,channel);
+        Class<?> rt = method.getReturnType();
+        // an older peer would send back the response anyway, so it gets a normal call
+        if(rt==void.class && method.isAnnotationPresent(OneWay.class) && channel.remoteCapability.supportsOneWayCalls()) {
+            if(userProxy)
+                new UserRequest<Serializable,Throwable>(channel,req).callOneWay(channel);
+            else
+                req.callOneWay(channel);
+            return null;
+        }
+        if(isFuture(rt)) {
+            if(userProxy)
+                return channel.callAsync(req);
+            else
+                return req.callAsync(channel);
+        }
+
+        Object r;
         if(userProxy)
-            return channel.call(new RPCRequest(oid,method,args,dc.getClassLoader()));
+            r = channel.call(req);
         else
-            return new RPCRequest(oid,method,args).call(channel);
+            r = req.call(channel);
+        req.onCompleted();
+        return r;
+    }
+
+    private static boolean isFuture(Class<?> type) {
+        return type==Future.class || type==java.util.concurrent.Future.class;
     }
 
     private void readObject(ObjectInputStream ois) throws IOException, ClassNotFoundException {
@@ -214,10 +249,19 @@ final class RemoteInvocationHandler implements InvocationHandler, Serializable {
          */
         private final int oid;
 
+        /**
+         * If non-zero, the ID that the calling side assigned to the method in its {@link MethodIdTable}.
+         */
+        private final int methodId;
+
+        /**
+         * Null if the method is identified by {@link #methodId} alone.
+         */
         private final String methodName;
         /**
          * Type name of the arguments to invoke. They are names because
          * neither {@link Method} nor {@link Class} is serializable.
+         * Null along with {@link #methodName}.
          */
         private final String[] types;
         /**
@@ -231,20 +275,65 @@ final class RemoteInvocationHandler implements InvocationHandler, Serializable {
          */
         private transient ClassLoader classLoader;
 
+        /**
+         * The ID of the method, if we are sending its signature for the other side to learn it.
+         */
+        private transient MethodIdTable.Id newId;
+
         public RPCRequest(int oid, Method m, Object[] arguments) {
             this(oid,m,arguments,null);
         }
 
         public RPCRequest(int oid, Method m, Object[] arguments, ClassLoader cl) {
+            this(oid,m,arguments,cl,null);
+        }
+
+        /**
+         * @param channel
+         *      If non-null, and the other side {@linkplain Capability#supportsMethodIds() supports it},
+         *      the method is identified by its ID in the {@link MethodIdTable} of this channel.
+         */
+        RPCRequest(int oid, Method m, Object[] arguments, ClassLoader cl, Channel channel) {
             this.oid = oid;
             this.arguments = arguments;
-            this.methodName = m.getName();
             this.classLoader = cl;
 
-            this.types = new String[arguments.length];
-            Class<?>[] params = m.getParameterTypes();
-            for( int i=0; i<arguments.length; i++ )
-                types[i] = params[i].getName();
+            MethodIdTable.Id id = null;
+            if(channel!=null && channel.remoteCapability.supportsMethodIds())
+                id = channel.methodIds.idOf(m);
+            this.methodId = id!=null ? id.id : 0;
+
+            if(id!=null && id.known) {
+                this.methodName = null;
+                this.types = null;
+            } else {
+                this.newId = id;
+                this.methodName = m.getName();
+                this.types = new String[arguments.length];
+                Class<?>[] params = m.getParameterTypes();
+                for( int i=0; i<arguments.length; i++ )
+                    types[i] = params[i].getName();
+            }
+        }
+
+        /**
+         * Decodes {@link FramedCommandTransport#TAG_RPC_REQUEST}.
+         */
+        private RPCRequest(int id, boolean oneWay, int oid, int methodId, String methodName, String[] types, Object[] arguments) {
+            super(id,oneWay);
+            this.oid = oid;
+            this.methodId = methodId;
+            this.methodName = methodName;
+            this.types = types;
+            this.arguments = arguments;
+        }
+
+        /**
+         * Called once the call has completed successfully, which means the other side has seen the method ID.
+         */
+        void onCompleted() {
+            if(newId!=null)
+                newId.known = true;
         }
 
         public Serializable call() throws Throwable {
@@ -259,46 +348,91 @@ final class RemoteInvocationHandler implements InvocationHandler, Serializable {
         }
 
         protected Serializable perform(Channel channel) throws Throwable {
+            String methodName = this.methodName;
+            String[] types = this.types;
+            if(methodId!=0) {
+                if(methodName!=null) {
+                    channel.methodIds.define(methodId,methodName,types);
+                } else {
+                    MethodIdTable.Signature sig = channel.methodIds.lookup(methodId);
+                    if(sig==null)
+                        throw new IllegalStateException("Unable to call method #"+methodId+". Unknown method ID");
+                    methodName = sig.name;
+                    types = sig.types;
+                }
+            }
+
             Object o = channel.getExportedObject(oid);
             if(o==null)
                 throw new IllegalStateException("Unable to call "+methodName+". Invalid object ID "+oid);
             try {
-                Method m = choose(o);
+                Method m = channel.methodCache.resolve(o.getClass(),methodName,types);
                 if(m==null)
                     throw new IllegalStateException("Unable to call "+methodName+". No matching method found on "+o.getClass());
-                m.setAccessible(true);  // in case the class is not public
-                return (Serializable) m.invoke(o,arguments);
+                Object r = m.invoke(o,arguments);
+                if(r!=null && isFuture(m.getReturnType())) {
+                    // the caller has its own future. send back what this one produces.
+                    // Future can't notify us once it's done, so this waits on the executor thread.
+                    try {
+                        r = ((java.util.concurrent.Future<?>)r).get();
+                    } catch (ExecutionException e) {
+                        throw e.getCause();
+                    }
+                }
+                return (Serializable) r;
             } catch (InvocationTargetException e) {
                 throw e.getTargetException();
             }
         }
 
+        Object[] getArguments() { // for debugging
+            return arguments;
+        }
+
         /**
-         * Chooses the method to invoke.
+         * Requests that identify the method by its ID have a compact encoding, which also leaves out
+         * {@link #createdAt}. The arguments are still sent through Java serialization.
          */
-        private Method choose(Object o) {
-            OUTER:
-            for(Method m : o.getClass().getMethods()) {
-                if(!m.getName().equals(methodName))
-                    continue;
-                Class<?>[] paramTypes = m.getParameterTypes();
-                if(types.length!=arguments.length)
-                    continue;
-                for( int i=0; i<types.length; i++ ) {
-                    if(!types[i].equals(paramTypes[i].getName()))
-                        continue OUTER;
-                }
-                return m;
+        @Override
+        byte getFrameTag() {
+            return methodId!=0 && !chainCause ? FramedCommandTransport.TAG_RPC_REQUEST : FramedCommandTransport.TAG_SERIALIZED;
+        }
+
+        @Override
+        void writeFrame(DataOutputStream out) throws IOException {
+            out.writeInt(getId());
+            out.writeBoolean(isOneWay());
+            out.writeInt(oid);
+            out.writeInt(methodId);
+            out.writeBoolean(methodName!=null);
+            if(methodName!=null) {
+                out.writeUTF(methodName);
+                out.writeInt(types.length);
+                for (String t : types)
+                    out.writeUTF(t);
             }
-            return null;
+            FramedCommandTransport.writeObject(out,arguments);
         }
 
-        Object[] getArguments() { // for debugging
-            return arguments;
+        static RPCRequest readFrame(DataInputStream in) throws IOException, ClassNotFoundException {
+            int id = in.readInt();
+            boolean oneWay = in.readBoolean();
+            int oid = in.readInt();
+            int methodId = in.readInt();
+            String methodName = null;
+            String[] types = null;
+            if(in.readBoolean()) {
+                methodName = in.readUTF();
+                types = new String[FramedCommandTransport.readLength(in,2)];
+                for( int i=0; i<types.length; i++ )
+                    types[i] = in.readUTF();
+            }
+            Object[] arguments = (Object[])FramedCommandTransport.readObject(in);
+            return new RPCRequest(id,oneWay,oid,methodId,methodName,types,arguments);
         }
 
         public String toString() {
-            return "RPCRequest("+oid+","+methodName+")";
+            return "RPCRequest("+oid+","+(methodName!=null ? methodName : "#"+methodId)+")";
         }
 
         private static final long serialVersionUID = 1L; 
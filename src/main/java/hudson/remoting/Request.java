@@ -23,6 +23,7 @@ import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -60,6 +61,13 @@ abstract class Request<RSP extends Serializable,EXC extends Throwable> extends C
 
     private volatile Response<RSP,EXC> response;
 
+    /**
+     * If true, the caller doesn't wait for the outcome, so no {@link Response} is sent back.
+     * Peers that don't know about this field would send one anyway, so this is only set if
+     * they {@linkplain Capability#supportsOneWayCalls() support it}.
+     */
+    private boolean oneWay;
+
     /**
      * If this request performed some I/O back in the caller side during the remote call execution, set to last such
      * operation, so that we can block until its completion.
@@ -73,9 +81,21 @@ abstract class Request<RSP extends Serializable,EXC extends Throwable> extends C
 
 
     protected Request() {
-        synchronized(Request.class) {
-            id = nextId++;
-        }
+        id = nextId.getAndIncrement();
+    }
+
+    /**
+     * Used to decode a request sent by the other side in the compact form of {@link FramedCommandTransport},
+     * which doesn't include {@link #createdAt}.
+     */
+    /*package*/ Request(int id, boolean oneWay) {
+        super(false);
+        this.id = id;
+        this.oneWay = oneWay;
+    }
+
+    /*package*/ final int getId() {
+        return id;
     }
 
     /**
@@ -93,16 +113,16 @@ abstract class Request<RSP extends Serializable,EXC extends Throwable> extends C
      *      If the {@link #perform(Channel)} throws an exception.
      */
     public final RSP call(Channel channel) throws EXC, InterruptedException, IOException {
-        // Channel.send() locks channel, and there are other call sequences
-        // (  like Channel.terminate()->Request.abort()->Request.onCompleted()  )
-        // that locks channel -> request, so lock objects in the same order
-        synchronized(channel) {
-            synchronized(this) {
-                response=null;
-
-                channel.pendingCalls.put(id,this);
-                channel.send(this);
-            }
+        // no lock is held while the request is sent, so that a large request doesn't hold up
+        // the other senders while it's being serialized. Channel.terminate() sets outClosed before
+        // it aborts pendingCalls, so either the send below fails, or terminate() sees this request.
+        response=null;
+        channel.pendingCalls.put(id,this);
+        try {
+            channel.send(this);
+        } catch (IOException e) {
+            channel.pendingCalls.remove(id);
+            throw e;
         }
 
         try {
@@ -149,10 +169,7 @@ abstract class Request<RSP extends Serializable,EXC extends Throwable> extends C
         } catch (InterruptedException e) {
             // if we are cancelled, abort the remote computation, too.
             // do this outside the "synchronized(this)" block to prevent locking Request and Channel in a wrong order.
-            synchronized (channel) { // ... so that the close check and send won't be interrupted in the middle by a close
-                if (!channel.isOutClosed())
-                    channel.send(new Cancel(id));   // only send a cancel if we can, or else ChannelClosedException will mask the original cause
-            }
+            sendUnlessClosed(channel,new Cancel(id));   // only send a cancel if we can, or else ChannelClosedException will mask the original cause
             throw e;
         }
     }
@@ -172,7 +189,12 @@ abstract class Request<RSP extends Serializable,EXC extends Throwable> extends C
         response=null;
 
         channel.pendingCalls.put(id,this);
-        channel.send(this);
+        try {
+            channel.send(this);
+        } catch (IOException e) {
+            channel.pendingCalls.remove(id);
+            throw e;
+        }
 
         return new hudson.remoting.Future<RSP>() {
 
@@ -204,6 +226,10 @@ abstract class Request<RSP extends Serializable,EXC extends Throwable> extends C
             public RSP get() throws InterruptedException, ExecutionException {
                 synchronized(Request.this) {
                     try {
+                        // the response to a cancelled request (if any) is just the outcome of the interruption
+                        if (isCancelled()) {
+                            throw new CancellationException();
+                        }
                         while(response==null) {
                             if (isCancelled()) {
                                 throw new CancellationException();
@@ -228,10 +254,10 @@ abstract class Request<RSP extends Serializable,EXC extends Throwable> extends C
 
             public RSP get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
                 synchronized(Request.this) {
+                    if (isCancelled()) {
+                        throw new CancellationException();
+                    }
                     if(response==null) {
-                        if (isCancelled()) {
-                            throw new CancellationException();
-                        }
                         Request.this.wait(unit.toMillis(timeout)); // wait until the response arrives
                     }
                     if(response==null)
@@ -247,6 +273,23 @@ abstract class Request<RSP extends Serializable,EXC extends Throwable> extends C
     }
 
 
+    /**
+     * Sends this request to a remote system, without waiting for, or even receiving, the outcome.
+     *
+     * @param channel
+     *      The channel from which the request will be sent.
+     * @throws IOException
+     *      If there's an error during the communication.
+     */
+    public final void callOneWay(Channel channel) throws IOException {
+        oneWay = true;
+        channel.send(this);
+    }
+
+    /*package*/ boolean isOneWay() {
+        return oneWay;
+    }
+
     /**
      * Called by the {@link Response} when we received it.
      */
@@ -266,6 +309,10 @@ abstract class Request<RSP extends Serializable,EXC extends Throwable> extends C
      * Schedules the execution of this request.
      */
     protected final void execute(final Channel channel) {
+        if(oneWay) {
+            executeOneWay(channel);
+            return;
+        }
         channel.executingCalls.put(id,this);
         future = channel.executor.submit(new Runnable() {
             public void run() {
@@ -285,10 +332,7 @@ abstract class Request<RSP extends Serializable,EXC extends Throwable> extends C
                     if(chainCause)
                         rsp.createdAt.initCause(createdAt);
 
-                    synchronized (channel) {// expand the synchronization block of the send() method to a check
-                        if(!channel.isOutClosed())
-                            channel.send(rsp);
-                    }
+                    sendUnlessClosed(channel,rsp);
                 } catch (IOException e) {
                     // communication error.
                     // this means the caller will block forever
@@ -300,10 +344,42 @@ abstract class Request<RSP extends Serializable,EXC extends Throwable> extends C
         });
     }
 
+    /**
+     * Sends the command, unless the channel is already closed for output.
+     * The channel can still get closed while we are sending, which we don't treat as an error, either.
+     */
+    private static void sendUnlessClosed(Channel channel, Command cmd) throws IOException {
+        if(channel.isOutClosed())
+            return;
+        try {
+            channel.send(cmd);
+        } catch (ChannelClosedException e) {
+            // lost the race with close
+        }
+    }
+
+    /**
+     * Like {@link #execute(Channel)}, except nobody waits for the outcome, and so it can't be cancelled either.
+     */
+    private void executeOneWay(final Channel channel) {
+        channel.executor.execute(new Runnable() {
+            public void run() {
+                CURRENT.set(Request.this);
+                try {
+                    Request.this.perform(channel);
+                } catch (Throwable t) {
+                    logger.log(Level.WARNING, "One-way call "+Request.this+" failed",t);
+                } finally {
+                    CURRENT.set(null);
+                }
+            }
+        });
+    }
+
     /**
      * Next request ID.
      */
-    private static int nextId=0;
+    private static final AtomicInteger nextId = new AtomicInteger();
 
     private static final long serialVersionUID = 1L;
 
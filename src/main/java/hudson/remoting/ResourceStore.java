@@ -0,0 +1,125 @@
+/*******************************************************************************
+ *
+ * Copyright (c) 2012 Oracle Corporation.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *
+ *
+ *******************************************************************************/
+
+package hudson.remoting;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Holds the resources and the jars that {@link RemoteClassLoader} fetched from the other side, as local files.
+ *
+ * <p>
+ * All the files go into one temporary directory per JVM, which a single shutdown hook deletes,
+ * instead of a temporary directory per resource, each registered with {@link File#deleteOnExit()}.
+ * Files are stored under the digest of their contents, so the same resource fetched by many class loaders,
+ * or fetched again after a reconnect, is stored once.
+ *
+ * <p>
+ * The files keep their names, as in <tt>&lt;digest>/META-INF/foo.xml</tt>, so that the URLs handed out
+ * still end with the resource name. They are plain <tt>file:</tt> URLs, which, unlike URLs of a protocol
+ * of our own, can be sent to the other side of the channel.
+ */
+final class ResourceStore {
+    private final File root;
+
+    ResourceStore(File root) {
+        this.root = root;
+    }
+
+    /**
+     * Stores the resource, unless we already have the same contents under the same name,
+     * and returns the file it's stored in.
+     */
+    File add(String name, byte[] image) throws IOException {
+        File f = new File(new File(root, JarCache.digest(image)), name);
+        if (f.isFile() && f.length() == image.length) {
+            return f;
+        }
+        return add(name, new ByteArrayInputStream(image));
+    }
+
+    /**
+     * Stores the resource read from the stream, without holding it in memory, and returns the file it's stored in.
+     * The stream is read to the end, but not closed.
+     */
+    File add(String name, InputStream in) throws IOException {
+        // we don't know the digest until we've read it all, so write to a temporary file first,
+        // which also makes sure that a concurrent reader never sees a partially written file
+        File tmp = File.createTempFile("resource", ".tmp", root);
+        try {
+            File f = new File(new File(root, JarCache.copy(in, tmp)), name);
+            if (f.isFile() && f.length() == tmp.length()) {
+                return f;
+            }
+            f.getParentFile().mkdirs();
+            if (!tmp.renameTo(f) && !f.isFile()) {
+                throw new IOException("Unable to create " + f);
+            }
+            return f;
+        } finally {
+            tmp.delete();
+        }
+    }
+
+    private static void delete(File f) {
+        File[] children = f.listFiles();
+        if (children != null) {
+            for (File c : children) {
+                delete(c);
+            }
+        }
+        f.delete();
+    }
+
+    private static ResourceStore INSTANCE;
+
+    /**
+     * Returns the store shared by all the {@link RemoteClassLoader}s in this JVM, creating it on first use.
+     */
+    static synchronized ResourceStore get() throws IOException {
+        if (INSTANCE == null) {
+            final File root = createTempDir();
+            Runtime.getRuntime().addShutdownHook(new Thread("Deleting " + root) {
+                @Override
+                public void run() {
+                    delete(root);
+                }
+            });
+            INSTANCE = new ResourceStore(root);
+        }
+        return INSTANCE;
+    }
+
+    private static File createTempDir() throws IOException {
+        // work around sun bug 6325169 on windows
+        // see http://bugs.sun.com/bugdatabase/view_bug.do?bug_id=6325169
+        int nRetry = 0;
+        while (true) {
+            try {
+                File tmpFile = File.createTempFile("hudson-remoting", "");
+                tmpFile.delete();
+                tmpFile.mkdir();
+                return tmpFile;
+            } catch (IOException e) {
+                if (nRetry++ < 100) {
+                    continue;
+                }
+                throw e;
+            }
+        }
+    }
+}
@@ -16,6 +16,11 @@
 
 package hudson.remoting;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+
 /**
  * Request/response pattern over {@link Command}.
  *
@@ -45,6 +50,13 @@ final class Response<RSP,EXC extends Throwable> extends Command {
         this.exception = exception;
     }
 
+    private Response(int id, RSP returnValue, EXC exception) {
+        super(false);
+        this.id = id;
+        this.returnValue = returnValue;
+        this.exception = exception;
+    }
+
     /**
      * Notifies the waiting {@link Request}.
      */
@@ -57,6 +69,72 @@ final class Response<RSP,EXC extends Throwable> extends Command {
         channel.pendingCalls.remove(id);
     }
 
+    /**
+     * When {@link Request#chainCause} is on, send {@link #createdAt} along with the response
+     * by falling back to Java serialization.
+     */
+    @Override
+    byte getFrameTag() {
+        return Request.chainCause ? FramedCommandTransport.TAG_SERIALIZED : FramedCommandTransport.TAG_RESPONSE;
+    }
+
+    @Override
+    void writeFrame(DataOutputStream out) throws IOException {
+        out.writeInt(id);
+        if (exception != null) {
+            out.writeByte(KIND_EXCEPTION);
+            FramedCommandTransport.writeObject(out, exception);
+        } else if (isFramedUserResponse()) {
+            // the result is already serialized, so send it as is
+            UserResponse<?,?> r = (UserResponse<?,?>) returnValue;
+            out.writeByte(KIND_USER_RESPONSE);
+            out.writeBoolean(r.isException);
+            out.writeBoolean(r.response != null);
+            if (r.response != null) {
+                UserRequest.writeBytes(out, r.response);
+            }
+        } else if (returnValue != null) {
+            out.writeByte(KIND_VALUE);
+            FramedCommandTransport.writeObject(out, returnValue);
+        } else {
+            out.writeByte(KIND_NULL);
+        }
+    }
+
+    /**
+     * Known upfront for {@link UserResponse}s, so that the frame buffer doesn't have to grow while a large one is copied into it.
+     */
+    @Override
+    int getFrameSize() {
+        if (exception == null && isFramedUserResponse()) {
+            byte[] r = ((UserResponse<?,?>) returnValue).response;
+            return 4 + 1 + 1 + 1 + (r != null ? 4 + r.length : 0);
+        }
+        return -1;
+    }
+
+    private boolean isFramedUserResponse() {
+        return returnValue instanceof UserResponse && ((UserResponse<?,?>) returnValue).framed;
+    }
+
+    static Response<?,?> readFrame(DataInputStream in) throws IOException, ClassNotFoundException {
+        int id = in.readInt();
+        switch (in.readByte()) {
+        case KIND_NULL:
+            return new Response<Object,Throwable>(id, null, null);
+        case KIND_VALUE:
+            return new Response<Object,Throwable>(id, FramedCommandTransport.readObject(in), null);
+        case KIND_EXCEPTION:
+            return new Response<Object,Throwable>(id, null, (Throwable) FramedCommandTransport.readObject(in));
+        case KIND_USER_RESPONSE:
+            boolean isException = in.readBoolean();
+            byte[] response = in.readBoolean() ? UserRequest.readBytes(in) : null;
+            return new Response<Object,Throwable>(id, new UserResponse<Object,Throwable>(response, isException), null);
+        default:
+            throw new StreamCorruptedException("Invalid response frame");
+        }
+    }
+
     public String toString() {
         return "Response[retVal="+toString(returnValue)+",exception="+toString(exception)+"]";
     }
@@ -67,4 +145,12 @@ final class Response<RSP,EXC extends Throwable> extends Command {
     }
 
     private static final long serialVersionUID = 1L;
+
+    private static final byte KIND_NULL = 0;
+    private static final byte KIND_VALUE = 1;
+    private static final byte KIND_EXCEPTION = 2;
+    /**
+     * {@link UserResponse}, whose payload is sent as is. Only sent if the other side {@linkplain Capability#supportsUserFrames() reads it}.
+     */
+    private static final byte KIND_USER_RESPONSE = 3;
 }
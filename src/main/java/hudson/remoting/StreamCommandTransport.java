@@ -0,0 +1,93 @@
+/*******************************************************************************
+ *
+ * Copyright (c) 2012 Oracle Corporation.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *
+ *
+ *******************************************************************************/
+
+package hudson.remoting;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * {@link CommandTransport} that reads the commands off a blocking stream, on a reader thread of its own.
+ *
+ * @see ClassicCommandTransport
+ * @see FramedCommandTransport
+ */
+abstract class StreamCommandTransport extends CommandTransport {
+    private final Channel channel;
+    private final String name;
+
+    StreamCommandTransport(Channel channel, String name) {
+        this.channel = channel;
+        this.name = name;
+    }
+
+    @Override
+    final void start() {
+        new ReaderThread().start();
+    }
+
+    /**
+     * Blocks until the next command arrives and returns it.
+     *
+     * <p>
+     * Only called from the reader thread.
+     */
+    abstract Command read() throws IOException, ClassNotFoundException;
+
+    /**
+     * Closes the receiving side, once the last command is read. No further {@link #read()} will be made.
+     */
+    abstract void closeRead() throws IOException;
+
+    private final class ReaderThread extends Thread {
+        public ReaderThread() {
+            super("Channel reader thread: " + name);
+        }
+
+        @Override
+        public void run() {
+            IOException failure = null;
+            try {
+                while (!channel.isInClosed()) {
+                    Command cmd;
+                    try {
+                        Channel old = Channel.setCurrent(channel);
+                        try {
+                            cmd = read();
+                        } finally {
+                            Channel.setCurrent(old);
+                        }
+                    } catch (EOFException e) {
+                        IOException ioe = new IOException("Unexpected termination of the channel");
+                        ioe.initCause(e);
+                        throw ioe;
+                    } catch (ClassNotFoundException e) {
+                        LOGGER.log(Level.SEVERE, "Unable to read a command (channel " + name + ")", e);
+                        continue;
+                    }
+                    channel.receive(cmd);
+                }
+                closeRead();
+            } catch (IOException e) {
+                failure = e;
+            } finally {
+                channel.onReadEnd(failure);
+            }
+        }
+    }
+
+    private static final Logger LOGGER = Logger.getLogger(StreamCommandTransport.class.getName());
+}
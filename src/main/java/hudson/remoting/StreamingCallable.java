@@ -0,0 +1,98 @@
+/*******************************************************************************
+ *
+ * Copyright (c) 2012 Oracle Corporation.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *
+ *
+ *******************************************************************************/
+
+package hudson.remoting;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+
+/**
+ * Wraps the {@link Callable} given to {@link Channel#callStream(Callable)}, and serializes its result
+ * into a {@link Pipe} as it goes, instead of returning it.
+ *
+ * <p>
+ * The response of the call itself carries nothing but the exception, if the callable fails.
+ * The pipe is closed either way, so that the caller never waits for a result that isn't coming.
+ * If the call fails before the callable runs, the caller closes its end of the pipe instead.
+ */
+final class StreamingCallable<V,T extends Throwable> implements DelegatingCallable<Void,Throwable> {
+    private final Callable<V,T> callable;
+    private final Pipe pipe;
+    private transient final ClassLoader classLoader;
+
+    StreamingCallable(Callable<V,T> callable, Pipe pipe) {
+        this.callable = callable;
+        this.pipe = pipe;
+        this.classLoader = UserRequest.getClassLoader(callable);
+    }
+
+    public ClassLoader getClassLoader() {
+        return classLoader;
+    }
+
+    Pipe getPipe() {
+        return pipe;
+    }
+
+    public Void call() throws Throwable {
+        OutputStream out = pipe.getOut();
+        try {
+            V r = callable.call();
+            ObjectOutputStream oos = UserRequest.createOutput(Channel.current(),new BufferedOutputStream(out,BUFFER_SIZE));
+            oos.writeObject(r);
+            oos.flush();
+        } finally {
+            out.close();
+        }
+        return null;
+    }
+
+    /**
+     * Reads the result on the calling side, as it arrives.
+     *
+     * @throws IOException
+     *      if the stream ends before the whole result is read, which is also what happens if the callable fails.
+     */
+    V readResult(Channel channel) throws IOException, ClassNotFoundException {
+        InputStream in = pipe.getIn();
+        Channel old = Channel.setCurrent(channel);
+        try {
+            // what the other side wrote is the V returned by the callable
+            @SuppressWarnings("unchecked")
+            V v = (V)UserRequest.createInput(channel,in,classLoader).readObject();
+            return v;
+        } finally {
+            Channel.setCurrent(old);
+            // if we failed halfway, keep reading so that the other side isn't stuck on a full window
+            byte[] buf = new byte[8192];
+            while (in.read(buf)>=0)
+                ;
+            in.close();
+        }
+    }
+
+    public String toString() {
+        return "StreamingCallable:"+callable;
+    }
+
+    /**
+     * Large enough to save sending a chunk for every object, and well within {@link Channel#PIPE_WINDOW_SIZE}.
+     */
+    private static final int BUFFER_SIZE = 32*1024;
+
+    private static final long serialVersionUID = 1L;
+}
@@ -16,6 +16,10 @@
 
 package hudson.remoting;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
 /**
  * {@link Command} that unexports an object.
  * @author Kohsuke Kawaguchi
@@ -27,9 +31,28 @@ public class UnexportCommand extends Command {
         this.oid = oid;
     }
 
+    private UnexportCommand(int oid, boolean recordCreatedAt) {
+        super(recordCreatedAt);
+        this.oid = oid;
+    }
+
     protected void execute(Channel channel) {
         channel.unexport(oid);
     }
 
+    @Override
+    byte getFrameTag() {
+        return FramedCommandTransport.TAG_UNEXPORT;
+    }
+
+    @Override
+    void writeFrame(DataOutputStream out) throws IOException {
+        out.writeInt(oid);
+    }
+
+    static UnexportCommand readFrame(DataInputStream in) throws IOException {
+        return new UnexportCommand(in.readInt(), false);
+    }
+
     private static final long serialVersionUID = 1L;
 }
@@ -22,11 +22,20 @@ import hudson.remoting.RemoteInvocationHandler.RPCRequest;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.ObjectOutputStream;
-import java.io.Serializable;
+import java.io.OutputStream;
 import java.io.NotSerializableException;
 import java.io.ObjectInputStream;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 /**
  * {@link Request} that can take {@link Callable} whose actual implementation
@@ -48,11 +57,33 @@ final class UserRequest<RSP,EXC extends Throwable> extends Request<UserResponse<
      * and won't be sent over to the remote side.
      */
     private transient final ExportList exports;
+    /**
+     * True if the other side reads the compact form of {@link FramedCommandTransport}.
+     * This value will remain local.
+     */
+    private transient final boolean framed;
+    /**
+     * {@link #classLoaderProxy} in its serialized form, if {@link #framed}.
+     * This value will remain local.
+     */
+    private transient final byte[] classLoaderImage;
+    /**
+     * Class descriptors sent in full in {@link #request}, which the other side knows once it has read the request.
+     * This value will remain local.
+     */
+    private transient final List<ClassDescriptorTable.Id> definedDescriptors;
+    /**
+     * If non-null, closed when the call fails, so that whoever waits for what the callable would have
+     * produced is released. This value will remain local.
+     */
+    private transient volatile Closeable closeOnFailure;
 
     public UserRequest(Channel local, Callable<?,EXC> c) throws IOException {
+        framed = local.remoteCapability.supportsUserFrames();
+        definedDescriptors = new ArrayList<ClassDescriptorTable.Id>();
         exports = local.startExportRecording();
         try {
-            request = serialize(c,local);
+            request = serialize(c,local,definedDescriptors);
         } finally {
             exports.stopRecording();
         }
@@ -60,6 +91,29 @@ final class UserRequest<RSP,EXC extends Throwable> extends Request<UserResponse<
         this.toString = c.toString();
         ClassLoader cl = getClassLoader(c);
         classLoaderProxy = RemoteClassLoader.export(cl,local);
+        classLoaderImage = framed ? serializeProxy(classLoaderProxy) : null;
+    }
+
+    private static byte[] serializeProxy(IClassLoader proxy) throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        ObjectOutputStream oos = new ObjectOutputStream(baos);
+        oos.writeObject(proxy);
+        oos.close();
+        return baos.toByteArray();
+    }
+
+    /**
+     * Used to decode a request sent in the compact form of {@link FramedCommandTransport}.
+     */
+    private UserRequest(int id, boolean oneWay, byte[] request, IClassLoader classLoaderProxy, String toString) {
+        super(id,oneWay);
+        this.request = request;
+        this.classLoaderProxy = classLoaderProxy;
+        this.toString = toString;
+        this.exports = null;
+        this.framed = false;
+        this.classLoaderImage = null;
+        this.definedDescriptors = null;
     }
 
     /*package*/ static ClassLoader getClassLoader(Callable<?,?> c) {
@@ -112,8 +166,13 @@ final class UserRequest<RSP,EXC extends Throwable> extends Request<UserResponse<
                 Channel.setCurrent(oldc);
             }
 
-            return new UserResponse<RSP,EXC>(serialize(r,channel),false);
+            return respond(channel,serialize(r,channel),false);
         } catch (Throwable e) {
+            if(isOneWay()) {
+                // nobody is listening
+                LOGGER.log(Level.WARNING, "One-way call "+toString+" failed", e);
+                return respond(channel,null,true);
+            }
             // propagate this to the calling process
             try {
                 byte[] response;
@@ -123,7 +182,7 @@ final class UserRequest<RSP,EXC extends Throwable> extends Request<UserResponse<
                     // perhaps the thrown runtime exception is of type we can't handle
                     response = serialize(new ProxyException(e), channel);
                 }
-                return new UserResponse<RSP,EXC>(response,true);
+                return respond(channel,response,true);
             } catch (IOException x) {
                 // throw it as a lower-level exception
                 throw (EXC)x;
@@ -131,17 +190,110 @@ final class UserRequest<RSP,EXC extends Throwable> extends Request<UserResponse<
         }
     }
 
+    /**
+     * Once the other side has read the request and the callable ran, it knows the class descriptors we sent in full.
+     * If the request failed, we can't tell how far it got, so they'll be sent again.
+     */
+    @Override
+    synchronized void onCompleted(Response<UserResponse<RSP,EXC>,EXC> response) {
+        boolean failed = response.returnValue==null || response.returnValue.isException;
+        if (definedDescriptors!=null && !failed) {
+            for (ClassDescriptorTable.Id id : definedDescriptors)
+                id.known = true;
+        }
+        super.onCompleted(response);
+        if (failed && closeOnFailure!=null) {
+            try {
+                closeOnFailure.close();
+            } catch (IOException e) {
+                // the caller learns of the failure from the response anyway
+            }
+        }
+    }
+
+    /**
+     * Sets what to close if the call fails, in particular if it fails before the callable even runs.
+     */
+    void setCloseOnFailure(Closeable c) {
+        this.closeOnFailure = c;
+    }
+
+    private UserResponse<RSP,EXC> respond(Channel channel, byte[] response, boolean isException) {
+        UserResponse<RSP,EXC> r = new UserResponse<RSP,EXC>(response,isException);
+        r.framed = channel.remoteCapability.supportsUserFrames();
+        return r;
+    }
+
+    /**
+     * Sends the serialized callable as is, instead of as a byte array inside another serialization stream,
+     * and without {@link #createdAt}.
+     */
+    @Override
+    byte getFrameTag() {
+        return framed && !chainCause ? FramedCommandTransport.TAG_USER_REQUEST : FramedCommandTransport.TAG_SERIALIZED;
+    }
+
+    /**
+     * Known upfront, so that the frame buffer doesn't have to grow while a large callable is copied into it.
+     */
+    @Override
+    int getFrameSize() {
+        return 4+1+(4+toStringBytes().length)+(4+classLoaderImage.length)+(4+request.length);
+    }
+
+    @Override
+    void writeFrame(DataOutputStream out) throws IOException {
+        out.writeInt(getId());
+        out.writeBoolean(isOneWay());
+        writeBytes(out,toStringBytes());
+        writeBytes(out,classLoaderImage);
+        writeBytes(out,request);
+    }
+
+    static UserRequest<?,?> readFrame(DataInputStream in) throws IOException, ClassNotFoundException {
+        int id = in.readInt();
+        boolean oneWay = in.readBoolean();
+        String toString = new String(readBytes(in),"UTF-8");
+        IClassLoader classLoaderProxy = (IClassLoader)new ObjectInputStream(new ByteArrayInputStream(readBytes(in))).readObject();
+        byte[] request = readBytes(in);
+        return new UserRequest<Object,Throwable>(id,oneWay,request,classLoaderProxy,toString);
+    }
+
+    private byte[] toStringBytes() {
+        try {
+            return toString.getBytes("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    /*package*/ static void writeBytes(DataOutputStream out, byte[] b) throws IOException {
+        out.writeInt(b.length);
+        out.write(b);
+    }
+
+    /*package*/ static byte[] readBytes(DataInputStream in) throws IOException {
+        byte[] b = new byte[FramedCommandTransport.readLength(in,1)];
+        in.readFully(b);
+        return b;
+    }
+
     private byte[] _serialize(Object o, final Channel channel) throws IOException {
+        return _serialize(o,channel,null);
+    }
+
+    /**
+     * @param definedDescriptors
+     *      If non-null, receives the IDs of the class descriptors sent in full.
+     */
+    private byte[] _serialize(Object o, final Channel channel, List<ClassDescriptorTable.Id> definedDescriptors) throws IOException {
         Channel old = Channel.setCurrent(channel);
         try {
             ByteArrayOutputStream baos = new ByteArrayOutputStream();
-            ObjectOutputStream oos;
-            if (channel.remoteCapability.supportsMultiClassLoaderRPC())
-                oos = new MultiClassLoaderSerializer.Output(channel,baos);
-            else
-                oos = new ObjectOutputStream(baos);
-
+            ObjectOutputStream oos = createOutput(channel,baos);
             oos.writeObject(o);
+            if (definedDescriptors!=null && oos instanceof MultiClassLoaderSerializer.Output)
+                definedDescriptors.addAll(((MultiClassLoaderSerializer.Output)oos).getDefinedDescriptors());
             return baos.toByteArray();
         } finally {
             Channel.setCurrent(old);
@@ -149,8 +301,12 @@ final class UserRequest<RSP,EXC extends Throwable> extends Request<UserResponse<
     }
 
     private byte[] serialize(Object o, Channel localChannel) throws IOException {
+        return serialize(o,localChannel,null);
+    }
+
+    private byte[] serialize(Object o, Channel localChannel, List<ClassDescriptorTable.Id> definedDescriptors) throws IOException {
         try {
-            return _serialize(o,localChannel);
+            return _serialize(o,localChannel,definedDescriptors);
         } catch( NotSerializableException e ) {
             IOException x = new IOException("Unable to serialize " + o);
             x.initCause(e);
@@ -159,16 +315,29 @@ final class UserRequest<RSP,EXC extends Throwable> extends Request<UserResponse<
     }
 
     /*package*/ static Object deserialize(final Channel channel, byte[] data, ClassLoader defaultClassLoader) throws IOException, ClassNotFoundException {
-        ByteArrayInputStream in = new ByteArrayInputStream(data);
+        return createInput(channel,new ByteArrayInputStream(data),defaultClassLoader).readObject();
+    }
 
-        ObjectInputStream ois;
+    /**
+     * Creates the {@link ObjectOutputStream} that serializes the callables and their results to the other side.
+     */
+    /*package*/ static ObjectOutputStream createOutput(Channel channel, OutputStream out) throws IOException {
+        if (channel.remoteCapability.supportsMultiClassLoaderRPC())
+            return new MultiClassLoaderSerializer.Output(channel,out);
+        else
+            return new ObjectOutputStream(out);
+    }
+
+    /**
+     * Creates the {@link ObjectInputStream} that reads what {@link #createOutput(Channel, OutputStream)} wrote on the other side.
+     */
+    /*package*/ static ObjectInputStream createInput(Channel channel, InputStream in, ClassLoader defaultClassLoader) throws IOException {
         if (channel.remoteCapability.supportsMultiClassLoaderRPC()) {
             // this code is coupled with the ObjectOutputStream subtype above
-            ois = new MultiClassLoaderSerializer.Input(channel, in);
+            return new MultiClassLoaderSerializer.Input(channel, in);
         } else {
-            ois = new ObjectInputStreamEx(in, defaultClassLoader);
+            return new ObjectInputStreamEx(in, defaultClassLoader);
         }
-        return ois.readObject();
     }
 
     public void releaseExports() {
@@ -180,33 +349,6 @@ final class UserRequest<RSP,EXC extends Throwable> extends Request<UserResponse<
     }
 
     private static final long serialVersionUID = 1L;
-}
 
-final class UserResponse<RSP,EXC extends Throwable> implements Serializable {
-    private final byte[] response;
-    private final boolean isException;
-
-    public UserResponse(byte[] response, boolean isException) {
-        this.response = response;
-        this.isException = isException;
-    }
-
-    /**
-     * Deserializes the response byte stream into an object.
-     */
-    public RSP retrieve(Channel channel, ClassLoader cl) throws IOException, ClassNotFoundException, EXC {
-        Channel old = Channel.setCurrent(channel);
-        try {
-            Object o = UserRequest.deserialize(channel,response,cl);
-
-            if(isException)
-                throw (EXC)o;
-            else
-                return (RSP) o;
-        } finally {
-            Channel.setCurrent(old);
-        }
-    }
-
-    private static final long serialVersionUID = 1L;
+    private static final Logger LOGGER = Logger.getLogger(UserRequest.class.getName());
 }
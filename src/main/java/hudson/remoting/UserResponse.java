@@ -0,0 +1,59 @@
+/*******************************************************************************
+ *
+ * Copyright (c) 2004-2009 Oracle Corporation.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors: 
+*
+*    Kohsuke Kawaguchi
+ *     
+ *
+ *******************************************************************************/ 
+
+package hudson.remoting;
+
+import java.io.IOException;
+import java.io.Serializable;
+
+/**
+ * What {@link UserRequest} sends back: the serialized return value or exception of the callable.
+ *
+ * @author Kohsuke Kawaguchi
+ */
+final class UserResponse<RSP,EXC extends Throwable> implements Serializable {
+    /*package*/ final byte[] response;
+    /*package*/ final boolean isException;
+    /**
+     * True if the other side reads this in the compact form of {@link Response}.
+     * This value will remain local.
+     */
+    /*package*/ transient boolean framed;
+
+    public UserResponse(byte[] response, boolean isException) {
+        this.response = response;
+        this.isException = isException;
+    }
+
+    /**
+     * Deserializes the response byte stream into an object.
+     */
+    public RSP retrieve(Channel channel, ClassLoader cl) throws IOException, ClassNotFoundException, EXC {
+        Channel old = Channel.setCurrent(channel);
+        try {
+            Object o = UserRequest.deserialize(channel,response,cl);
+
+            if(isException)
+                throw (EXC)o;
+            else
+                return (RSP) o;
+        } finally {
+            Channel.setCurrent(old);
+        }
+    }
+
+    private static final long serialVersionUID = 1L;
+}
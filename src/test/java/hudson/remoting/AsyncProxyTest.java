@@ -0,0 +1,107 @@
+/*******************************************************************************
+ *
+ * Copyright (c) 2012 Oracle Corporation.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *
+ *
+ *******************************************************************************/
+
+package hudson.remoting;
+
+import java.io.IOException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import junit.framework.Test;
+
+/**
+ * Tests the asynchronous methods of exported objects.
+ *
+ * @see OneWay
+ * @see RemoteInvocationHandler
+ */
+public class AsyncProxyTest extends RmiTestBase {
+    public interface Counter {
+        @OneWay
+        void add(int n);
+
+        int get();
+
+        Future<Integer> square(int n);
+
+        java.util.concurrent.Future<Integer> fail();
+    }
+
+    private static class CounterImpl implements Counter {
+        private final AtomicInteger total = new AtomicInteger();
+
+        public void add(int n) {
+            total.addAndGet(n);
+        }
+
+        public int get() {
+            return total.get();
+        }
+
+        public Future<Integer> square(final int n) {
+            AsyncFutureImpl<Integer> f = new AsyncFutureImpl<Integer>();
+            f.set(n * n);
+            return f;
+        }
+
+        public java.util.concurrent.Future<Integer> fail() {
+            throw new IllegalArgumentException("boom");
+        }
+    }
+
+    /**
+     * Creates a {@link Counter} on the other side.
+     */
+    private static class CreateCounter implements Callable<Counter, IOException> {
+        public Counter call() throws IOException {
+            return Channel.current().export(Counter.class, new CounterImpl());
+        }
+
+        private static final long serialVersionUID = 1L;
+    }
+
+    public void testOneWay() throws Exception {
+        Counter c = channel.call(new CreateCounter());
+        for (int i = 1; i <= 100; i++) {
+            c.add(i);
+        }
+
+        // one-way calls can execute out of order with the synchronous one
+        long end = System.currentTimeMillis() + 10000;
+        while (c.get() != 5050 && System.currentTimeMillis() < end) {
+            Thread.sleep(10);
+        }
+        assertEquals(5050, c.get());
+    }
+
+    public void testFuture() throws Exception {
+        Counter c = channel.call(new CreateCounter());
+        Future<Integer> f = c.square(7);
+        assertEquals(49, (int) f.get());
+    }
+
+    public void testFutureFailure() throws Exception {
+        Counter c = channel.call(new CreateCounter());
+        java.util.concurrent.Future<Integer> f = c.fail();
+        try {
+            f.get();
+            fail();
+        } catch (ExecutionException e) {
+            assertTrue(String.valueOf(e.getCause()), e.getCause() instanceof IllegalArgumentException);
+        }
+    }
+
+    public static Test suite() throws Exception {
+        return buildSuite(AsyncProxyTest.class);
+    }
+}
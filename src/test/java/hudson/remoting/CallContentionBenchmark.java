@@ -0,0 +1,158 @@
+/*******************************************************************************
+ *
+ * Copyright (c) 2012 Oracle Corporation.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *
+ *
+ *******************************************************************************/
+
+package hudson.remoting;
+
+import hudson.remoting.Channel.Mode;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Measures the latency of small calls while other threads make calls with large payloads,
+ * over an in-process pair of channels.
+ *
+ * <p>
+ * Run with <tt>java hudson.remoting.CallContentionBenchmark [small callers] [large callers] [large payload in KB] [seconds]</tt>.
+ */
+public class CallContentionBenchmark {
+    public static void main(String[] args) throws Exception {
+        int smallCallers = args.length > 0 ? Integer.parseInt(args[0]) : 4;
+        int largeCallers = args.length > 1 ? Integer.parseInt(args[1]) : 2;
+        final int payloadKB = args.length > 2 ? Integer.parseInt(args[2]) : 4096;
+        int seconds = args.length > 3 ? Integer.parseInt(args[3]) : 10;
+
+        final ExecutorService executor = Executors.newCachedThreadPool();
+        FastPipedInputStream northIn = new FastPipedInputStream();
+        final FastPipedOutputStream southOut = new FastPipedOutputStream(northIn);
+        final FastPipedInputStream southIn = new FastPipedInputStream();
+        FastPipedOutputStream northOut = new FastPipedOutputStream(southIn);
+
+        final Channel[] south = new Channel[1];
+        Thread t = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    south[0] = new Channel("south", executor, Mode.BINARY, southIn, southOut);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        };
+        t.start();
+        final Channel north = new Channel("north", executor, Mode.BINARY, northIn, northOut);
+        t.join();
+
+        final AtomicBoolean done = new AtomicBoolean();
+        final long[][] latencies = new long[smallCallers][];
+        final int[] largeCalls = new int[largeCallers];
+        Thread[] threads = new Thread[smallCallers + largeCallers];
+        for (int i = 0; i < smallCallers; i++) {
+            final int n = i;
+            threads[i] = new Thread() {
+                @Override
+                public void run() {
+                    long[] l = new long[1024];
+                    int count = 0;
+                    try {
+                        while (!done.get()) {
+                            long start = System.nanoTime();
+                            north.call(new Echo(null));
+                            if (count == l.length) {
+                                l = Arrays.copyOf(l, count * 2);
+                            }
+                            l[count++] = System.nanoTime() - start;
+                        }
+                    } catch (Exception e) {
+                        e.printStackTrace();
+                    }
+                    latencies[n] = Arrays.copyOf(l, count);
+                }
+            };
+        }
+        for (int i = 0; i < largeCallers; i++) {
+            final int n = i;
+            threads[smallCallers + i] = new Thread() {
+                @Override
+                public void run() {
+                    byte[] payload = new byte[payloadKB * 1024];
+                    try {
+                        while (!done.get()) {
+                            north.call(new Echo(payload));
+                            largeCalls[n]++;
+                        }
+                    } catch (Exception e) {
+                        e.printStackTrace();
+                    }
+                }
+            };
+        }
+
+        for (Thread th : threads) {
+            th.start();
+        }
+        Thread.sleep(seconds * 1000L);
+        done.set(true);
+        for (Thread th : threads) {
+            th.join();
+        }
+
+        north.close();
+        south[0].join();
+        executor.shutdown();
+
+        int total = 0;
+        for (long[] l : latencies) {
+            total += l.length;
+        }
+        long[] all = new long[total];
+        int pos = 0;
+        for (long[] l : latencies) {
+            System.arraycopy(l, 0, all, pos, l.length);
+            pos += l.length;
+        }
+        Arrays.sort(all);
+        int large = 0;
+        for (int c : largeCalls) {
+            large += c;
+        }
+
+        System.out.printf("%,d small calls/s, %,d large calls/s (%,d KB)%n",
+            total / seconds, large / seconds, payloadKB);
+        if (total > 0) {
+            System.out.printf("small call latency: p50 %,d us, p99 %,d us, max %,d us%n",
+                all[total / 2] / 1000, all[(int) (total * 0.99)] / 1000, all[total - 1] / 1000);
+        }
+    }
+
+    /**
+     * Sends the payload over, and returns its size.
+     */
+    private static class Echo implements Callable<Integer, IOException> {
+        private final byte[] payload;
+
+        Echo(byte[] payload) {
+            this.payload = payload;
+        }
+
+        public Integer call() throws IOException {
+            return payload == null ? 0 : payload.length;
+        }
+
+        private static final long serialVersionUID = 1L;
+    }
+}
@@ -25,8 +25,11 @@ import java.io.OutputStream;
 import java.io.FileOutputStream;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.net.InetSocketAddress;
 import java.net.URLClassLoader;
 import java.net.URL;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
 import java.util.concurrent.ThreadFactory;
 
 import org.apache.commons.io.output.TeeOutputStream;
@@ -85,6 +88,7 @@ interface ChannelRunner {
                 public void run() {
                     try {
                         Channel s = new Channel("south", executor, Mode.BINARY, in2, out1, null, false, createCapability());
+                        configure(s);
                         s.join();
                         System.out.println("south completed");
                     } catch (IOException e) {
@@ -98,7 +102,9 @@ interface ChannelRunner {
             };
             t.start();
 
-            return new Channel("north", executor, Mode.BINARY, in1, out2, null, false, createCapability());
+            Channel north = new Channel("north", executor, Mode.BINARY, in1, out2, null, false, createCapability());
+            configure(north);
+            return north;
         }
 
         public void stop(Channel channel) throws Exception {
@@ -120,6 +126,9 @@ interface ChannelRunner {
         protected Capability createCapability() {
             return new Capability();
         }
+
+        protected void configure(Channel channel) {
+        }
     }
 
     static class InProcessCompatibilityMode extends InProcess {
@@ -134,6 +143,100 @@ interface ChannelRunner {
         }
     }
 
+    /**
+     * Runs a channel in the same JVM whose both sides write containers with {@link ContainerPayloadSerializer}.
+     */
+    static class InProcessWithPayloadSerializer extends InProcess {
+
+        public String getName() {
+            return "local-payload-serializer";
+        }
+
+        @Override
+        protected Capability createCapability() {
+            return new Capability(new ContainerPayloadSerializer());
+        }
+    }
+
+    /**
+     * Runs a channel in the same JVM whose both sides compress the frames they send.
+     */
+    static class InProcessCompressed extends InProcess {
+
+        public String getName() {
+            return "local-compressed";
+        }
+
+        @Override
+        protected void configure(Channel channel) {
+            channel.setCompression(Compression.FAST);
+        }
+    }
+
+    /**
+     * Runs a channel in the same JVM over a loopback socket served by {@link NioChannelHub}.
+     */
+    static class InProcessNio implements ChannelRunner {
+
+        private ExecutorService executor;
+        private NioChannelHub hub;
+        private Thread south;
+        /**
+         * failure occurred in the other {@link Channel}.
+         */
+        private Exception failure;
+
+        public Channel start() throws Exception {
+            final ServerSocketChannel server = ServerSocketChannel.open();
+            server.socket().bind(new InetSocketAddress("localhost", 0));
+
+            executor = Executors.newCachedThreadPool();
+            hub = new NioChannelHub(2);
+
+            south = new Thread("south bridge runner") {
+
+                public void run() {
+                    try {
+                        SocketChannel s = server.accept();
+                        server.close();
+                        Channel c = new Channel("south", executor, hub, s);
+                        c.join();
+                        System.out.println("south completed");
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                        failure = e;
+                    } catch (InterruptedException e) {
+                        e.printStackTrace();
+                        failure = e;
+                    }
+                }
+            };
+            south.start();
+
+            SocketChannel s = SocketChannel.open(server.socket().getLocalSocketAddress());
+            return new Channel("north", executor, hub, s);
+        }
+
+        public void stop(Channel channel) throws Exception {
+            channel.close();
+            channel.join(10 * 1000);
+            south.join(10 * 1000);
+
+            System.out.println("north completed");
+
+            executor.shutdown();
+            hub.close();
+
+            if (failure != null) {
+                throw failure;  // report a failure in the south side
+            }
+        }
+
+        public String getName() {
+            return "nio";
+        }
+    }
+
     /**
      * Runs a channel in a separate JVM by launching a new JVM.
      */
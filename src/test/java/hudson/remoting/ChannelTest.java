@@ -14,11 +14,155 @@
 
 package hudson.remoting;
 
+import java.io.IOException;
+import java.io.InvalidObjectException;
+import java.io.ObjectInputStream;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.List;
+
 /**
  * @author Kohsuke Kawaguchi
  */
 public class ChannelTest extends RmiTestBase {
     public void testCapability() {
         assertTrue(channel.remoteCapability.supportsMultiClassLoaderRPC());
+        assertTrue(channel.remoteCapability.supportsFramedCommands());
+        assertTrue(channel.remoteCapability.supportsUserFrames());
+    }
+
+    public void testExportStatistics() throws Exception {
+        channel.setExportTracePolicy(ExportTracePolicy.OFF);
+        Exported o = new Exported();
+        int id = channel.export(o);
+        assertEquals(1, channel.getLiveExportCounts().get(Exported.class.getName()).intValue());
+        assertEquals(1, channel.getExportCounts().get(Exported.class.getName()).longValue());
+
+        StringWriter w = new StringWriter();
+        channel.dumpExportTable(new PrintWriter(w));
+        assertTrue(w.toString().contains("export trace not recorded"));
+
+        channel.unexport(id);
+        assertNull(channel.getLiveExportCounts().get(Exported.class.getName()));
+        assertEquals(1, channel.getExportCounts().get(Exported.class.getName()).longValue());
+    }
+
+    private static class Exported {}
+
+    /**
+     * Repeated calls identify the method by its ID alone, which must still tell apart the overloads.
+     */
+    public void testMethodIds() throws Exception {
+        assertTrue(channel.remoteCapability.supportsMethodIds());
+        Greeter g = channel.call(new CreateGreeter());
+        for (int i=0; i<3; i++) {
+            assertEquals("hello", g.greet());
+            assertEquals("hello kohsuke", g.greet("kohsuke"));
+            assertEquals("hello kohsuke kohsuke", g.greet("kohsuke",2));
+        }
+    }
+
+    public interface Greeter {
+        String greet();
+        String greet(String name);
+        String greet(String name, int times);
+    }
+
+    private static class GreeterImpl implements Greeter {
+        public String greet() {
+            return "hello";
+        }
+
+        public String greet(String name) {
+            return greet(name,1);
+        }
+
+        public String greet(String name, int times) {
+            StringBuilder buf = new StringBuilder("hello");
+            for (int i=0; i<times; i++)
+                buf.append(' ').append(name);
+            return buf.toString();
+        }
+    }
+
+    private static class CreateGreeter implements Callable<Greeter,IOException> {
+        public Greeter call() throws IOException {
+            return Channel.current().export(Greeter.class, new GreeterImpl());
+        }
+
+        private static final long serialVersionUID = 1L;
+    }
+
+    /**
+     * Once a call completes, later calls of the same callable refer to its class descriptor by ID.
+     */
+    public void testClassDescriptorCache() throws Exception {
+        assertTrue(channel.remoteCapability.supportsClassDescriptorCache());
+        assertEquals(3, channel.call(new ListFiles(3)).size());
+        assertTrue(channel.classDescriptors.idOf(ListFiles.class).known);
+        for (int i=0; i<3; i++)
+            assertEquals(i, channel.call(new ListFiles(i)).size());
+    }
+
+    /**
+     * The result is streamed back, larger than the pipe window.
+     */
+    public void testCallStream() throws Exception {
+        List<String> r = channel.callStream(new ListFiles(100000));
+        assertEquals(100000, r.size());
+        assertEquals("file99999", r.get(99999));
+    }
+
+    public void testCallStreamFailure() throws Exception {
+        try {
+            channel.callStream(new ListFiles(-1));
+            fail();
+        } catch (IOException e) {
+            assertEquals("no such directory", e.getMessage());
+        }
+    }
+
+    /**
+     * The callable can't even be deserialized, so it never gets to close the pipe.
+     */
+    public void testCallStreamUnreadable() throws Exception {
+        try {
+            channel.callStream(new Unreadable());
+            fail();
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+    private static class Unreadable implements Callable<String,IOException> {
+        public String call() {
+            return "unreachable";
+        }
+
+        private void readObject(ObjectInputStream in) throws IOException {
+            throw new InvalidObjectException("unreadable");
+        }
+
+        private static final long serialVersionUID = 1L;
+    }
+
+    private static class ListFiles implements Callable<List<String>,IOException> {
+        private final int count;
+
+        ListFiles(int count) {
+            this.count = count;
+        }
+
+        public List<String> call() throws IOException {
+            if (count<0)
+                throw new IOException("no such directory");
+            List<String> r = new ArrayList<String>();
+            for (int i=0; i<count; i++)
+                r.add("file"+i);
+            return r;
+        }
+
+        private static final long serialVersionUID = 1L;
     }
 }
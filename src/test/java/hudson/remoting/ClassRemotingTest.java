@@ -16,6 +16,13 @@
 
 package hudson.remoting;
 
+import hudson.remoting.RemoteClassLoader.IClassLoader;
+
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
 import junit.framework.Test;
 import org.objectweb.asm.ClassReader;
 import org.objectweb.asm.commons.EmptyVisitor;
@@ -49,6 +56,174 @@ public class ClassRemotingTest extends RmiTestBase {
         assertEquals(r[2],r[3]);
     }
 
+    /**
+     * The class bundle includes the classes referenced from the same directory, but not the ones from elsewhere.
+     */
+    public void testClassBundle() throws Exception {
+        RemoteClassLoader.ClassLoaderProxy p = new RemoteClassLoader.ClassLoaderProxy(getClass().getClassLoader(), channel);
+        RemoteClassLoader.ClassBundle b = p.fetch3(ClassRemotingTest.class.getName());
+        List<String> names = Arrays.asList(b.names);
+        assertTrue(names.toString(), names.contains(RmiTestBase.class.getName()));
+        assertTrue(names.toString(), names.contains(DummyClassLoader.class.getName()));
+        assertFalse(names.toString(), names.contains(ClassReader.class.getName()));
+        assertFalse(names.toString(), names.contains(Object.class.getName()));
+        assertEquals(names.size(), b.images.length);
+
+        // classes already sent are not sent again
+        b = p.fetch3(DummyClassLoader.class.getName());
+        assertFalse(Arrays.asList(b.names).contains(ClassRemotingTest.class.getName()));
+    }
+
+    /**
+     * When the class is defined by a parent of the requesting class loader, the related classes that come with it
+     * are found by the references from that class.
+     */
+    public void testClassBundleFromParent() throws Exception {
+        if (channelRunner instanceof ChannelRunner.InProcessCompatibilityMode)
+            return; // no bundles, and each class loader loads its classes on its own
+
+        // a copy of our classes that the other side can't find on its own class path, even in the same JVM
+        URL classes = Pipe.class.getProtectionDomain().getCodeSource().getLocation();
+        ClassLoader parent = new URLClassLoader(new URL[]{classes}, null);
+        ClassLoader child = new URLClassLoader(new URL[0], parent);
+        int hits = channel.call(new LoadFromParent(
+                RemoteClassLoader.exportId(child, channel), RemoteClassLoader.exportId(parent, channel)));
+        assertTrue(hits > 0);
+    }
+
+    private static class LoadFromParent implements Callable<Integer,Exception> {
+        private final int child, parent;
+
+        LoadFromParent(int child, int parent) {
+            this.child = child;
+            this.parent = parent;
+        }
+
+        public Integer call() throws Exception {
+            Channel ch = Channel.current();
+            // unlike the ones the channel creates, these don't delegate to our own class path
+            ClassLoader c = isolated(ch, child);
+            ClassLoader p = isolated(ch, parent);
+
+            int hits = ch.classPrefetchHitCount.get();
+            Class<?> pipe = c.loadClass(Pipe.class.getName());
+            assertSame(p, pipe.getClassLoader());
+            // what the JVM does when it resolves a reference from the class
+            Class<?> in = Class.forName(FastPipedInputStream.class.getName(), false, pipe.getClassLoader());
+            assertSame(p, in.getClassLoader());
+            return ch.classPrefetchHitCount.get() - hits;
+        }
+
+        private static ClassLoader isolated(Channel ch, int oid) {
+            IClassLoader proxy = (IClassLoader) RemoteInvocationHandler.wrap(ch, oid, IClassLoader.class, false, false);
+            ClassLoader cl = RemoteClassLoader.create(null, proxy);
+            ch.importedClassLoaders.classLoaders.put(proxy, cl);
+            return cl;
+        }
+
+        private static final long serialVersionUID = 1L;
+    }
+
+    /**
+     * Looking up a missing class again doesn't go to the other side.
+     */
+    public void testNegativeCache() throws Exception {
+        int oid = RemoteClassLoader.exportId(getClass().getClassLoader(), channel);
+        assertEquals(1, (int) channel.call(new LoadMissingClass(oid)));
+    }
+
+    private static class LoadMissingClass implements Callable<Integer,Exception> {
+        private final int oid;
+
+        LoadMissingClass(int oid) {
+            this.oid = oid;
+        }
+
+        public Integer call() throws Exception {
+            Channel ch = Channel.current();
+            ClassLoader cl = ch.importedClassLoaders.get(oid);
+            int misses = ch.remoteMissCount.get(), hits = ch.negativeCacheHitCount.get();
+            for (int i=0; i<2; i++) {
+                try {
+                    cl.loadClass("hudson.remoting.NoSuchClass");
+                    fail();
+                } catch (ClassNotFoundException e) {
+                    // expected
+                }
+            }
+            assertEquals(1, ch.remoteMissCount.get()-misses);
+            return ch.negativeCacheHitCount.get()-hits;
+        }
+
+        private static final long serialVersionUID = 1L;
+    }
+
+    /**
+     * Several threads define classes through the same {@link RemoteClassLoader} at once,
+     * and they all see the same classes.
+     */
+    public void testConcurrentClassLoading() throws Exception {
+        int oid = RemoteClassLoader.exportId(new DummyClassLoader(getClass().getClassLoader()), channel);
+        assertEquals(THREADS * CLASSES, (int) channel.call(new LoadConcurrently(oid)));
+    }
+
+    private static class LoadConcurrently implements Callable<Integer,Exception> {
+        private final int oid;
+
+        LoadConcurrently(int oid) {
+            this.oid = oid;
+        }
+
+        public Integer call() throws Exception {
+            final ClassLoader cl = Channel.current().importedClassLoaders.get(oid);
+            final Class<?>[][] loaded = new Class<?>[THREADS][CLASSES];
+            final Throwable[] failures = new Throwable[THREADS];
+            final CountDownLatch start = new CountDownLatch(1);
+            Thread[] threads = new Thread[THREADS];
+            for (int i=0; i<THREADS; i++) {
+                final int t = i;
+                threads[i] = new Thread() {
+                    @Override
+                    public void run() {
+                        try {
+                            start.await();
+                            for (int j=0; j<CLASSES; j++) {
+                                // each thread goes through the classes in a different order
+                                int c = (j+t)%CLASSES;
+                                loaded[t][c] = cl.loadClass("hudson.remoting.test.TestCallable"+c);
+                            }
+                        } catch (Throwable e) {
+                            failures[t] = e;
+                        }
+                    }
+                };
+                threads[i].start();
+            }
+            start.countDown();
+            for (Thread t : threads) {
+                t.join();
+            }
+
+            int n = 0;
+            for (int i=0; i<THREADS; i++) {
+                if (failures[i] != null) {
+                    throw new AssertionError(failures[i]);
+                }
+                for (int j=0; j<CLASSES; j++) {
+                    assertSame(loaded[0][j], loaded[i][j]);
+                    assertSame(cl, loaded[i][j].getClassLoader());
+                    n++;
+                }
+            }
+            return n;
+        }
+
+        private static final long serialVersionUID = 1L;
+    }
+
+    private static final int THREADS = 8;
+    private static final int CLASSES = 16;
+
     public static Test suite() throws Exception {
         return buildSuite(ClassRemotingTest.class);
     }
@@ -0,0 +1,122 @@
+/*******************************************************************************
+ *
+ * Copyright (c) 2012 Oracle Corporation.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *
+ *
+ *******************************************************************************/
+
+package hudson.remoting;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.StreamCorruptedException;
+import java.util.Random;
+import java.util.zip.CRC32;
+
+/**
+ * Tests {@link Compression} with both sides compressing.
+ */
+public class CompressionTest extends RmiTestBase {
+    @Override
+    protected void setUp() throws Exception {
+        setChannelRunner(ChannelRunner.InProcessCompressed.class);
+        super.setUp();
+    }
+
+    /**
+     * Repetitive data shrinks, and makes it across intact.
+     */
+    public void testCompressible() throws Exception {
+        byte[] data = new byte[1024 * 1024];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) ("console output line " + (i / 64) % 100).charAt(i % 20);
+        }
+        assertEquals(checksum(data), send(data));
+
+        assertTrue(channel.compressionInputBytes.get() >= data.length);
+        assertTrue(channel.compressionOutputBytes.get() * 4 < channel.compressionInputBytes.get());
+        assertTrue(channel.compressionTime.get() > 0);
+    }
+
+    /**
+     * Data that doesn't shrink is sent as is, and the compressor soon stops trying.
+     */
+    public void testIncompressible() throws Exception {
+        byte[] data = new byte[1024 * 1024];
+        new Random(0).nextBytes(data);
+        long before = channel.compressionInputBytes.get();
+        assertEquals(checksum(data), send(data));
+
+        assertTrue(channel.compressionSkipCount.get() > 0);
+        // with the back-off, only a handful of the chunks are even tried
+        assertTrue(channel.compressionSkipCount.get() < 32);
+        assertTrue(channel.compressionInputBytes.get() - before < data.length / 4);
+    }
+
+    /**
+     * A corrupted length is rejected before anything gets allocated for it.
+     */
+    public void testCorruptedLength() throws Exception {
+        byte[] huge = {0x7f, (byte) 0xff, (byte) 0xff, (byte) 0xff};
+        try {
+            FramedCommandTransport.decode((byte) (FramedCommandTransport.TAG_USER_REQUEST | FramedCommandTransport.COMPRESSED),
+                    huge, 0, huge.length, null, null);
+            fail();
+        } catch (StreamCorruptedException e) {
+            // expected
+        }
+        try {
+            FramedCommandTransport.decode(FramedCommandTransport.TAG_MULTI_ACK, huge, 0, huge.length, null, null);
+            fail();
+        } catch (StreamCorruptedException e) {
+            // expected
+        }
+    }
+
+    private long send(byte[] data) throws Exception {
+        Pipe p = Pipe.createLocalToRemote();
+        Future<Long> f = channel.callAsync(new Checksum(p));
+        OutputStream os = p.getOut();
+        for (int i = 0; i < data.length; i += 8192) {
+            os.write(data, i, 8192);
+        }
+        os.close();
+        return f.get();
+    }
+
+    private static long checksum(byte[] data) {
+        CRC32 crc = new CRC32();
+        crc.update(data);
+        return crc.getValue();
+    }
+
+    private static class Checksum implements Callable<Long, IOException> {
+        private final Pipe pipe;
+
+        Checksum(Pipe pipe) {
+            this.pipe = pipe;
+        }
+
+        public Long call() throws IOException {
+            CRC32 crc = new CRC32();
+            InputStream in = pipe.getIn();
+            byte[] buf = new byte[8192];
+            int len;
+            while ((len = in.read(buf)) >= 0) {
+                crc.update(buf, 0, len);
+            }
+            in.close();
+            return crc.getValue();
+        }
+
+        private static final long serialVersionUID = 1L;
+    }
+}
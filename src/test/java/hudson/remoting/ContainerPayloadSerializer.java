@@ -0,0 +1,111 @@
+/*******************************************************************************
+ *
+ * Copyright (c) 2012 Oracle Corporation.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *
+ *
+ *******************************************************************************/
+
+package hudson.remoting;
+
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * {@link PayloadSerializer} that writes {@link ArrayList}s and {@link HashMap}s as a count followed by the elements,
+ * with strings and numbers inline. Other elements fall back to Java serialization.
+ */
+public class ContainerPayloadSerializer implements PayloadSerializer {
+    /**
+     * Number of containers written, across all instances.
+     */
+    static final AtomicInteger written = new AtomicInteger();
+
+    public String getName() {
+        return "containers";
+    }
+
+    public boolean accepts(Class<?> type) {
+        return type == ArrayList.class || type == HashMap.class;
+    }
+
+    public void write(Object o, ObjectOutput out) throws IOException {
+        written.incrementAndGet();
+        if (o instanceof List) {
+            List<?> l = (List<?>) o;
+            out.writeInt(l.size());
+            for (Object e : l) {
+                writeElement(e, out);
+            }
+        } else {
+            Map<?, ?> m = (Map<?, ?>) o;
+            out.writeInt(m.size());
+            for (Map.Entry<?, ?> e : m.entrySet()) {
+                writeElement(e.getKey(), out);
+                writeElement(e.getValue(), out);
+            }
+        }
+    }
+
+    public Object read(Class<?> type, ObjectInput in) throws IOException, ClassNotFoundException {
+        int size = in.readInt();
+        if (type == ArrayList.class) {
+            List<Object> l = new ArrayList<Object>(size);
+            for (int i = 0; i < size; i++) {
+                l.add(readElement(in));
+            }
+            return l;
+        } else {
+            Map<Object, Object> m = new HashMap<Object, Object>(size * 4 / 3 + 1);
+            for (int i = 0; i < size; i++) {
+                m.put(readElement(in), readElement(in));
+            }
+            return m;
+        }
+    }
+
+    private static void writeElement(Object e, ObjectOutput out) throws IOException {
+        if (e instanceof String && ((String) e).length() < MAX_UTF) {
+            out.writeByte(STRING);
+            out.writeUTF((String) e);
+        } else if (e instanceof Integer) {
+            out.writeByte(INT);
+            out.writeInt((Integer) e);
+        } else {
+            out.writeByte(OBJECT);
+            out.writeObject(e);
+        }
+    }
+
+    private static Object readElement(ObjectInput in) throws IOException, ClassNotFoundException {
+        switch (in.readByte()) {
+        case STRING:
+            return in.readUTF();
+        case INT:
+            return in.readInt();
+        default:
+            return in.readObject();
+        }
+    }
+
+    /**
+     * Strings shorter than this always fit in {@link ObjectOutput#writeUTF(String)}.
+     */
+    private static final int MAX_UTF = 65535 / 3;
+
+    private static final byte OBJECT = 0;
+    private static final byte STRING = 1;
+    private static final byte INT = 2;
+}
@@ -29,6 +29,7 @@ import java.net.URL;
 /**
  * Used to load a dummy class <tt>hudson.remoting.test.TestCallable</tt>
  * out of nowhere, to test {@link RemoteClassLoader}.
+ * Any other class in the <tt>hudson.remoting.test</tt> package is another copy of it.
  *
  * @author Kohsuke Kawaguchi
  */
@@ -39,7 +40,7 @@ class DummyClassLoader extends ClassLoader {
 
 
     protected Class<?> findClass(String name) throws ClassNotFoundException {
-        if(name.equals("hudson.remoting.test.TestCallable")) {
+        if(name.startsWith(PACKAGE)) {
             // rename a class
             try {
                 byte[] bytes = loadTransformedClassImage(name);
@@ -69,11 +70,11 @@ class DummyClassLoader extends ClassLoader {
 
 
     protected URL findResource(String name) {
-        if(name.equals("hudson/remoting/test/TestCallable.class")) {
+        if(name.startsWith(PACKAGE.replace('.','/')) && name.endsWith(".class")) {
             try {
                 File f = File.createTempFile("rmiTest","class");
                 OutputStream os = new FileOutputStream(f);
-                os.write(loadTransformedClassImage("hudson.remoting.test.TestCallable"));
+                os.write(loadTransformedClassImage(name.substring(0,name.length()-6).replace('/','.')));
                 os.close();
                 f.deleteOnExit();
                 return f.toURI().toURL();
@@ -83,4 +84,6 @@ class DummyClassLoader extends ClassLoader {
         }
         return super.findResource(name);
     }
+
+    private static final String PACKAGE = "hudson.remoting.test.";
 }
@@ -0,0 +1,185 @@
+/*******************************************************************************
+ *
+ * Copyright (c) 2012 Oracle Corporation.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *
+ *
+ *******************************************************************************/
+
+package hudson.remoting;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Compares the throughput of {@link ExportTable} with the single-monitor table it replaced,
+ * under a pipe-like workload: mostly look-ups, with some short-lived exports mixed in.
+ *
+ * <p>
+ * Run with <tt>java [-Dwrites=N] hudson.remoting.ExportTableBenchmark [seconds]</tt>,
+ * where N is the percentage of export/unexport pairs among the operations (5 by default.)
+ */
+public class ExportTableBenchmark {
+    /**
+     * The operations that the benchmark exercises.
+     */
+    interface Table {
+        int export(Object o);
+        Object get(int id);
+        void unexport(Object o);
+    }
+
+    static Table current() {
+        final ExportTable<Object> t = new ExportTable<Object>();
+        return new Table() {
+            public int export(Object o) {
+                return t.export(o, false);
+            }
+
+            public Object get(int id) {
+                return t.get(id);
+            }
+
+            public void unexport(Object o) {
+                t.unexport(o);
+            }
+        };
+    }
+
+    /**
+     * The old implementation: two {@link HashMap}s of reference-counted entries, guarded by one monitor.
+     */
+    static Table synchronizedHashMap() {
+        return new Table() {
+            final class Entry {
+                final int id;
+                final Object object;
+                final Exception allocationTrace;
+                int referenceCount;
+
+                Entry(Object object) {
+                    this.id = iota++;
+                    this.object = object;
+                    this.allocationTrace = new Exception();
+                    allocationTrace.getStackTrace();
+                    referenceCount++;
+                    table.put(id, this);
+                    reverse.put(object, this);
+                }
+
+                void release() {
+                    if (--referenceCount == 0) {
+                        table.remove(id);
+                        reverse.remove(object);
+                    }
+                }
+            }
+
+            private final Map<Integer, Entry> table = new HashMap<Integer, Entry>();
+            private final Map<Object, Entry> reverse = new HashMap<Object, Entry>();
+            private int iota = 1;
+
+            public synchronized int export(Object o) {
+                Entry e = reverse.get(o);
+                if (e == null) {
+                    e = new Entry(o);
+                } else {
+                    e.referenceCount++;
+                }
+                return e.id;
+            }
+
+            public synchronized Object get(int id) {
+                Entry e = table.get(id);
+                return e != null ? e.object : null;
+            }
+
+            public synchronized void unexport(Object o) {
+                Entry e = reverse.get(o);
+                if (e != null) {
+                    e.release();
+                }
+            }
+        };
+    }
+
+    public static void main(String[] args) throws Exception {
+        long millis = (args.length > 0 ? Integer.parseInt(args[0]) : 3) * 1000L;
+        for (int threads : new int[]{1, 8, 64}) {
+            // warm up both before measuring either
+            run(synchronizedHashMap(), threads, millis / 3);
+            run(current(), threads, millis / 3);
+
+            long baseline = run(synchronizedHashMap(), threads, millis);
+            long current = run(current(), threads, millis);
+            System.out.printf("%2d threads: synchronized HashMap %,12d ops/s   ExportTable %,12d ops/s   (x%.2f)%n",
+                threads, baseline * 1000 / millis, current * 1000 / millis, (double) current / baseline);
+        }
+    }
+
+    /**
+     * @return total number of operations completed.
+     */
+    private static long run(final Table table, int threads, long millis) throws InterruptedException {
+        final int[] ids = new int[OBJECTS];
+        for (int i = 0; i < OBJECTS; i++) {
+            ids[i] = table.export(new Object());
+        }
+
+        final AtomicLong total = new AtomicLong();
+        final CountDownLatch start = new CountDownLatch(1);
+        final long[] deadline = new long[1];
+        Thread[] workers = new Thread[threads];
+        for (int i = 0; i < threads; i++) {
+            final int seed = i;
+            workers[i] = new Thread() {
+                @Override
+                public void run() {
+                    Random r = new Random(seed);
+                    long n = 0;
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    while (System.currentTimeMillis() < deadline[0]) {
+                        for (int j = 0; j < 1000; j++) {
+                            if (r.nextInt(100) < WRITE_PERCENTAGE) {
+                                Object o = new Object();
+                                table.export(o);
+                                table.unexport(o);
+                            } else if (table.get(ids[r.nextInt(OBJECTS)]) == null) {
+                                throw new AssertionError();
+                            }
+                        }
+                        n += 1000;
+                    }
+                    total.addAndGet(n);
+                }
+            };
+            workers[i].start();
+        }
+        deadline[0] = System.currentTimeMillis() + millis;
+        start.countDown();
+        for (Thread t : workers) {
+            t.join();
+        }
+        return total.get();
+    }
+
+    private static final int OBJECTS = 1024;
+
+    /**
+     * Percentage of the operations that export and unexport, as opposed to look up.
+     */
+    private static final int WRITE_PERCENTAGE = Integer.getInteger("writes", 5);
+}
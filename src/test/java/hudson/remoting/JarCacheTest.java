@@ -0,0 +1,113 @@
+/*******************************************************************************
+ *
+ * Copyright (c) 2012 Oracle Corporation.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *
+ *
+ *******************************************************************************/
+
+package hudson.remoting;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import junit.framework.TestCase;
+
+/**
+ * Test {@link JarCache}.
+ */
+public class JarCacheTest extends TestCase {
+    private File dir;
+
+    @Override
+    protected void setUp() throws Exception {
+        dir = File.createTempFile("jarcache", "");
+        dir.delete();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                f.delete();
+            }
+        }
+        dir.delete();
+    }
+
+    public void testPutAndGet() throws Exception {
+        JarCache cache = new JarCache(dir, 1024);
+        byte[] image = "jar".getBytes("UTF-8");
+        String digest = JarCache.digest(image);
+        assertNull(cache.get(digest));
+
+        File f = cache.put(digest, image);
+        assertEquals(3, f.length());
+        assertEquals(f, cache.get(digest));
+        // another cache over the same directory sees it, too
+        assertEquals(f, new JarCache(dir, 1024).get(digest));
+    }
+
+    /**
+     * The digest of a local jar is computed again only once the file changes.
+     */
+    public void testDigestOfUrl() throws Exception {
+        dir.mkdirs();
+        File jar = new File(dir, "a.jar");
+        write(jar, "one");
+        jar.setLastModified(1000000000L);
+        assertEquals(JarCache.digest("one".getBytes("UTF-8")), JarCache.digest(jar.toURI().toURL()));
+
+        // same length and time, so the file isn't read again
+        write(jar, "two");
+        jar.setLastModified(1000000000L);
+        assertEquals(JarCache.digest("one".getBytes("UTF-8")), JarCache.digest(jar.toURI().toURL()));
+
+        jar.setLastModified(2000000000L);
+        assertEquals(JarCache.digest("two".getBytes("UTF-8")), JarCache.digest(jar.toURI().toURL()));
+    }
+
+    private static void write(File f, String s) throws IOException {
+        FileOutputStream out = new FileOutputStream(f);
+        try {
+            out.write(s.getBytes("UTF-8"));
+        } finally {
+            out.close();
+        }
+    }
+
+    public void testDigestMismatch() throws Exception {
+        JarCache cache = new JarCache(dir, 1024);
+        try {
+            cache.put(JarCache.digest(new byte[1]), new byte[2]);
+            fail();
+        } catch (IOException e) {
+            // expected
+        }
+        assertNull(cache.get(JarCache.digest(new byte[2])));
+    }
+
+    public void testEviction() throws Exception {
+        JarCache cache = new JarCache(dir, 250);
+        byte[] a = new byte[100], b = new byte[100], c = new byte[100];
+        a[0] = 1;
+        b[0] = 2;
+        c[0] = 3;
+        String da = JarCache.digest(a), db = JarCache.digest(b), dc = JarCache.digest(c);
+        cache.put(da, a).setLastModified(System.currentTimeMillis() - 20000);
+        cache.put(db, b).setLastModified(System.currentTimeMillis() - 10000);
+        cache.get(da);  // now b is the least recently used
+
+        cache.put(dc, c);
+        assertNotNull(cache.get(da));
+        assertNull(cache.get(db));
+        assertNotNull(cache.get(dc));
+    }
+}
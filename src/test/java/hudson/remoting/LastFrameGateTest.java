@@ -0,0 +1,72 @@
+/*******************************************************************************
+ *
+ * Copyright (c) 2012 Oracle Corporation.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *
+ *
+ *******************************************************************************/
+
+package hudson.remoting;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Test {@link LastFrameGate}.
+ */
+public class LastFrameGateTest extends TestCase {
+    /**
+     * Senders race with the last frame, which stays at the end of the queue.
+     */
+    public void testNothingBehindTheLastFrame() throws Exception {
+        for (int round = 0; round < 20; round++) {
+            final LastFrameGate gate = new LastFrameGate();
+            final Queue<Integer> queue = new ConcurrentLinkedQueue<Integer>();
+            List<Thread> senders = new ArrayList<Thread>();
+            for (int i = 0; i < 4; i++) {
+                Thread t = new Thread() {
+                    @Override
+                    public void run() {
+                        while (gate.enter(false)) {
+                            try {
+                                queue.offer(1);
+                            } finally {
+                                gate.leave(false);
+                            }
+                        }
+                    }
+                };
+                t.start();
+                senders.add(t);
+            }
+
+            Thread.sleep(5);
+            assertTrue(gate.enter(true));
+            queue.offer(LAST);
+            gate.leave(true);
+            for (Thread t : senders) {
+                t.join();
+            }
+
+            Integer tail = null;
+            for (Integer i : queue) {
+                tail = i;
+            }
+            assertEquals(LAST, tail);
+            assertFalse(gate.enter(false));
+            assertFalse(gate.enter(true));
+        }
+    }
+
+    private static final Integer LAST = -1;
+}
@@ -0,0 +1,70 @@
+/*******************************************************************************
+ *
+ * Copyright (c) 2012 Oracle Corporation.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *
+ *
+ *******************************************************************************/
+
+package hudson.remoting;
+
+import java.lang.ref.WeakReference;
+import java.lang.reflect.Method;
+import junit.framework.TestCase;
+
+/**
+ * Test {@link MethodCache}.
+ */
+public class MethodCacheTest extends TestCase {
+    public static class Overloads {
+        public void foo() {}
+        public void foo(String s) {}
+        public void foo(String s, int i) {}
+    }
+
+    public void testOverloads() throws Exception {
+        MethodCache cache = new MethodCache();
+        String[] types = {"java.lang.String"};
+        Method m = cache.resolve(Overloads.class, "foo", types);
+        assertEquals(Overloads.class.getMethod("foo", String.class), m);
+        assertSame(m, cache.resolve(Overloads.class, "foo", new String[]{"java.lang.String"}));
+
+        assertEquals(Overloads.class.getMethod("foo"), cache.resolve(Overloads.class, "foo", new String[0]));
+        assertEquals(Overloads.class.getMethod("foo", String.class, int.class),
+            cache.resolve(Overloads.class, "foo", new String[]{"java.lang.String", "int"}));
+    }
+
+    /**
+     * The cache doesn't keep the class of a cached method, nor its class loader, alive.
+     */
+    public void testClassLoaderCollected() throws Exception {
+        MethodCache cache = new MethodCache();
+        WeakReference<ClassLoader> ref = resolveInNewLoader(cache);
+        for (int i = 0; i < 100 && ref.get() != null; i++) {
+            System.gc();
+            Thread.sleep(10);
+        }
+        assertNull(ref.get());
+        assertNull(cache.resolve(Overloads.class, "bar", new String[0]));   // keeps the cache reachable until now
+    }
+
+    private static WeakReference<ClassLoader> resolveInNewLoader(MethodCache cache) throws Exception {
+        ClassLoader cl = new DummyClassLoader(MethodCacheTest.class.getClassLoader());
+        Class<?> c = cl.loadClass("hudson.remoting.test.TestCallable");
+        assertNotNull(cache.resolve(c, "call", new String[0]));
+        return new WeakReference<ClassLoader>(cl);
+    }
+
+    public void testNoSuchMethod() {
+        MethodCache cache = new MethodCache();
+        assertNull(cache.resolve(Overloads.class, "bar", new String[0]));
+        // more parameters than any of the overloads
+        assertNull(cache.resolve(Overloads.class, "foo", new String[]{"java.lang.String", "int", "int"}));
+    }
+}
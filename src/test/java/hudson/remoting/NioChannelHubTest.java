@@ -0,0 +1,97 @@
+/*******************************************************************************
+ *
+ * Copyright (c) 2012 Oracle Corporation.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *
+ *
+ *******************************************************************************/
+
+package hudson.remoting;
+
+import junit.framework.TestCase;
+
+import java.net.InetSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests {@link NioChannelHub} with executors that have a single thread.
+ */
+public class NioChannelHubTest extends TestCase {
+    private NioChannelHub hub;
+    private ExecutorService northExecutor, southExecutor;
+    private Channel north, south;
+
+    @Override
+    protected void setUp() throws Exception {
+        hub = new NioChannelHub(1);
+        northExecutor = Executors.newSingleThreadExecutor();
+        southExecutor = Executors.newSingleThreadExecutor();
+
+        final ServerSocketChannel server = ServerSocketChannel.open();
+        server.socket().bind(new InetSocketAddress("localhost", 0));
+        final Exception[] failure = new Exception[1];
+        Thread t = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    SocketChannel s = server.accept();
+                    server.close();
+                    south = new Channel("south", southExecutor, hub, s);
+                } catch (Exception e) {
+                    failure[0] = e;
+                }
+            }
+        };
+        t.start();
+        north = new Channel("north", northExecutor, hub, SocketChannel.open(server.socket().getLocalSocketAddress()));
+        t.join();
+        if (failure[0] != null) {
+            throw failure[0];
+        }
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        north.close();
+        north.join(10 * 1000);
+        south.join(10 * 1000);
+        northExecutor.shutdown();
+        southExecutor.shutdown();
+        hub.close();
+    }
+
+    /**
+     * The only thread of the south executor waits for the response of a call back to the north,
+     * which therefore has to be delivered without that executor.
+     */
+    public void testCallBackOnBoundedExecutor() throws Exception {
+        Future<String> f = north.callAsync(new CallBack());
+        assertEquals("pong", f.get(10, TimeUnit.SECONDS));
+    }
+
+    private static class CallBack implements Callable<String, Exception> {
+        public String call() throws Exception {
+            return Channel.current().call(new Ping());
+        }
+
+        private static final long serialVersionUID = 1L;
+    }
+
+    private static class Ping implements Callable<String, RuntimeException> {
+        public String call() {
+            return "pong";
+        }
+
+        private static final long serialVersionUID = 1L;
+    }
+}
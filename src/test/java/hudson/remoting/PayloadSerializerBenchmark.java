@@ -0,0 +1,121 @@
+/*******************************************************************************
+ *
+ * Copyright (c) 2012 Oracle Corporation.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *
+ *
+ *******************************************************************************/
+
+package hudson.remoting;
+
+import hudson.remoting.Channel.Mode;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Compares Java serialization alone with {@link ContainerPayloadSerializer}, by making calls whose
+ * {@link Callable} carries a command line and an environment, and returns a directory listing,
+ * over an in-process pair of channels.
+ *
+ * <p>
+ * Run with <tt>java hudson.remoting.PayloadSerializerBenchmark [entries] [seconds]</tt>.
+ */
+public class PayloadSerializerBenchmark {
+    public static void main(String[] args) throws Exception {
+        int entries = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+        int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+
+        ExecutorService executor = Executors.newCachedThreadPool();
+        Launch launch = new Launch(entries);
+        for (int round = 0; round < 2; round++) {   // the first round warms up
+            for (PayloadSerializer serializer : new PayloadSerializer[]{null, new ContainerPayloadSerializer()}) {
+                Capability capability = serializer == null ? new Capability(null) : new Capability(serializer);
+                Channel[] channels = connect(executor, capability);
+                Channel north = channels[0];
+
+                Channel old = Channel.setCurrent(north);
+                int size = new FramedCommandTransport.Frame(new UserRequest<List<String>, IOException>(north, launch), false).size();
+                Channel.setCurrent(old);
+
+                int calls = 0;
+                long end = System.nanoTime() + seconds * 1000000000L;
+                while (System.nanoTime() < end) {
+                    north.call(launch);
+                    calls++;
+                }
+
+                north.close();
+                channels[1].join();
+
+                if (round > 0) {
+                    System.out.printf("%-12s %,8d calls/s, request frame %,d bytes%n",
+                        serializer == null ? "java" : serializer.getName(), calls / seconds, size);
+                }
+            }
+        }
+        executor.shutdown();
+    }
+
+    private static Channel[] connect(final ExecutorService executor, final Capability capability) throws Exception {
+        FastPipedInputStream northIn = new FastPipedInputStream();
+        final FastPipedOutputStream southOut = new FastPipedOutputStream(northIn);
+        final FastPipedInputStream southIn = new FastPipedInputStream();
+        FastPipedOutputStream northOut = new FastPipedOutputStream(southIn);
+
+        final Channel[] channels = new Channel[2];
+        Thread t = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    channels[1] = new Channel("south", executor, Mode.BINARY, southIn, southOut, null, false, capability);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        };
+        t.start();
+        channels[0] = new Channel("north", executor, Mode.BINARY, northIn, northOut, null, false, capability);
+        t.join();
+        return channels;
+    }
+
+    /**
+     * Launches a process, so to speak, and returns the files it produced.
+     */
+    private static class Launch implements Callable<List<String>, IOException> {
+        private final ArrayList<String> cmd = new ArrayList<String>();
+        private final HashMap<String, String> env = new HashMap<String, String>();
+        private final int entries;
+
+        Launch(int entries) {
+            this.entries = entries;
+            for (int i = 0; i < 50; i++) {
+                cmd.add("-Dproperty" + i + "=value" + i);
+            }
+            for (int i = 0; i < 50; i++) {
+                env.put("VARIABLE_" + i, "/some/path/to/something/" + i);
+            }
+        }
+
+        public List<String> call() throws IOException {
+            List<String> r = new ArrayList<String>(entries);
+            for (int i = 0; i < entries; i++) {
+                r.add("workspace/target/classes/hudson/remoting/File" + i + ".class");
+            }
+            return r;
+        }
+
+        private static final long serialVersionUID = 1L;
+    }
+}
@@ -0,0 +1,119 @@
+/*******************************************************************************
+ *
+ * Copyright (c) 2012 Oracle Corporation.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *
+ *
+ *******************************************************************************/
+
+package hudson.remoting;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Tests {@link PayloadSerializer} with {@link ContainerPayloadSerializer} on both sides.
+ */
+public class PayloadSerializerTest extends RmiTestBase {
+    @Override
+    protected void setUp() throws Exception {
+        setChannelRunner(ChannelRunner.InProcessWithPayloadSerializer.class);
+        super.setUp();
+    }
+
+    public void testNegotiation() {
+        PayloadSerializer s = new ContainerPayloadSerializer();
+        assertSame(s, new Capability(s).negotiatePayloadSerializer(new Capability(new ContainerPayloadSerializer())));
+        assertNull(new Capability(s).negotiatePayloadSerializer(Capability.NONE));
+        assertNull(new Capability(0).negotiatePayloadSerializer(new Capability(s)));
+        assertNotNull(channel.payloadSerializer);
+    }
+
+    /**
+     * Containers are written by the serializer, and what's in them that it doesn't know falls back to Java serialization.
+     */
+    public void testContainers() throws Exception {
+        int before = ContainerPayloadSerializer.written.get();
+
+        List<Object> args = new ArrayList<Object>();
+        args.add("foo");
+        args.add(42);
+        args.add(3.5);
+        Map<String, Object> nested = new HashMap<String, Object>();
+        nested.put("bar", new ArrayList<Object>());
+        args.add(nested);
+
+        Map<String, Object> r = channel.call(new Echo(args));
+        assertEquals(args, r.get("args"));
+        assertEquals(4, r.get("size"));
+        // the arguments, the nested map and list, and all three again on the way back, along with the result map
+        assertTrue(ContainerPayloadSerializer.written.get() - before >= 7);
+    }
+
+    /**
+     * Exported objects in the containers still reach the other side as proxies.
+     */
+    public void testExportedObjectInContainer() throws Exception {
+        CounterImpl counter = new CounterImpl();
+        List<Object> args = new ArrayList<Object>();
+        args.add(channel.export(Counter.class, counter));
+        assertEquals(3, (int) channel.call(new Increment(args)));
+        assertEquals(3, counter.count.get());
+    }
+
+    private static class Echo implements Callable<Map<String, Object>, IOException> {
+        private final List<Object> args;
+
+        Echo(List<Object> args) {
+            this.args = args;
+        }
+
+        public Map<String, Object> call() throws IOException {
+            Map<String, Object> r = new HashMap<String, Object>();
+            r.put("args", args);
+            r.put("size", args.size());
+            return r;
+        }
+
+        private static final long serialVersionUID = 1L;
+    }
+
+    public interface Counter {
+        int increment();
+    }
+
+    private static class CounterImpl implements Counter {
+        private final AtomicInteger count = new AtomicInteger();
+
+        public int increment() {
+            return count.incrementAndGet();
+        }
+    }
+
+    private static class Increment implements Callable<Integer, IOException> {
+        private final List<Object> args;
+
+        Increment(List<Object> args) {
+            this.args = args;
+        }
+
+        public Integer call() throws IOException {
+            Counter c = (Counter) args.get(0);
+            c.increment();
+            c.increment();
+            return c.increment();
+        }
+
+        private static final long serialVersionUID = 1L;
+    }
+}
@@ -0,0 +1,144 @@
+/*******************************************************************************
+ *
+ * Copyright (c) 2012 Oracle Corporation.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *
+ *
+ *******************************************************************************/
+
+package hudson.remoting;
+
+import hudson.remoting.Channel.Mode;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Measures how much garbage a {@link Pipe} transfer produces, per MB sent,
+ * over an in-process pair of channels.
+ *
+ * <p>
+ * Run with <tt>java hudson.remoting.PipeAllocationBenchmark [MB to send] [write size]</tt>,
+ * for example <tt>10240 8192</tt> for a 10GB transfer. Needs a JVM that implements
+ * <tt>com.sun.management.ThreadMXBean</tt>.
+ */
+public class PipeAllocationBenchmark {
+    public static void main(String[] args) throws Exception {
+        int mb = args.length > 0 ? Integer.parseInt(args[0]) : 1024;
+        int writeSize = args.length > 1 ? Integer.parseInt(args[1]) : 8192;
+
+        final ExecutorService executor = Executors.newCachedThreadPool();
+        FastPipedInputStream northIn = new FastPipedInputStream();
+        final FastPipedOutputStream southOut = new FastPipedOutputStream(northIn);
+        final FastPipedInputStream southIn = new FastPipedInputStream();
+        FastPipedOutputStream northOut = new FastPipedOutputStream(southIn);
+
+        final Channel[] south = new Channel[1];
+        Thread t = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    south[0] = new Channel("south", executor, Mode.BINARY, southIn, southOut);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        };
+        t.start();
+        Channel north = new Channel("north", executor, Mode.BINARY, northIn, northOut);
+        t.join();
+
+        // warm up
+        transfer(north, Math.min(mb, 64), writeSize);
+
+        long allocated = allocatedBytes();
+        long gcs = gcCount();
+        long start = System.nanoTime();
+        long total = transfer(north, mb, writeSize);
+        long elapsed = System.nanoTime() - start;
+        allocated = allocatedBytes() - allocated;
+        gcs = gcCount() - gcs;
+
+        north.close();
+        south[0].join();
+        executor.shutdown();
+
+        double sent = total / 1024.0 / 1024;
+        System.out.printf("%,d MB in %,d byte writes: %.2f MB/s, %,d bytes allocated per MB, %d GCs%n",
+            mb, writeSize, sent / (elapsed / 1e9), (long) (allocated / sent), gcs);
+    }
+
+    /**
+     * @return number of bytes received on the other side.
+     */
+    private static long transfer(Channel channel, int mb, int writeSize) throws Exception {
+        Pipe p = Pipe.createLocalToRemote();
+        Future<Long> f = channel.callAsync(new Reader(p));
+
+        // write from the middle of a larger buffer, like BufferedOutputStream and friends often do
+        byte[] buf = new byte[writeSize + 2];
+        OutputStream out = p.getOut();
+        for (long n = 0; n < mb * 1024L * 1024; n += writeSize) {
+            out.write(buf, 1, writeSize);
+        }
+        out.close();
+        return f.get();
+    }
+
+    /**
+     * Bytes allocated so far by all the live threads.
+     */
+    private static long allocatedBytes() {
+        com.sun.management.ThreadMXBean mx = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long total = 0;
+        for (long b : mx.getThreadAllocatedBytes(mx.getAllThreadIds())) {
+            if (b > 0) {
+                total += b;
+            }
+        }
+        return total;
+    }
+
+    private static long gcCount() {
+        long total = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            total += gc.getCollectionCount();
+        }
+        return total;
+    }
+
+    /**
+     * Reads everything from the pipe on the remote side.
+     */
+    private static class Reader implements Callable<Long, IOException> {
+        private final Pipe pipe;
+
+        Reader(Pipe pipe) {
+            this.pipe = pipe;
+        }
+
+        public Long call() throws IOException {
+            InputStream in = pipe.getIn();
+            byte[] buf = new byte[8192];
+            long total = 0;
+            int n;
+            while ((n = in.read(buf)) >= 0) {
+                total += n;
+            }
+            return total;
+        }
+
+        private static final long serialVersionUID = 1L;
+    }
+}
@@ -16,13 +16,16 @@
 
 package hudson.remoting;
 
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.Serializable;
 import java.util.Arrays;
+import java.util.Random;
 import junit.framework.Test;
 import org.apache.commons.io.IOUtils;
 import org.apache.commons.io.output.NullOutputStream;
@@ -227,6 +230,50 @@ public class PipeTest extends RmiTestBase implements Serializable {
         assertEquals(1, (int) f.get());
     }
 
+    /**
+     * Every byte written is acknowledged, however the acks are batched up.
+     */
+    public void testAcksAddUp() throws Exception {
+        int oid = channel.call(new ExportSink());
+        ProxyOutputStream os = new ProxyOutputStream(channel, oid);
+        PipeWindow w = channel.getPipeWindow(oid);
+        if (!(w instanceof PipeWindow.Real))
+            return; // no acks without throttling
+
+        Random r = new Random(0);
+        byte[] buf = new byte[64 * 1024];
+        for (int i = 0; i < 500; i++) {
+            os.write(buf, 0, 1 + r.nextInt(buf.length));
+        }
+        os.flush();
+
+        PipeWindow.Real real = (PipeWindow.Real) w;
+        long end = System.currentTimeMillis() + 10000;
+        while (real.peek() != real.size() && System.currentTimeMillis() < end) {
+            Thread.sleep(10);
+        }
+        // nothing is left in flight
+        assertEquals(real.size(), real.peek());
+        os.close();
+    }
+
+    public void testMultiAckFrame() throws Exception {
+        ProxyOutputStream.MultiAck a = new ProxyOutputStream.MultiAck(new int[]{3, 7, 1000000}, new int[]{1, 65536, Integer.MAX_VALUE});
+        ByteArrayOutputStream buf = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(buf);
+        a.writeFrame(out);
+        out.flush();
+        ProxyOutputStream.MultiAck b = ProxyOutputStream.MultiAck.readFrame(new DataInputStream(new ByteArrayInputStream(buf.toByteArray())));
+        assertEquals(a.toString(), b.toString());
+        assertEquals(4 + 3 * 8, buf.size());
+    }
+
+    private static class ExportSink implements Callable<Integer, IOException> {
+        public Integer call() throws IOException {
+            return Channel.current().export(new NullOutputStream(), false);
+        }
+    }
+
     private static class DevNullSink implements Callable<OutputStream, IOException> {
         public OutputStream call() throws IOException {
             return new RemoteOutputStream(new NullOutputStream());
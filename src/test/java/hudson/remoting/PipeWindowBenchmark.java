@@ -0,0 +1,187 @@
+/*******************************************************************************
+ *
+ * Copyright (c) 2012 Oracle Corporation.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *
+ *
+ *******************************************************************************/
+
+package hudson.remoting;
+
+import hudson.remoting.Channel.Mode;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * Measures the throughput of a {@link Pipe} over an in-process link with a simulated latency,
+ * with the fixed-size window and with the auto-tuned one.
+ *
+ * <p>
+ * Run with <tt>java hudson.remoting.PipeWindowBenchmark [one-way latency in ms] [MB to send]</tt>.
+ */
+public class PipeWindowBenchmark {
+    public static void main(String[] args) throws Exception {
+        int latency = args.length > 0 ? Integer.parseInt(args[0]) : 10;
+        int mb = args.length > 1 ? Integer.parseInt(args[1]) : 32;
+
+        report("fixed " + Channel.PIPE_WINDOW_SIZE / 1024 + "KB window", run(latency, mb, Channel.PIPE_WINDOW_SIZE));
+        report("auto-tuned window up to " + Channel.PIPE_WINDOW_MAX_SIZE / 1024 + "KB", run(latency, mb, Channel.PIPE_WINDOW_MAX_SIZE));
+    }
+
+    private static void report(String name, double mbPerSec) {
+        System.out.printf("%-40s %8.2f MB/s%n", name, mbPerSec);
+    }
+
+    /**
+     * @param maxWindow
+     *      How far the window of the pipe may grow.
+     * @return throughput in MB/s
+     */
+    private static double run(int latency, int mb, int maxWindow) throws Exception {
+        final ExecutorService executor = Executors.newCachedThreadPool();
+
+        FastPipedInputStream northIn = new FastPipedInputStream();
+        FastPipedOutputStream northInSink = new FastPipedOutputStream(northIn);
+        final FastPipedInputStream southIn = new FastPipedInputStream();
+        FastPipedOutputStream southInSink = new FastPipedOutputStream(southIn);
+
+        FastPipedInputStream northOutSource = new FastPipedInputStream();
+        FastPipedOutputStream northOut = new FastPipedOutputStream(northOutSource);
+        FastPipedInputStream southOutSource = new FastPipedInputStream();
+        final FastPipedOutputStream southOut = new FastPipedOutputStream(southOutSource);
+
+        new Link(northOutSource, southInSink, latency).start();
+        new Link(southOutSource, northInSink, latency).start();
+
+        final Channel[] south = new Channel[1];
+        Thread t = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    south[0] = new Channel("south", executor, Mode.BINARY, southIn, southOut);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        };
+        t.start();
+        Channel north = new Channel("north", executor, Mode.BINARY, northIn, northOut);
+        north.pipeWindowMaxSize = maxWindow;
+        t.join();
+
+        Pipe p = Pipe.createLocalToRemote();
+        Future<Long> f = north.callAsync(new Reader(p));
+
+        byte[] buf = new byte[8192];
+        long start = System.nanoTime();
+        OutputStream out = p.getOut();
+        for (long n = 0; n < mb * 1024L * 1024; n += buf.length) {
+            out.write(buf);
+        }
+        out.close();
+        long total = f.get();
+        long elapsed = System.nanoTime() - start;
+
+        north.close();
+        south[0].join();
+        executor.shutdown();
+
+        return total / 1024.0 / 1024 / (elapsed / 1e9);
+    }
+
+    /**
+     * Reads everything from the pipe on the remote side.
+     */
+    private static class Reader implements Callable<Long, IOException> {
+        private final Pipe pipe;
+
+        Reader(Pipe pipe) {
+            this.pipe = pipe;
+        }
+
+        public Long call() throws IOException {
+            InputStream in = pipe.getIn();
+            byte[] buf = new byte[8192];
+            long total = 0;
+            int n;
+            while ((n = in.read(buf)) >= 0) {
+                total += n;
+            }
+            return total;
+        }
+
+        private static final long serialVersionUID = 1L;
+    }
+
+    /**
+     * Copies bytes from one stream to another, delivering each one after the given latency.
+     */
+    private static final class Link extends Thread {
+        private final InputStream in;
+        private final OutputStream out;
+        private final long latencyNanos;
+        private final BlockingQueue<Object[]> queue = new LinkedBlockingQueue<Object[]>();
+
+        Link(InputStream in, OutputStream out, int latencyMillis) {
+            super("link");
+            setDaemon(true);
+            this.in = in;
+            this.out = out;
+            this.latencyNanos = latencyMillis * 1000000L;
+        }
+
+        @Override
+        public void run() {
+            Thread deliverer = new Thread("link delivery") {
+                @Override
+                public void run() {
+                    try {
+                        while (true) {
+                            Object[] e = queue.take();
+                            long wait = (Long) e[0] - System.nanoTime();
+                            if (wait > 0) {
+                                Thread.sleep(wait / 1000000, (int) (wait % 1000000));
+                            }
+                            byte[] data = (byte[]) e[1];
+                            if (data == null) {
+                                out.close();
+                                return;
+                            }
+                            out.write(data);
+                            out.flush();
+                        }
+                    } catch (Exception e) {
+                        // the benchmark is over
+                    }
+                }
+            };
+            deliverer.setDaemon(true);
+            deliverer.start();
+
+            byte[] buf = new byte[64 * 1024];
+            try {
+                int n;
+                while ((n = in.read(buf)) >= 0) {
+                    byte[] data = new byte[n];
+                    System.arraycopy(buf, 0, data, 0, n);
+                    queue.add(new Object[]{System.nanoTime() + latencyNanos, data});
+                }
+            } catch (IOException e) {
+                // the benchmark is over
+            }
+            queue.add(new Object[]{System.nanoTime() + latencyNanos, null});
+        }
+    }
+}
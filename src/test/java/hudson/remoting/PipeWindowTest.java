@@ -0,0 +1,131 @@
+/*******************************************************************************
+ *
+ * Copyright (c) 2012 Oracle Corporation.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *
+ *
+ *******************************************************************************/
+
+package hudson.remoting;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests how {@link PipeWindow.Real} resizes itself, over a simulated link.
+ */
+public class PipeWindowTest extends TestCase {
+    private static final int K = 1024;
+    private static final long MS = 1000000L;
+
+    private Window w;
+
+    @Override
+    protected void setUp() throws Exception {
+        w = new Window(64 * K, 1024 * K);
+    }
+
+    /**
+     * While the sender keeps running out of window and the round trip stays put, the window doubles, up to the max.
+     */
+    public void testSlowStart() throws Exception {
+        int[] expected = {128, 256, 512, 1024, 1024};
+        for (int size : expected) {
+            w.roundTrip(10 * MS, true);
+            assertEquals(size * K, w.size());
+        }
+        assertEquals(w.size(), w.peek());
+    }
+
+    /**
+     * A window that isn't holding the sender back doesn't grow.
+     */
+    public void testNotLimited() throws Exception {
+        w.roundTrip(10 * MS, false);
+        w.roundTrip(10 * MS, false);
+        assertEquals(64 * K, w.size());
+    }
+
+    /**
+     * When the round trip inflates, the bytes are queuing up on the way, so the window shrinks by a quarter,
+     * and then only grows by an eighth at a time.
+     */
+    public void testShrinkThenGrowGradually() throws Exception {
+        w.roundTrip(10 * MS, true);
+        w.roundTrip(10 * MS, true);
+        assertEquals(256 * K, w.size());
+
+        w.roundTrip(40 * MS, true);
+        assertEquals(192 * K, w.size());
+
+        w.roundTrip(10 * MS, true);
+        assertEquals(216 * K, w.size());
+        assertEquals(w.size(), w.peek());
+    }
+
+    /**
+     * However long the round trips get, the window stays above the minimum.
+     */
+    public void testMinimum() throws Exception {
+        w.roundTrip(10 * MS, true);
+        for (int i = 0; i < 20; i++) {
+            w.roundTrip(100 * MS, true);
+        }
+        assertEquals(PipeWindow.MIN_SIZE, w.size());
+        assertEquals(w.size(), w.peek());
+    }
+
+    /**
+     * {@link PipeWindow.Real} on a clock that we move forward.
+     */
+    private static class Window extends PipeWindow.Real {
+        private long now;
+
+        Window(int initialSize, int maxSize) {
+            super(new PipeWindow.Key(1), initialSize, maxSize);
+        }
+
+        @Override
+        long nanoTime() {
+            return now;
+        }
+
+        /**
+         * Sends all the window allows, and gets it all acknowledged after the given round trip.
+         *
+         * @param limited
+         *      If true, the sender runs out of window and waits for it to reopen in the meantime.
+         */
+        void roundTrip(long rtt, boolean limited) throws Exception {
+            int n = peek();
+            decrease(limited ? n : n / 2);
+            Thread sender = null;
+            if (limited) {
+                sender = new Thread() {
+                    @Override
+                    public void run() {
+                        try {
+                            get();
+                        } catch (Exception e) {
+                            throw new Error(e);
+                        }
+                    }
+                };
+                sender.start();
+                while (sender.getState() != Thread.State.WAITING) {
+                    Thread.sleep(1);
+                }
+            }
+            now += rtt;
+            increase(limited ? n : n / 2);
+            if (sender != null) {
+                sender.join();
+            }
+        }
+    }
+}
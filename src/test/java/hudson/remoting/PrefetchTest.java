@@ -16,10 +16,14 @@
 
 package hudson.remoting;
 
+import junit.framework.TestCase;
 import org.objectweb.asm.ClassReader;
 import org.objectweb.asm.attrs.StackMapAttribute;
 
+import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * @author Kohsuke Kawaguchi
@@ -33,6 +37,74 @@ public class PrefetchTest extends RmiTestBase {
         System.out.println(channel.call(vt));
     }
 
+    public void testPrefetchIntoJarCache() throws Exception {
+        File dir = File.createTempFile("jarcache", "");
+        dir.delete();
+        JarCache old = JarCache.DEFAULT;
+        JarCache.DEFAULT = new JarCache(dir, JarCache.MAX_SIZE);
+        try {
+            assertTrue(channel.preloadJar(new VerifyTask(), ClassReader.class));
+            String digest = JarCache.digest(new FileInputStream(Which.jarFile(ClassReader.class)));
+            assertTrue(new File(dir, digest + ".jar").isFile());
+        } finally {
+            JarCache.DEFAULT = old;
+            for (File f : dir.listFiles())
+                f.delete();
+            dir.delete();
+        }
+    }
+
+    /**
+     * Several jars are streamed in parallel, each straight into its own file.
+     */
+    public void testPrefetchSeveralJars() throws Exception {
+        File dir = File.createTempFile("jarcache", "");
+        dir.delete();
+        JarCache old = JarCache.DEFAULT;
+        JarCache.DEFAULT = new JarCache(dir, JarCache.MAX_SIZE);
+        try {
+            Class[] classes = {ClassReader.class, TestCase.class};
+            assertTrue(channel.preloadJar(new VerifyTask(), classes));
+            assertFalse(channel.preloadJar(new VerifyTask(), classes));
+            for (Class c : classes) {
+                String digest = JarCache.digest(new FileInputStream(Which.jarFile(c)));
+                assertTrue(new File(dir, digest + ".jar").isFile());
+            }
+        } finally {
+            JarCache.DEFAULT = old;
+            for (File f : dir.listFiles())
+                f.delete();
+            dir.delete();
+        }
+    }
+
+    /**
+     * Concurrent prefetches of the same jar transfer it once.
+     */
+    public void testConcurrentPrefetch() throws Exception {
+        final VerifyTask vt = new VerifyTask();
+        final AtomicInteger transferred = new AtomicInteger();
+        Thread[] threads = new Thread[4];
+        for (int i=0; i<threads.length; i++) {
+            threads[i] = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        if (channel.preloadJar(vt,ClassReader.class))
+                            transferred.incrementAndGet();
+                    } catch (Exception e) {
+                        e.printStackTrace();
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        for (Thread t : threads)
+            t.join();
+        assertEquals(1, transferred.get());
+        System.out.println(channel.call(vt));
+    }
+
     private static class VerifyTask implements Callable<String,IOException> {
         public String call() throws IOException {
             StackMapAttribute sma = new StackMapAttribute();
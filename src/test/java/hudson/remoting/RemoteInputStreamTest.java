@@ -0,0 +1,278 @@
+/*******************************************************************************
+ *
+ * Copyright (c) 2012 Oracle Corporation.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *
+ *
+ *******************************************************************************/
+
+package hudson.remoting;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import junit.framework.Test;
+
+/**
+ * Test {@link RemoteInputStream}.
+ */
+public class RemoteInputStreamTest extends RmiTestBase {
+    /**
+     * Reads more than the prefetch window, in chunks of all sizes.
+     */
+    public void testRead() throws Exception {
+        byte[] data = randomBytes(ProxyInputStream.PREFETCH_WINDOW * 3 + 17);
+        byte[] r = channel.call(new Reader(new RemoteInputStream(new ByteArrayInputStream(data)), -1));
+        assertTrue(Arrays.equals(data, r));
+    }
+
+    /**
+     * Reads one byte at a time.
+     */
+    public void testReadByteByByte() throws Exception {
+        byte[] data = randomBytes(20000);
+        byte[] r = channel.call(new Reader(new RemoteInputStream(new ByteArrayInputStream(data)), 1));
+        assertTrue(Arrays.equals(data, r));
+    }
+
+    /**
+     * Skipping doesn't start prefetching, so our stream isn't read any further than that.
+     */
+    public void testSkip() throws Exception {
+        Source in = new Source(randomBytes(ProxyInputStream.PREFETCH_WINDOW * 2));
+        assertEquals(20000L, (long) channel.call(new Skipper(new RemoteInputStream(in), 20000)));
+        assertEquals(20000, in.position());
+    }
+
+    private static class Source extends ByteArrayInputStream {
+        Source(byte[] buf) {
+            super(buf);
+        }
+
+        synchronized int position() {
+            return pos;
+        }
+    }
+
+    private static class Skipper implements Callable<Long, IOException> {
+        private final RemoteInputStream in;
+        private final long n;
+
+        Skipper(RemoteInputStream in, long n) {
+            this.in = in;
+            this.n = n;
+        }
+
+        public Long call() throws IOException {
+            long r = in.skip(n);
+            in.close();
+            return r;
+        }
+
+        private static final long serialVersionUID = 1L;
+    }
+
+    /**
+     * Closing the stream before reading all of it closes the stream on our side.
+     */
+    public void testEarlyClose() throws Exception {
+        final boolean[] closed = new boolean[1];
+        InputStream in = new ByteArrayInputStream(randomBytes(ProxyInputStream.PREFETCH_WINDOW * 4)) {
+            @Override
+            public void close() throws IOException {
+                synchronized (closed) {
+                    closed[0] = true;
+                    closed.notifyAll();
+                }
+            }
+        };
+        channel.call(new PartialReader(new RemoteInputStream(in)));
+
+        synchronized (closed) {
+            long end = System.currentTimeMillis() + 10000;
+            while (!closed[0] && System.currentTimeMillis() < end) {
+                closed.wait(100);
+            }
+        }
+        assertTrue(closed[0]);
+    }
+
+    /**
+     * A failure to read our stream shows up on the reading side, after the data read before that.
+     */
+    public void testFailure() throws Exception {
+        final byte[] data = randomBytes(1000);
+        InputStream in = new InputStream() {
+            private int pos;
+
+            @Override
+            public int read() throws IOException {
+                if (pos == data.length) {
+                    throw new IOException("boom");
+                }
+                return data[pos++] & 0xFF;
+            }
+        };
+        try {
+            channel.call(new Reader(new RemoteInputStream(in), -1));
+            fail();
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+    /**
+     * A read waiting for data from the other side is released when the channel goes down.
+     */
+    public void testChannelClosedWhileReading() throws Exception {
+        final InputStream in = channel.call(new OpenStalledStream());
+        final CountDownLatch firstRead = new CountDownLatch(1);
+        final Throwable[] failure = new Throwable[1];
+        Thread reader = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    assertEquals(1, in.read());
+                    firstRead.countDown();
+                    in.read();  // nothing more comes
+                } catch (Throwable e) {
+                    failure[0] = e;
+                }
+            }
+        };
+        reader.start();
+        assertTrue(firstRead.await(10, TimeUnit.SECONDS));
+
+        channel.close();
+        reader.join(10000);
+        assertFalse("the read is still blocked", reader.isAlive());
+        // without prefetching, the aborted request fails the read with an unchecked exception
+        assertNotNull(failure[0]);
+    }
+
+    private static byte[] randomBytes(int len) {
+        byte[] data = new byte[len];
+        new Random(len).nextBytes(data);
+        return data;
+    }
+
+    /**
+     * Reads everything from the given stream.
+     */
+    private static class Reader implements Callable<byte[], IOException> {
+        private final RemoteInputStream in;
+        /**
+         * Size of the reads, or -1 to use various sizes.
+         */
+        private final int size;
+
+        Reader(RemoteInputStream in, int size) {
+            this.in = in;
+            this.size = size;
+        }
+
+        public byte[] call() throws IOException {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buf = new byte[65536];
+            int i = 0;
+            while (true) {
+                if (size == 1) {
+                    int b = in.read();
+                    if (b < 0) {
+                        break;
+                    }
+                    out.write(b);
+                } else {
+                    int n = in.read(buf, 0, 1 + (i++ * 7919) % buf.length);
+                    if (n < 0) {
+                        break;
+                    }
+                    out.write(buf, 0, n);
+                }
+            }
+            in.close();
+            return out.toByteArray();
+        }
+
+        private static final long serialVersionUID = 1L;
+    }
+
+    /**
+     * Reads a bit of the given stream, then closes it.
+     */
+    private static class PartialReader implements Callable<Integer, IOException> {
+        private final RemoteInputStream in;
+
+        PartialReader(RemoteInputStream in) {
+            this.in = in;
+        }
+
+        public Integer call() throws IOException {
+            int n = in.read(new byte[100]);
+            in.close();
+            return n;
+        }
+
+        private static final long serialVersionUID = 1L;
+    }
+
+    /**
+     * Returns a stream that gives one byte, then stalls for a while.
+     */
+    private static class OpenStalledStream implements Callable<InputStream, IOException> {
+        public InputStream call() throws IOException {
+            return new RemoteInputStream(new InputStream() {
+                private boolean first = true;
+
+                @Override
+                public synchronized int read() throws IOException {
+                    if (first) {
+                        first = false;
+                        return 1;
+                    }
+                    try {
+                        wait(10000);
+                    } catch (InterruptedException e) {
+                        // give up
+                    }
+                    return -1;
+                }
+
+                @Override
+                public int read(byte[] b, int off, int len) throws IOException {
+                    if (len == 0) {
+                        return 0;
+                    }
+                    int c = read();
+                    if (c < 0) {
+                        return -1;
+                    }
+                    b[off] = (byte) c;
+                    return 1;
+                }
+
+                @Override
+                public synchronized void close() {
+                    notifyAll();
+                }
+            });
+        }
+
+        private static final long serialVersionUID = 1L;
+    }
+
+    public static Test suite() throws Exception {
+        return buildSuite(RemoteInputStreamTest.class);
+    }
+}
@@ -0,0 +1,45 @@
+/*******************************************************************************
+ *
+ * Copyright (c) 2012 Oracle Corporation.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *
+ *
+ *******************************************************************************/
+
+package hudson.remoting;
+
+import java.io.File;
+import junit.framework.TestCase;
+
+/**
+ * Test {@link ResourceStore}.
+ */
+public class ResourceStoreTest extends TestCase {
+    public void testAdd() throws Exception {
+        ResourceStore store = ResourceStore.get();
+        byte[] a = "a".getBytes("UTF-8");
+        File f = store.add("META-INF/foo.xml", a);
+        assertTrue(f.getPath(), f.getPath().replace('\\', '/').endsWith("/META-INF/foo.xml"));
+        assertEquals(1, f.length());
+
+        // same contents are stored once
+        assertEquals(f, store.add("META-INF/foo.xml", a));
+
+        // different contents of the same name are kept apart
+        File g = store.add("META-INF/foo.xml", "bb".getBytes("UTF-8"));
+        assertFalse(f.equals(g));
+        assertEquals(1, f.length());
+        assertEquals(2, g.length());
+
+        // files deleted behind our back are written again
+        f.delete();
+        assertEquals(f, store.add("META-INF/foo.xml", a));
+        assertTrue(f.isFile());
+    }
+}
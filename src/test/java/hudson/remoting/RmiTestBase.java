@@ -29,6 +29,9 @@ import junit.framework.TestSuite;
 @WithRunner({
     ChannelRunner.InProcess.class,
     ChannelRunner.InProcessCompatibilityMode.class,
+    ChannelRunner.InProcessWithPayloadSerializer.class,
+    ChannelRunner.InProcessCompressed.class,
+    ChannelRunner.InProcessNio.class,
     ChannelRunner.Fork.class
 })
 public abstract class RmiTestBase extends TestCase {